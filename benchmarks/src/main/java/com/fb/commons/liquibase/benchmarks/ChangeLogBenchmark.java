@@ -0,0 +1,79 @@
+package com.fb.commons.liquibase.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.core.xml.XMLChangeLogSAXParser;
+import liquibase.resource.FileSystemResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Changelog parsing and checksum computation for synthetic changelogs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ChangeLogBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	private int changeSets;
+
+	private Path directory;
+	private ResourceAccessor resourceAccessor;
+	private DatabaseChangeLog changeLog;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("changelog-benchmark");
+		SyntheticChangeLog.write(directory, changeSets);
+		resourceAccessor = new FileSystemResourceAccessor(directory.toString());
+		changeLog = parse();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		SyntheticChangeLog.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public DatabaseChangeLog parseChangeLog() throws LiquibaseException {
+		return parse();
+	}
+
+	@Benchmark
+	public void computeCheckSums(final Blackhole blackhole) {
+		for (ChangeSet changeSet : changeLog.getChangeSets()) {
+			// the checksum is cached in the changeset
+			changeSet.clearCheckSum();
+			blackhole.consume(changeSet.generateCheckSum());
+		}
+	}
+
+	private DatabaseChangeLog parse() throws LiquibaseException {
+		return new XMLChangeLogSAXParser().parse(SyntheticChangeLog.FILE_NAME, new ChangeLogParameters(),
+				resourceAccessor);
+	}
+}
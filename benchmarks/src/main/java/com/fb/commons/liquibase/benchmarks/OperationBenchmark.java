@@ -0,0 +1,89 @@
+package com.fb.commons.liquibase.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fb.commons.liquibase.LiquibaseBuilder;
+import com.fb.commons.liquibase.LiquibaseOperation;
+import com.fb.commons.liquibase.LiquibaseOperationExecutor;
+
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.resource.FileSystemResourceAccessor;
+
+/**
+ * Operations dispatched by {@link LiquibaseOperationExecutor} against an H2
+ * in-memory database. Every UPDATE runs on a new, empty database; VALIDATE
+ * runs on a database which is up to date.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class OperationBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	private int changeSets;
+
+	private Path directory;
+	private Database emptyDatabase;
+	private Database migratedDatabase;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception {
+		directory = Files.createTempDirectory("operation-benchmark");
+		SyntheticChangeLog.write(directory, changeSets);
+		migratedDatabase = SyntheticChangeLog.openDatabase();
+		new LiquibaseOperationExecutor().processOperation(LiquibaseOperation.UPDATE, liquibase(migratedDatabase));
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpInvocation() throws Exception {
+		emptyDatabase = SyntheticChangeLog.openDatabase();
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownInvocation() throws Exception {
+		emptyDatabase.close();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws Exception {
+		migratedDatabase.close();
+		SyntheticChangeLog.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public void update() {
+		new LiquibaseOperationExecutor().processOperation(LiquibaseOperation.UPDATE, liquibase(emptyDatabase));
+	}
+
+	@Benchmark
+	public void validate() {
+		new LiquibaseOperationExecutor().processOperation(LiquibaseOperation.VALIDATE, liquibase(migratedDatabase));
+	}
+
+	private Liquibase liquibase(final Database database) {
+		return new LiquibaseBuilder().withDatabase(database)
+				.withResourceAccessor(new FileSystemResourceAccessor(directory.toString()))
+				.withDatabaseChangeLog("", SyntheticChangeLog.FILE_NAME).withChangeLogTableName("DATABASECHANGELOG")
+				.build();
+	}
+}
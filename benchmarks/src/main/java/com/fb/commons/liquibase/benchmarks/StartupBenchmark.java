@@ -0,0 +1,70 @@
+package com.fb.commons.liquibase.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fb.commons.liquibase.LiquibaseBuilder;
+import com.fb.commons.liquibase.ProgramOptions;
+import com.fb.commons.liquibase.ProgrammOptionsParser;
+import com.fb.commons.liquibase.StageProperties;
+import com.fb.commons.liquibase.StagePropertiesReader;
+
+import liquibase.Liquibase;
+import liquibase.database.Database;
+
+/**
+ * Steps of the service startup which do not depend on the changelog size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StartupBenchmark {
+
+	private static final String[] ARGS = { "-project", "BENCH", "-stage", "TEST", "-operation", "update" };
+
+	private ProgramOptions options;
+	private Database database;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		options = new ProgrammOptionsParser().parseOptions(ARGS);
+		database = SyntheticChangeLog.openDatabase();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		database.close();
+	}
+
+	@Benchmark
+	public ProgramOptions parseOptions() {
+		return new ProgrammOptionsParser().parseOptions(ARGS);
+	}
+
+	@Benchmark
+	public StageProperties readEnvironmentProperties() {
+		return StagePropertiesReader.build().readEnviromentProperties(options);
+	}
+
+	@Benchmark
+	public Liquibase buildLiquibase() {
+		return new LiquibaseBuilder().withDatabase(database).withResourceAccessor()
+				.withDatabaseChangeLog("db/changelog/", "db.changelog-master.xml")
+				.withChangeLogTableName("DATABASECHANGELOG").build();
+	}
+}
@@ -0,0 +1,82 @@
+package com.fb.commons.liquibase.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+
+/**
+ * Test data of the benchmarks: generated changelogs and in-memory databases.
+ */
+final class SyntheticChangeLog {
+
+	static final String FILE_NAME = "changelog.xml";
+
+	private static final int COLUMNS_PER_TABLE = 10;
+	private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+	private SyntheticChangeLog() {
+		// private constructor
+	}
+
+	/**
+	 * Write a changelog with the given number of changesets. Every tenth
+	 * changeset creates a table, the others add a column to it.
+	 *
+	 * @param directory  - target directory
+	 * @param changeSets - number of changesets
+	 * @return path of the changelog
+	 */
+	static Path write(final Path directory, final int changeSets) throws IOException {
+		final Path file = directory.resolve(FILE_NAME);
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\"\n");
+			out.write("\txmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n");
+			out.write("\txsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog "
+					+ "http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.6.xsd\">\n");
+			for (int i = 0; i < changeSets; i++) {
+				final String table = "T" + (i / COLUMNS_PER_TABLE);
+				out.write("\t<changeSet id=\"" + i + "\" author=\"benchmark\">\n");
+				if (i % COLUMNS_PER_TABLE == 0) {
+					out.write("\t\t<createTable tableName=\"" + table + "\">\n");
+					out.write("\t\t\t<column name=\"ID\" type=\"BIGINT\">\n");
+					out.write("\t\t\t\t<constraints primaryKey=\"true\" nullable=\"false\"/>\n");
+					out.write("\t\t\t</column>\n");
+					out.write("\t\t</createTable>\n");
+				} else {
+					out.write("\t\t<addColumn tableName=\"" + table + "\">\n");
+					out.write("\t\t\t<column name=\"C" + i + "\" type=\"VARCHAR(50)\"/>\n");
+					out.write("\t\t</addColumn>\n");
+				}
+				out.write("\t</changeSet>\n");
+			}
+			out.write("</databaseChangeLog>\n");
+		}
+		return file;
+	}
+
+	/**
+	 * Open a new, empty H2 in-memory database. It is dropped when the database
+	 * is closed.
+	 */
+	static Database openDatabase() throws SQLException, DatabaseException {
+		final JdbcConnection connection = new JdbcConnection(
+				DriverManager.getConnection("jdbc:h2:mem:bench" + DATABASE_COUNTER.incrementAndGet(), "sa", ""));
+		return DatabaseFactory.getInstance().findCorrectDatabaseImplementation(connection);
+	}
+
+	static void deleteDirectory(final Path directory) throws IOException {
+		Files.deleteIfExists(directory.resolve(FILE_NAME));
+		Files.deleteIfExists(directory);
+	}
+}
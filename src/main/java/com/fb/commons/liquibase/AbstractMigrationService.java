@@ -1,5 +1,6 @@
 package com.fb.commons.liquibase;
 
+import java.io.File;
 import java.security.GeneralSecurityException;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
@@ -7,6 +8,8 @@ import java.util.logging.Logger;
 import com.fb.commons.crypt.Crypt;
 
 import liquibase.database.Database;
+import liquibase.exception.DatabaseException;
+import liquibase.resource.ClassLoaderResourceAccessor;
 
 public abstract class AbstractMigrationService {
 
@@ -25,13 +28,18 @@ public abstract class AbstractMigrationService {
 	private Database diffDatabase;
 	// The database type
 	private DatabaseType databaseType;
+	// Key to decrypt passwords of additional connections
+	private byte[] privateKey;
 
 	static {
+		final StartupProfiler.Phase phase = StartupProfiler.start("logging");
 		try {
 			LogManager.getLogManager().readConfiguration();
 		} catch (Exception e) {
 			java.util.logging.Logger.getAnonymousLogger().severe("Could not load default logging.properties file");
 			java.util.logging.Logger.getAnonymousLogger().severe(e.getMessage());
+		} finally {
+			phase.close();
 		}
 	}
 
@@ -39,7 +47,12 @@ public abstract class AbstractMigrationService {
 		final ProgrammOptionsParser parser = new ProgrammOptionsParser();
 
 		LOG.fine("Parse commandline arguments");
-		options = parser.parseOptions(args);
+		final StartupProfiler.Phase optionsPhase = StartupProfiler.start("options");
+		try {
+			options = parser.parseOptions(args);
+		} finally {
+			optionsPhase.close();
+		}
 
 		// encrypt value given in the enrypt option
 		if (options.getValue() != null) {
@@ -53,34 +66,169 @@ public abstract class AbstractMigrationService {
 		}
 
 		LOG.info("Read properties for project: " + getOptions().getProject() + ", stage: " + getOptions().getStage());
-		properties = StagePropertiesReader.build().readEnviromentProperties(getOptions());
-		properties.logAllProperties();
-		properties.verify();
-
-		if (properties.getUrl().startsWith("jdbc:oracle")) {
-			LOG.info("ORACLE: synonyms and Oracle JDBC Data Source");
-			databaseType = DatabaseType.ORACLE;
+		final StartupProfiler.Phase propertiesPhase = StartupProfiler.start("properties");
+		try {
+			properties = StagePropertiesReader.build().readEnviromentProperties(getOptions());
+			properties.logAllProperties();
+			properties.verify();
+		} finally {
+			propertiesPhase.close();
 		}
 
-		if (properties.getUrl().startsWith("jdbc:postgresql")) {
+		databaseType = DatabaseType.fromUrl(properties.getUrl());
+		if (databaseType == DatabaseType.ORACLE) {
+			LOG.info("ORACLE: synonyms and Oracle JDBC Data Source");
+		} else {
 			LOG.info("PostgreSQL: no synonyms and  PostgreSQL JDBC Data Source");
-			databaseType = DatabaseType.POSTGRESQL;
 		}
 
-		if (databaseType == null) {
-			throw new IllegalArgumentException("Cannot determine database type from JDBC url!");
+		this.privateKey = privateKey;
+
+		if (DatabaseBuilder.isPooled(properties)) {
+			// workers of fleet mode or of the parallel update, each with a connection of its own
+			final int updateWorkers = properties.getUpdateThreads() > 1 ? properties.getUpdateThreads() : 0;
+			properties.checkPoolSize(isFleet() ? properties.getFleetThreads() : updateWorkers);
 		}
 
 		LOG.info("Create database for migration");
-		database = DatabaseBuilder.buildDatabase(getProperties(), databaseType, privateKey);
-
-		if (properties.getDiffUrl() != null) {
-			diffDatabase = DatabaseBuilder.buildDiffDatabase(getProperties(), databaseType, privateKey);
+		final StartupProfiler.Phase databasePhase = StartupProfiler.start("database");
+		try {
+			database = DatabaseBuilder.buildDatabase(getProperties(), databaseType, privateKey);
+		} finally {
+			databasePhase.close();
 		}
+		// the diff database is connected on first use, see getDiffDatabase()
 	}
 
 	public abstract void execute();
 
+	/**
+	 * Close the connections of this service. Pooled connections are returned to
+	 * their pool.
+	 */
+	public void close() {
+		for (Database db : new Database[] { database, diffDatabase }) {
+			if (db == null) {
+				continue;
+			}
+			try {
+				db.close();
+			} catch (DatabaseException e) {
+				LOG.warning("Could not close connection: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Fleet mode is active if schemas are given on the command line or in the
+	 * stage properties.
+	 * 
+	 * @return true if the operation should run for many schemas
+	 */
+	protected boolean isFleet() {
+		return getFleetSchemas() != null;
+	}
+
+	/**
+	 * Run the operation of the command line for all schemas of the fleet. The
+	 * database of {@link #getDatabase()} is only used to resolve schema patterns.
+	 * 
+	 * @return consolidated report
+	 */
+	protected FleetReport executeFleet() {
+		final FleetMigrationExecutor executor = new FleetMigrationExecutor(properties, databaseType, privateKey);
+		final FleetReport report = executor.execute(options.getOperation(),
+				executor.resolveSchemas(getFleetSchemas(), database));
+		if (report.hasFailures()) {
+			throw new MigrationException(
+					"Fleet " + options.getOperation() + " failed for " + report.getFailures().size() + " schemas");
+		}
+		return report;
+	}
+
+	/**
+	 * Report the status of all projects and stages found on the classpath as JSON
+	 * on the console. The properties of the command line only determine the
+	 * number of workers (status.threads).
+	 * 
+	 * @return JSON document
+	 */
+	protected String executeStatus() {
+		final String report = new StageStatusReporter(properties.getStatusThreads(), privateKey).report();
+		System.out.print(report);
+		return report;
+	}
+
+	/**
+	 * Generator for a DIFF which snapshots both databases concurrently, enabled
+	 * by the stage property diff.parallel. Additional connections are opened
+	 * with the settings of the database they belong to.
+	 * 
+	 * @return generator or null if the sequential Liquibase diff should be used
+	 */
+	protected ParallelDiffGenerator getParallelDiffGenerator() {
+		if (!properties.isParallelDiff()) {
+			return null;
+		}
+		return new ParallelDiffGenerator(source -> source == diffDatabase
+				? DatabaseBuilder.buildDiffDatabase(properties, databaseType, privateKey)
+				: DatabaseBuilder.buildDatabase(properties, databaseType, privateKey));
+	}
+
+	/**
+	 * Per-changeset metrics of UPDATE, enabled by the stage property
+	 * metrics.dir. The monitor connection for lock-wait sampling is opened with
+	 * the settings of the migration database.
+	 * 
+	 * @return metrics or null if no metrics should be recorded
+	 */
+	protected ChangeSetMetrics getChangeSetMetrics() {
+		final String directory = properties.getMetricsDir();
+		if (directory.trim().isEmpty()) {
+			return null;
+		}
+		return new ChangeSetMetrics(new File(directory),
+				() -> DatabaseBuilder.buildDatabase(properties, databaseType, privateKey));
+	}
+
+	/**
+	 * Scheduler running independent changesets of UPDATE concurrently, enabled
+	 * by the stage property update.threads. The worker connections are opened
+	 * with the settings of the migration database.
+	 * 
+	 * @return scheduler or null if UPDATE should run sequentially
+	 */
+	protected ParallelChangeSetScheduler getParallelChangeSetScheduler() {
+		final int threads = properties.getUpdateThreads();
+		if (threads < 2) {
+			return null;
+		}
+		return new ParallelChangeSetScheduler(threads,
+				source -> DatabaseBuilder.buildDatabase(properties, databaseType, privateKey));
+	}
+
+	/**
+	 * Fingerprint of the changelog for the no-op fast path of UPDATE, enabled by
+	 * the stage property update.fingerprint.
+	 * 
+	 * @return fingerprint or null if UPDATE should always run
+	 */
+	protected ChangeLogFingerprint getChangeLogFingerprint() {
+		if (!properties.isUpdateFingerprint()) {
+			return null;
+		}
+		return new ChangeLogFingerprint(new ClassLoaderResourceAccessor(), properties.getLocations(),
+				properties.getRootChangeLogName());
+	}
+
+	private String getFleetSchemas() {
+		if (options.getSchemas() != null) {
+			return options.getSchemas();
+		}
+		final String schemas = properties.getFleetSchemas();
+		return schemas.isEmpty() ? null : schemas;
+	}
+
 	protected ProgramOptions getOptions() {
 		return options;
 	}
@@ -93,7 +241,21 @@ public abstract class AbstractMigrationService {
 		return database;
 	}
 
-	public Database getDiffDatabase() {
+	/**
+	 * Database for diff, connected on the first call. Only operations comparing
+	 * two databases pay for the connection.
+	 * 
+	 * @return diff database or null if no diff url is configured
+	 */
+	public synchronized Database getDiffDatabase() {
+		if (diffDatabase == null && !properties.getDiffUrl().trim().isEmpty()) {
+			final StartupProfiler.Phase phase = StartupProfiler.start("diff database");
+			try {
+				diffDatabase = DatabaseBuilder.buildDiffDatabase(getProperties(), databaseType, privateKey);
+			} finally {
+				phase.close();
+			}
+		}
 		return diffDatabase;
 	}
 
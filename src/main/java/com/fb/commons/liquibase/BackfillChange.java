@@ -0,0 +1,430 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.logging.Logger;
+
+import liquibase.change.AbstractChange;
+import liquibase.change.ChangeFactory;
+import liquibase.change.ChangeMetaData;
+import liquibase.change.DatabaseChange;
+import liquibase.change.DatabaseChangeProperty;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.PreparedStatementFactory;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.ValidationErrors;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.statement.AbstractSqlStatement;
+import liquibase.statement.ExecutablePreparedStatement;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.RawSqlStatement;
+import liquibase.structure.core.Column;
+
+/**
+ * Data migration of a large table in chunks. The table is walked by ranges of
+ * its numeric key column, from the smallest to the largest key at the start;
+ * every chunk is one UPDATE which is committed on its own, so there is no long
+ * running transaction. Rows added later are not visited.
+ * <p>
+ * The last completed key is stored with every chunk in the checkpoint table
+ * next to the changelog table (changelog table name + "Backfill"), in the
+ * transaction of the chunk. If the update is interrupted, the changeset is
+ * not marked as ran and the next update resumes after the checkpoint. The
+ * checkpoint belongs to the changeset and its checksum, an edited changeset
+ * starts from the beginning. It is deleted when the backfill is complete.
+ * The checkpoint table is excluded from diff and documentation by
+ * {@link LiquibaseTableFilter}.
+ * <p>
+ * With online DDL, see {@link OnlineDdlExecutor}, the chunks run with the
+ * lock_timeout of the session. A chunk which runs into the lock timeout is
+ * rolled back and retried after a backoff, the committed chunks are kept.
+ * <p>
+ * The backfill can be throttled to a number of rows per second and, on
+ * PostgreSQL, to a maximum replay lag of the replicas. Usage in the changelog
+ * (after {@link #register()}):
+ *
+ * <pre>
+ * &lt;ext:backfill tableName="orders" keyColumn="id" set="status_code = upper(status)"
+ *     where="status_code IS NULL" chunkSize="50000" rowsPerSecond="200000" maxReplicaLag="30"/&gt;
+ * </pre>
+ */
+@DatabaseChange(name = "backfill", description = "Updates the rows of a large table in committed chunks",
+		priority = ChangeMetaData.PRIORITY_DEFAULT, appliesTo = "table")
+public class BackfillChange extends AbstractChange {
+
+	private static final Logger LOG = Logger.getLogger(BackfillChange.class.getName());
+
+	/** Suffix of the checkpoint table name, after the changelog table name */
+	static final String CHECKPOINT_TABLE_SUFFIX = "Backfill";
+	private static final int DEFAULT_CHUNK_SIZE = 10_000;
+	private static final long LAG_WAIT_MILLIS = 1000;
+
+	private static boolean registered;
+
+	private String catalogName;
+	private String schemaName;
+	private String tableName;
+	private String keyColumn;
+	private String set;
+	private String where;
+	private Integer chunkSize;
+	private Integer rowsPerSecond;
+	private Integer maxReplicaLag;
+
+	/**
+	 * Let the Liquibase change factory create this change for backfill. The
+	 * registration is global.
+	 */
+	public static synchronized void register() {
+		if (!registered) {
+			ChangeFactory.getInstance().register(BackfillChange.class);
+			registered = true;
+		}
+	}
+
+	@Override
+	public ValidationErrors validate(final Database database) {
+		final ValidationErrors errors = super.validate(database);
+		if (chunkSize != null && chunkSize < 1) {
+			errors.addError("chunkSize must be positive");
+		}
+		return errors;
+	}
+
+	@Override
+	public boolean generateStatementsVolatile(final Database database) {
+		return true;
+	}
+
+	@Override
+	public SqlStatement[] generateStatements(final Database database) {
+		if (!(ExecutorService.getInstance().getExecutor(database) instanceof JdbcExecutor)) {
+			// SQL output shows the backfill as one statement
+			return new SqlStatement[] { new RawSqlStatement("UPDATE " + getEscapedTableName(database) + " SET " + set
+					+ (where == null ? "" : " WHERE " + where)) };
+		}
+		return new SqlStatement[] { new BackfillStatement(database) };
+	}
+
+	@Override
+	public String getConfirmationMessage() {
+		return "Table " + tableName + " backfilled";
+	}
+
+	@DatabaseChangeProperty(mustEqualExisting = "table.catalog")
+	public String getCatalogName() {
+		return catalogName;
+	}
+
+	public void setCatalogName(final String catalogName) {
+		this.catalogName = catalogName;
+	}
+
+	@DatabaseChangeProperty(mustEqualExisting = "table.schema")
+	public String getSchemaName() {
+		return schemaName;
+	}
+
+	public void setSchemaName(final String schemaName) {
+		this.schemaName = schemaName;
+	}
+
+	@DatabaseChangeProperty(description = "Name of the table to update", requiredForDatabase = "all",
+			mustEqualExisting = "table")
+	public String getTableName() {
+		return tableName;
+	}
+
+	public void setTableName(final String tableName) {
+		this.tableName = tableName;
+	}
+
+	@DatabaseChangeProperty(description = "Indexed numeric key column the table is walked by",
+			requiredForDatabase = "all")
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+
+	public void setKeyColumn(final String keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+
+	@DatabaseChangeProperty(description = "SET clause of the update", requiredForDatabase = "all")
+	public String getSet() {
+		return set;
+	}
+
+	public void setSet(final String set) {
+		this.set = set;
+	}
+
+	@DatabaseChangeProperty(description = "Additional condition of the updated rows")
+	public String getWhere() {
+		return where;
+	}
+
+	public void setWhere(final String where) {
+		this.where = where;
+	}
+
+	@DatabaseChangeProperty(description = "Key range of one chunk, 10000 if not set")
+	public Integer getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(final Integer chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	@DatabaseChangeProperty(description = "Maximum number of updated rows per second, unlimited if not set")
+	public Integer getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	public void setRowsPerSecond(final Integer rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+	}
+
+	@DatabaseChangeProperty(description = "Maximum replay lag of the replicas in seconds, PostgreSQL only")
+	public Integer getMaxReplicaLag() {
+		return maxReplicaLag;
+	}
+
+	public void setMaxReplicaLag(final Integer maxReplicaLag) {
+		this.maxReplicaLag = maxReplicaLag;
+	}
+
+	private String getEscapedTableName(final Database database) {
+		return database.escapeTableName(catalogName, schemaName, tableName);
+	}
+
+	/**
+	 * Walks the key range and commits every chunk with its checkpoint when
+	 * executed.
+	 */
+	final class BackfillStatement extends AbstractSqlStatement implements ExecutablePreparedStatement {
+
+		private final Database database;
+		private int lockRetries;
+
+		private BackfillStatement(final Database database) {
+			this.database = database;
+		}
+
+		/**
+		 * Retry a chunk which ran into the lock timeout, none by default.
+		 *
+		 * @param lockRetries - number of retries per chunk
+		 */
+		void setLockRetries(final int lockRetries) {
+			this.lockRetries = lockRetries;
+		}
+
+		@Override
+		public void execute(final PreparedStatementFactory factory) throws DatabaseException {
+			final Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+			final String checkpointTable = database.escapeTableName(database.getLiquibaseCatalogName(),
+					database.getLiquibaseSchemaName(),
+					database.getDatabaseChangeLogTableName() + CHECKPOINT_TABLE_SUFFIX);
+			final String key = database.escapeObjectName(keyColumn, Column.class);
+			final String table = getEscapedTableName(database);
+			final long step = chunkSize == null ? DEFAULT_CHUNK_SIZE : chunkSize;
+			try {
+				createCheckpointTable(connection, checkpointTable);
+				final String checkpointId = getCheckpointId();
+				final long[] range = queryRange(connection, "SELECT MIN(" + key + "), MAX(" + key + ") FROM " + table);
+				if (range == null) {
+					LOG.info("Table " + tableName + " is empty, nothing to backfill");
+					return;
+				}
+				final Long checkpoint = readCheckpoint(connection, checkpointTable, checkpointId);
+				long lower = checkpoint == null ? range[0] : checkpoint + 1;
+				if (checkpoint != null) {
+					LOG.info("Resume backfill of " + tableName + " after key " + checkpoint);
+				}
+				final String update = "UPDATE " + table + " SET " + set + " WHERE " + key + " >= ? AND " + key
+						+ " < ?" + (where == null ? "" : " AND (" + where + ")");
+				final long start = System.currentTimeMillis();
+				long rows = 0;
+				while (lower <= range[1]) {
+					final long upper = Math.min(range[1], lower + step - 1);
+					rows += runChunk(connection, update, lower, upper, checkpointTable, checkpointId);
+					LOG.fine("Backfill of " + tableName + " up to key " + upper + " of " + range[1] + ", " + rows
+							+ " rows");
+					lower = upper + 1;
+					throttle(connection, rows, start);
+				}
+				try (PreparedStatement stmt = connection
+						.prepareStatement("DELETE FROM " + checkpointTable + " WHERE ID = ?")) {
+					stmt.setString(1, checkpointId);
+					stmt.executeUpdate();
+				}
+				commit(connection);
+				LOG.info("Backfilled " + rows + " rows of " + tableName + " in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			} catch (SQLException e) {
+				throw new DatabaseException("Backfill of " + tableName + " failed", e);
+			}
+		}
+
+		/**
+		 * Update the rows of the key range and write the checkpoint in one
+		 * transaction, retried on lock timeout.
+		 *
+		 * @return number of updated rows
+		 */
+		private int runChunk(final Connection connection, final String update, final long lower, final long upper,
+				final String checkpointTable, final String checkpointId) throws SQLException, DatabaseException {
+			for (int attempt = 0;; attempt++) {
+				try {
+					final int rows;
+					try (PreparedStatement stmt = connection.prepareStatement(update)) {
+						stmt.setLong(1, lower);
+						stmt.setLong(2, upper + 1);
+						rows = stmt.executeUpdate();
+					}
+					writeCheckpoint(connection, checkpointTable, checkpointId, upper);
+					commit(connection);
+					return rows;
+				} catch (SQLException e) {
+					if (!OnlineDdlExecutor.isLockTimeout(e) || attempt >= lockRetries
+							|| connection.getAutoCommit()) {
+						throw e;
+					}
+					connection.rollback();
+					OnlineDdlExecutor.backoff(attempt, lockRetries, e);
+				}
+			}
+		}
+
+		/**
+		 * Commit the chunk, unless the changeset runs without transaction.
+		 */
+		private void commit(final Connection connection) throws SQLException, DatabaseException {
+			if (!connection.getAutoCommit()) {
+				database.commit();
+			}
+		}
+
+		private void throttle(final Connection connection, final long rows, final long start) throws SQLException {
+			if (rowsPerSecond != null && rowsPerSecond > 0) {
+				final long due = start + rows * 1000 / rowsPerSecond;
+				sleep(due - System.currentTimeMillis());
+			}
+			if (maxReplicaLag == null || maxReplicaLag <= 0 || !(database instanceof PostgresDatabase)) {
+				return;
+			}
+			double lag;
+			while ((lag = queryReplicaLag(connection)) > maxReplicaLag) {
+				LOG.info("Replica lag " + lag + " s, pause backfill of " + tableName);
+				sleep(LAG_WAIT_MILLIS);
+			}
+		}
+
+		private double queryReplicaLag(final Connection connection) throws SQLException {
+			try (Statement stmt = connection.createStatement();
+					ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(EXTRACT(EPOCH FROM replay_lag)), 0) "
+							+ "FROM pg_stat_replication")) {
+				rs.next();
+				return rs.getDouble(1);
+			} finally {
+				if (!connection.getAutoCommit()) {
+					connection.commit();
+				}
+			}
+		}
+
+		private void sleep(final long millis) {
+			if (millis <= 0) {
+				return;
+			}
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MigrationException("Interrupted during backfill of " + tableName, e);
+			}
+		}
+
+		private long[] queryRange(final Connection connection, final String sql) throws SQLException {
+			try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+				rs.next();
+				final long min = rs.getLong(1);
+				return rs.wasNull() ? null : new long[] { min, rs.getLong(2) };
+			}
+		}
+
+		private void createCheckpointTable(final Connection connection, final String checkpointTable)
+				throws SQLException, DatabaseException {
+			try (Statement stmt = connection.createStatement()) {
+				stmt.executeQuery("SELECT COUNT(*) FROM " + checkpointTable + " WHERE 1 = 0").close();
+				return;
+			} catch (SQLException e) {
+				if (!connection.getAutoCommit()) {
+					connection.rollback();
+				}
+			}
+			try (Statement stmt = connection.createStatement()) {
+				stmt.execute("CREATE TABLE " + checkpointTable + " (ID VARCHAR(64) NOT NULL PRIMARY KEY, "
+						+ "CHANGESET VARCHAR(1000) NOT NULL, LAST_KEY NUMERIC(19) NOT NULL, "
+						+ "UPDATED TIMESTAMP NOT NULL)");
+			}
+			commit(connection);
+			LOG.info("Created backfill checkpoint table " + checkpointTable);
+		}
+
+		private Long readCheckpoint(final Connection connection, final String checkpointTable, final String id)
+				throws SQLException {
+			try (PreparedStatement stmt = connection
+					.prepareStatement("SELECT LAST_KEY FROM " + checkpointTable + " WHERE ID = ?")) {
+				stmt.setString(1, id);
+				try (ResultSet rs = stmt.executeQuery()) {
+					return rs.next() ? rs.getLong(1) : null;
+				}
+			}
+		}
+
+		private void writeCheckpoint(final Connection connection, final String checkpointTable, final String id,
+				final long lastKey) throws SQLException {
+			final Timestamp now = new Timestamp(System.currentTimeMillis());
+			try (PreparedStatement stmt = connection.prepareStatement(
+					"UPDATE " + checkpointTable + " SET LAST_KEY = ?, UPDATED = ? WHERE ID = ?")) {
+				stmt.setLong(1, lastKey);
+				stmt.setTimestamp(2, now);
+				stmt.setString(3, id);
+				if (stmt.executeUpdate() > 0) {
+					return;
+				}
+			}
+			try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + checkpointTable
+					+ " (ID, CHANGESET, LAST_KEY, UPDATED) VALUES (?, ?, ?, ?)")) {
+				stmt.setString(1, id);
+				stmt.setString(2, describeChangeSet());
+				stmt.setLong(3, lastKey);
+				stmt.setTimestamp(4, now);
+				stmt.executeUpdate();
+			}
+		}
+
+		/**
+		 * Changeset identifier and checksum of this change, hashed.
+		 */
+		private String getCheckpointId() {
+			return Hashes.sha256Hex(describeChangeSet() + "::" + generateCheckSum());
+		}
+
+		private String describeChangeSet() {
+			final ChangeSet changeSet = getChangeSet();
+			final String description = changeSet == null ? tableName : changeSet.toString(false);
+			return description.length() > 1000 ? description.substring(0, 1000) : description;
+		}
+	}
+}
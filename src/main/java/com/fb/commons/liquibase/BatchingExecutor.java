@@ -0,0 +1,558 @@
+package com.fb.commons.liquibase;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import liquibase.change.Change;
+import liquibase.change.core.DeleteDataChange;
+import liquibase.change.core.EmptyChange;
+import liquibase.change.core.InsertDataChange;
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.OutputChange;
+import liquibase.change.core.TagDatabaseChange;
+import liquibase.change.core.UpdateDataChange;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.ChangeExecListener;
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.PreconditionErrorException;
+import liquibase.exception.PreconditionFailedException;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.executor.jvm.RowMapper;
+import liquibase.precondition.core.PreconditionContainer;
+import liquibase.sql.visitor.SqlVisitor;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.DeleteStatement;
+import liquibase.statement.core.InsertSetStatement;
+import liquibase.statement.core.InsertStatement;
+import liquibase.statement.core.LockDatabaseChangeLogStatement;
+import liquibase.statement.core.MarkChangeSetRanStatement;
+import liquibase.statement.core.UnlockDatabaseChangeLogStatement;
+import liquibase.statement.core.UpdateStatement;
+
+/**
+ * Executor which collects consecutive insert, update and delete statements and
+ * sends them as one JDBC batch. The batch is sent when it is full, before any
+ * other statement or query, and before the transaction is committed, so the
+ * statements of a changeset still run in their order and in its transaction.
+ * The batch is also sent at the end of every changeset, so a failing batch
+ * fails its changeset like a failing single statement, even if the changeset
+ * does not run in a transaction. The listener of
+ * {@link #getChangeExecListener(ChangeExecListener)} must be set for this.
+ * <p>
+ * On PostgreSQL inserts with plain values are sent as prepared statements, the
+ * values bound as untyped parameters like literals. The driver rewrites the
+ * batches of consecutive inserts into the same table and columns into
+ * multi-row inserts, the connection is opened with reWriteBatchedInserts, see
+ * {@link DatabaseBuilder}. Inserts with computed values or SQL visitors and all
+ * other statements are batched as SQL text.
+ * <p>
+ * With a group size of 2 or more consecutive changesets are committed
+ * together, see {@link #getChangeExecListener(ChangeExecListener)}. Their
+ * changelog history rows are kept back and inserted as one batch right before
+ * the commit. A savepoint is taken before every changeset of a group; if a
+ * changeset fails, only its work is rolled back and the changesets before it
+ * are committed with their history rows, as without grouping. Changesets
+ * which must not share a transaction start a new group: changesets with
+ * runInTransaction="false", and on databases without transactional DDL all
+ * changesets with other changes than data changes.
+ */
+public class BatchingExecutor extends JdbcExecutor {
+
+	private static final Logger LOG = Logger.getLogger(BatchingExecutor.class.getName());
+
+	private final int batchSize;
+	private final int groupSize;
+	private final List<BatchStatement> batch = new ArrayList<>();
+	// history rows of the changesets of the open group
+	private final List<BatchStatement> history = new ArrayList<>();
+
+	private DatabaseConnection originalConnection;
+	private FlushingConnection flushingConnection;
+	private boolean grouping;
+	private int groupChangeSets;
+	private Savepoint savepoint;
+
+	/**
+	 * @param batchSize - maximum number of statements per batch, no batching if
+	 *                  less than 2
+	 */
+	public BatchingExecutor(final int batchSize) {
+		this(batchSize, 1);
+	}
+
+	/**
+	 * @param batchSize - maximum number of statements per batch, no batching if
+	 *                  less than 2
+	 * @param groupSize - maximum number of changesets per commit, no grouping if
+	 *                  less than 2
+	 */
+	public BatchingExecutor(final int batchSize, final int groupSize) {
+		this.batchSize = batchSize;
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Use this executor for all statements of the given database, until
+	 * {@link #uninstall()} is called.
+	 *
+	 * @param database
+	 * @return this executor
+	 */
+	public BatchingExecutor install(final Database database) {
+		final DatabaseConnection connection = database.getConnection();
+		if (!(connection instanceof JdbcConnection)) {
+			throw new MigrationException("Batching needs a JDBC connection");
+		}
+		setDatabase(database);
+		originalConnection = connection;
+		flushingConnection = new FlushingConnection(((JdbcConnection) connection).getUnderlyingConnection());
+		database.setConnection(flushingConnection);
+		ExecutorService.getInstance().setExecutor(database, this);
+		return this;
+	}
+
+	/**
+	 * Restore the default executor and the original connection. The changesets
+	 * of an open group completed and are committed. Statements which are still
+	 * pending otherwise were not committed and are dropped.
+	 */
+	public void uninstall() {
+		if (groupChangeSets > 0) {
+			try {
+				commitGroup();
+			} catch (DatabaseException e) {
+				LOG.warning("Could not commit last group of changesets: " + e.getMessage());
+			}
+		}
+		grouping = false;
+		if (!batch.isEmpty()) {
+			LOG.warning("Drop " + batch.size() + " uncommitted batched statements");
+			batch.clear();
+		}
+		ExecutorService.getInstance().clearExecutor(database);
+		database.setConnection(originalConnection);
+	}
+
+	/**
+	 * Listener which sends the batch at the end of every changeset and opens and
+	 * closes the commit groups, it must be set on the Liquibase instance.
+	 *
+	 * @param delegate - listener which is called after this one, may be null
+	 * @return listener
+	 */
+	public ChangeExecListener getChangeExecListener(final ChangeExecListener delegate) {
+		return new GroupListener(delegate);
+	}
+
+	@Override
+	public void execute(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException {
+		final List<SqlVisitor> visitors = sqlVisitors == null ? Collections.<SqlVisitor>emptyList() : sqlVisitors;
+		if (grouping && sql instanceof MarkChangeSetRanStatement) {
+			addSql(history, applyVisitors(sql, visitors));
+			return;
+		}
+		if (batchSize < 2 || !isBatchable(sql)) {
+			flush();
+			executeStatement(sql, sqlVisitors);
+			return;
+		}
+		final BatchStatement insert = visitors.isEmpty() ? prepareInsert(sql) : null;
+		if (insert != null) {
+			batch.add(insert);
+		} else {
+			addSql(batch, applyVisitors(sql, visitors));
+		}
+		if (batch.size() >= batchSize) {
+			flush();
+		}
+	}
+
+	@Override
+	public int update(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException {
+		if (isLockStatement(sql)) {
+			// the lock table must be committed right away, the open group before it
+			if (groupChangeSets > 0) {
+				commitGroup();
+			}
+			grouping = false;
+		}
+		flush();
+		return super.update(sql, sqlVisitors);
+	}
+
+	// all public queries of JdbcExecutor end here
+	@Override
+	@SuppressWarnings("rawtypes")
+	public List query(final SqlStatement sql, final RowMapper rowMapper, final List<SqlVisitor> sqlVisitors)
+			throws DatabaseException {
+		flush();
+		return super.query(sql, rowMapper, sqlVisitors);
+	}
+
+	/**
+	 * @param sql
+	 * @return true if the statement locks or unlocks the changelog lock table
+	 */
+	static boolean isLockStatement(final SqlStatement sql) {
+		return sql instanceof LockDatabaseChangeLogStatement || sql instanceof UnlockDatabaseChangeLogStatement;
+	}
+
+	/**
+	 * Send the pending statements as one batch.
+	 */
+	public void flush() throws DatabaseException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		final List<BatchStatement> statements = new ArrayList<>(batch);
+		batch.clear();
+		executeBatch(statements);
+	}
+
+	/**
+	 * Commit the open group now: send the pending batch, insert the kept back
+	 * history rows and commit. Called before the changelog lock is released.
+	 */
+	public void commitGroup() throws DatabaseException {
+		flush();
+		if (!history.isEmpty()) {
+			final List<BatchStatement> statements = new ArrayList<>(history);
+			history.clear();
+			executeBatch(statements);
+		}
+		if (groupChangeSets > 1) {
+			LOG.fine("Commit group of " + groupChangeSets + " changesets");
+		}
+		groupChangeSets = 0;
+		savepoint = null;
+		flushingConnection.commitNow();
+	}
+
+	/**
+	 * Execute a statement which is not batched.
+	 */
+	protected void executeStatement(final SqlStatement sql, final List<SqlVisitor> sqlVisitors)
+			throws DatabaseException {
+		super.execute(sql, sqlVisitors);
+	}
+
+	/**
+	 * Send the given statements in order, consecutive prepared statements with
+	 * the same SQL and consecutive SQL texts as one JDBC batch each.
+	 */
+	protected void executeBatch(final List<BatchStatement> statements) throws DatabaseException {
+		LOG.fine("Execute batch of " + statements.size() + " statements");
+		final Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+		int start = 0;
+		try {
+			while (start < statements.size()) {
+				int end = start + 1;
+				while (end < statements.size() && statements.get(start).isSameBatch(statements.get(end))) {
+					end++;
+				}
+				executeBatch(connection, statements.subList(start, end));
+				start = end;
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException("Batch of " + statements.size() + " statements failed, first statement: "
+					+ statements.get(start).sql + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static void executeBatch(final Connection connection, final List<BatchStatement> statements)
+			throws SQLException {
+		if (statements.get(0).values == null) {
+			try (Statement stmt = connection.createStatement()) {
+				for (BatchStatement statement : statements) {
+					stmt.addBatch(statement.sql);
+				}
+				stmt.executeBatch();
+			}
+			return;
+		}
+		try (PreparedStatement stmt = connection.prepareStatement(statements.get(0).sql)) {
+			for (BatchStatement statement : statements) {
+				for (int i = 0; i < statement.values.size(); i++) {
+					// untyped like a literal, PostgreSQL casts it to the column type
+					stmt.setObject(i + 1, statement.values.get(i), Types.OTHER);
+				}
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		}
+	}
+
+	/**
+	 * Insert as prepared statement, on PostgreSQL only and if all values can be
+	 * bound as parameters.
+	 *
+	 * @return statement or null if the insert must be sent as SQL text
+	 */
+	private BatchStatement prepareInsert(final SqlStatement sql) {
+		if (!(database instanceof PostgresDatabase) || !(sql instanceof InsertStatement)) {
+			return null;
+		}
+		final InsertStatement insert = (InsertStatement) sql;
+		final StringBuilder columns = new StringBuilder();
+		final StringBuilder parameters = new StringBuilder();
+		final List<String> values = new ArrayList<>();
+		for (Map.Entry<String, Object> column : insert.getColumnValues().entrySet()) {
+			final Object value = column.getValue();
+			if (value != null && !(value instanceof String || value instanceof Number || value instanceof Boolean
+					|| value instanceof Date)) {
+				// computed values and sequences are only known as SQL
+				return null;
+			}
+			columns.append(columns.length() == 0 ? "" : ", ").append(database.escapeColumnName(
+					insert.getCatalogName(), insert.getSchemaName(), insert.getTableName(), column.getKey()));
+			parameters.append(parameters.length() == 0 ? "?" : ", ?");
+			values.add(toParameter(value));
+		}
+		if (values.isEmpty()) {
+			return null;
+		}
+		return new BatchStatement("INSERT INTO " + database.escapeTableName(insert.getCatalogName(),
+				insert.getSchemaName(), insert.getTableName()) + " (" + columns + ") VALUES (" + parameters + ")",
+				values);
+	}
+
+	private static String toParameter(final Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (value instanceof BigDecimal) {
+			return ((BigDecimal) value).toPlainString();
+		}
+		if (value instanceof Date && !(value instanceof java.sql.Date || value instanceof java.sql.Time
+				|| value instanceof Timestamp)) {
+			return new Timestamp(((Date) value).getTime()).toString();
+		}
+		return value.toString();
+	}
+
+	private static void addSql(final List<BatchStatement> statements, final String[] sql) {
+		for (String statement : sql) {
+			statements.add(new BatchStatement(statement, null));
+		}
+	}
+
+	private static boolean isBatchable(final SqlStatement sql) {
+		return sql instanceof InsertStatement || sql instanceof InsertSetStatement || sql instanceof UpdateStatement
+				|| sql instanceof DeleteStatement;
+	}
+
+	private boolean isGroupable(final ChangeSet changeSet) {
+		if (!changeSet.isRunInTransaction()) {
+			return false;
+		}
+		// commits its own chunks
+		for (Change change : changeSet.getChanges()) {
+			if (change instanceof BackfillChange) {
+				return false;
+			}
+		}
+		if (database instanceof PostgresDatabase) {
+			return true;
+		}
+		// DDL commits implicitly
+		for (Change change : changeSet.getChanges()) {
+			if (!(change instanceof InsertDataChange || change instanceof UpdateDataChange
+					|| change instanceof DeleteDataChange || change instanceof LoadDataChange
+					|| change instanceof TagDatabaseChange || change instanceof EmptyChange
+					|| change instanceof OutputChange)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Start a new group if the changeset cannot join the open one, and take the
+	 * savepoint the changeset is rolled back to if it fails.
+	 */
+	private void beforeChangeSet(final ChangeSet changeSet) throws DatabaseException {
+		final boolean groupable = isGroupable(changeSet);
+		if (!groupable || groupChangeSets >= groupSize) {
+			commitGroup();
+		}
+		grouping = groupable;
+		if (grouping && groupChangeSets > 0) {
+			final Savepoint previous = savepoint;
+			savepoint = flushingConnection.setSavepoint();
+			if (previous != null && database instanceof PostgresDatabase) {
+				flushingConnection.releaseSavepoint(previous);
+			}
+		}
+	}
+
+	/**
+	 * Sends the pending batch before a commit and drops it on rollback.
+	 * Liquibase commits through the connection, not through the executor.
+	 * Inside a group the commit is deferred and a rollback only rolls back the
+	 * current changeset.
+	 */
+	private final class FlushingConnection extends JdbcConnection {
+
+		private FlushingConnection(final Connection connection) {
+			super(connection);
+		}
+
+		@Override
+		public void commit() throws DatabaseException {
+			if (grouping) {
+				flush();
+				return;
+			}
+			commitGroup();
+		}
+
+		@Override
+		public void rollback() throws DatabaseException {
+			batch.clear();
+			if (grouping && savepoint != null) {
+				super.rollback(savepoint);
+				savepoint = null;
+				commitGroup();
+				return;
+			}
+			super.rollback();
+		}
+
+		private void commitNow() throws DatabaseException {
+			super.commit();
+		}
+	}
+
+	/**
+	 * Statement of a batch, SQL text or prepared statement with its parameters.
+	 */
+	static final class BatchStatement {
+
+		private final String sql;
+		// null for SQL text
+		private final List<String> values;
+
+		private BatchStatement(final String sql, final List<String> values) {
+			this.sql = sql;
+			this.values = values;
+		}
+
+		private boolean isSameBatch(final BatchStatement other) {
+			return values == null ? other.values == null : other.values != null && sql.equals(other.sql);
+		}
+	}
+
+	/**
+	 * Sends the batch at the end of every changeset, opens the groups and counts
+	 * their changesets, then calls the delegate.
+	 */
+	private final class GroupListener implements ChangeExecListener {
+
+		private final ChangeExecListener delegate;
+
+		private GroupListener(final ChangeExecListener delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void willRun(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+				final Database database, final ChangeSet.RunStatus runStatus) {
+			if (groupSize > 1) {
+				try {
+					beforeChangeSet(changeSet);
+				} catch (DatabaseException e) {
+					throw new MigrationException("Could not commit group of changesets before " + changeSet, e);
+				}
+			}
+			if (delegate != null) {
+				delegate.willRun(changeSet, databaseChangeLog, database, runStatus);
+			}
+		}
+
+		@Override
+		public void ran(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog, final Database database,
+				final ChangeSet.ExecType execType) {
+			if (grouping) {
+				groupChangeSets++;
+			}
+			if (delegate != null) {
+				delegate.ran(changeSet, databaseChangeLog, database, execType);
+			}
+		}
+
+		@Override
+		public void rolledBack(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+				final Database database) {
+			if (delegate != null) {
+				delegate.rolledBack(changeSet, databaseChangeLog, database);
+			}
+		}
+
+		@Override
+		public void preconditionFailed(final PreconditionFailedException error,
+				final PreconditionContainer.FailOption onFail) {
+			if (delegate != null) {
+				delegate.preconditionFailed(error, onFail);
+			}
+		}
+
+		@Override
+		public void preconditionErrored(final PreconditionErrorException error,
+				final PreconditionContainer.ErrorOption onError) {
+			if (delegate != null) {
+				delegate.preconditionErrored(error, onError);
+			}
+		}
+
+		@Override
+		public void willRun(final Change change, final ChangeSet changeSet, final DatabaseChangeLog changeLog,
+				final Database database) {
+			if (delegate != null) {
+				delegate.willRun(change, changeSet, changeLog, database);
+			}
+		}
+
+		@Override
+		public void ran(final Change change, final ChangeSet changeSet, final DatabaseChangeLog changeLog,
+				final Database database) {
+			final List<Change> changes = changeSet.getChanges();
+			if (change == changes.get(changes.size() - 1)) {
+				try {
+					// fails the changeset, not the history row written after it
+					flush();
+				} catch (DatabaseException e) {
+					throw new MigrationException("Batch of " + changeSet + " failed", e);
+				}
+			}
+			if (delegate != null) {
+				delegate.ran(change, changeSet, changeLog, database);
+			}
+		}
+
+		@Override
+		public void runFailed(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+				final Database database, final Exception exception) {
+			if (delegate != null) {
+				delegate.runFailed(changeSet, databaseChangeLog, database, exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.fb.commons.liquibase;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.ChangeLogParser;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.ParsedNode;
+import liquibase.parser.core.ParsedNodeException;
+import liquibase.parser.core.xml.XMLChangeLogSAXParser;
+import liquibase.resource.ResourceAccessor;
+import liquibase.util.StreamUtil;
+
+/**
+ * XML changelog parser which keeps the parsed node tree of every changelog
+ * file in a binary cache file. The cache entry of a file is keyed by its
+ * location and validated against the SHA-256 hash of its content, so an edited
+ * file only invalidates its own entry. Included files are parsed through the
+ * same parser and therefore cached separately.
+ * <p>
+ * Only the SAX parsing (including XSD validation) is skipped. Changelog
+ * parameters are expanded later while loading the node tree, so the cached
+ * nodes are independent of the stage.
+ * <p>
+ * The serialized node trees are also kept in memory for long running
+ * processes like the {@link MigrationDaemon}. Without cache directory only
+ * the memory cache is used.
+ */
+public class CachingChangeLogParser extends XMLChangeLogSAXParser {
+
+	private static final Logger LOG = Logger.getLogger(CachingChangeLogParser.class.getName());
+
+	private static final int FORMAT_VERSION = 1;
+	private static final String CACHE_SUFFIX = ".node";
+
+	private final Path cacheDirectory;
+	private final Map<String, byte[]> memoryCache = new ConcurrentHashMap<>();
+
+	public CachingChangeLogParser(final Path cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Register a caching parser for the given directory, unless one is already
+	 * registered.
+	 *
+	 * @param cacheDirectory - directory for the cache files, null for a memory
+	 *                       only cache
+	 */
+	public static synchronized void register(final Path cacheDirectory) {
+		for (ChangeLogParser parser : ChangeLogParserFactory.getInstance().getParsers()) {
+			if (parser instanceof CachingChangeLogParser) {
+				return;
+			}
+		}
+		if (cacheDirectory != null) {
+			try {
+				Files.createDirectories(cacheDirectory);
+			} catch (IOException e) {
+				throw new MigrationException("Cannot create changelog cache directory " + cacheDirectory, e);
+			}
+		}
+		LOG.info("Use changelog cache " + (cacheDirectory != null ? cacheDirectory : "in memory"));
+		ChangeLogParserFactory.getInstance().register(new CachingChangeLogParser(cacheDirectory));
+	}
+
+	@Override
+	public int getPriority() {
+		return super.getPriority() + 1;
+	}
+
+	@Override
+	protected ParsedNode parseToNode(final String physicalChangeLogLocation,
+			final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor)
+			throws ChangeLogParseException {
+		final byte[] contentHash = hashContent(physicalChangeLogLocation, resourceAccessor);
+		if (contentHash == null) {
+			// let the XML parser report the missing file
+			return super.parseToNode(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
+		}
+
+		final byte[] memoryEntry = memoryCache.get(physicalChangeLogLocation);
+		if (memoryEntry != null) {
+			final ParsedNode cached = readCache(memoryEntry, contentHash, physicalChangeLogLocation);
+			if (cached != null) {
+				LOG.fine("Changelog memory cache hit: " + physicalChangeLogLocation);
+				return cached;
+			}
+		}
+
+		final Path cacheFile = cacheDirectory == null ? null
+				: cacheDirectory.resolve(Hashes.sha256Hex(physicalChangeLogLocation) + CACHE_SUFFIX);
+		final byte[] fileEntry = readCacheFile(cacheFile);
+		if (fileEntry != null) {
+			final ParsedNode cached = readCache(fileEntry, contentHash, physicalChangeLogLocation);
+			if (cached != null) {
+				LOG.fine("Changelog cache hit: " + physicalChangeLogLocation);
+				memoryCache.put(physicalChangeLogLocation, fileEntry);
+				return cached;
+			}
+		}
+
+		LOG.fine("Changelog cache miss: " + physicalChangeLogLocation);
+		final ParsedNode node = super.parseToNode(physicalChangeLogLocation, changeLogParameters, resourceAccessor);
+		final byte[] entry = writeEntry(contentHash, node, physicalChangeLogLocation);
+		if (entry != null) {
+			memoryCache.put(physicalChangeLogLocation, entry);
+			writeCacheFile(cacheFile, entry);
+		}
+		return node;
+	}
+
+	private byte[] hashContent(final String location, final ResourceAccessor resourceAccessor) {
+		try (InputStream in = StreamUtil.singleInputStream(location, resourceAccessor)) {
+			if (in == null) {
+				return null;
+			}
+			return Hashes.sha256(in);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private byte[] readCacheFile(final Path cacheFile) {
+		if (cacheFile == null || !Files.isRegularFile(cacheFile)) {
+			return null;
+		}
+		try {
+			return Files.readAllBytes(cacheFile);
+		} catch (IOException e) {
+			LOG.warning("Ignore unreadable changelog cache file " + cacheFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private ParsedNode readCache(final byte[] entry, final byte[] contentHash, final String location) {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+			if (in.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			final byte[] cachedHash = new byte[in.readUnsignedByte()];
+			in.readFully(cachedHash);
+			if (!Arrays.equals(cachedHash, contentHash)) {
+				return null;
+			}
+			return readNode(in);
+		} catch (IOException | ParsedNodeException e) {
+			LOG.warning("Ignore unreadable changelog cache entry of " + location + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private byte[] writeEntry(final byte[] contentHash, final ParsedNode node, final String location) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeInt(FORMAT_VERSION);
+				out.writeByte(contentHash.length);
+				out.write(contentHash);
+				writeNode(out, node);
+			}
+			return bytes.toByteArray();
+		} catch (IOException | IllegalStateException e) {
+			LOG.warning("Could not cache changelog " + location + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void writeCacheFile(final Path cacheFile, final byte[] entry) {
+		if (cacheFile == null) {
+			return;
+		}
+		try {
+			// write to a temporary file first, concurrent runs must never see half a file
+			final Path tempFile = Files.createTempFile(cacheDirectory, "changelog", ".tmp");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+				out.write(entry);
+			}
+			Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.warning("Could not write changelog cache file " + cacheFile + ": " + e.getMessage());
+		}
+	}
+
+	private void writeNode(final DataOutputStream out, final ParsedNode node) throws IOException {
+		writeString(out, node.getNamespace());
+		writeString(out, node.getName());
+		final Object value = node.getValue();
+		if (value != null && !(value instanceof String)) {
+			throw new IllegalStateException("Unsupported node value " + value.getClass().getName());
+		}
+		writeString(out, (String) value);
+		out.writeInt(node.getChildren().size());
+		for (ParsedNode child : node.getChildren()) {
+			writeNode(out, child);
+		}
+	}
+
+	private ParsedNode readNode(final DataInputStream in) throws IOException, ParsedNodeException {
+		final ParsedNode node = new ParsedNode(readString(in), readString(in));
+		final String value = readString(in);
+		if (value != null) {
+			node.setValue(value);
+		}
+		final int children = in.readInt();
+		for (int i = 0; i < children; i++) {
+			node.addChild(readNode(in));
+		}
+		return node;
+	}
+
+	private void writeString(final DataOutputStream out, final String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private String readString(final DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
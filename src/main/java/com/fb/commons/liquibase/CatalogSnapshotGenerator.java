@@ -0,0 +1,827 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TypeInfo;
+
+import liquibase.database.Database;
+import liquibase.database.core.OracleDatabase;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.snapshot.CachedRow;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.InvalidExampleException;
+import liquibase.snapshot.SnapshotGenerator;
+import liquibase.snapshot.SnapshotGeneratorChain;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.snapshot.jvm.ColumnSnapshotGenerator;
+import liquibase.snapshot.jvm.ColumnSnapshotGeneratorOracle;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Column;
+import liquibase.structure.core.Data;
+import liquibase.structure.core.ForeignKey;
+import liquibase.structure.core.ForeignKeyConstraintType;
+import liquibase.structure.core.Index;
+import liquibase.structure.core.PrimaryKey;
+import liquibase.structure.core.Relation;
+import liquibase.structure.core.Schema;
+import liquibase.structure.core.Table;
+import liquibase.structure.core.UniqueConstraint;
+import liquibase.structure.core.View;
+
+/**
+ * Snapshot of a schema from a few bulk queries on the system catalog
+ * (PostgreSQL) or the data dictionary (Oracle) instead of DatabaseMetaData
+ * calls per table, column, key and index. The relations, columns, constraints
+ * and indexes of a schema are read once when the first of its objects is
+ * requested and the objects are built in memory, so the number of queries
+ * does not grow with the number of objects.
+ * <p>
+ * Only snapshots of whole schemas (DIFF, DBDOC, DROPALL) use the catalog,
+ * snapshots of single objects, e.g. the changelog table checks of UPDATE, and
+ * objects of other schemas are left to the standard generators. The listing of
+ * the schema, sequences and data are left to them, too. Column types and
+ * defaults are parsed by the standard column generators from rows shaped like
+ * the ones of the JDBC driver.
+ */
+public class CatalogSnapshotGenerator implements SnapshotGenerator {
+
+	private static final Logger LOG = Logger.getLogger(CatalogSnapshotGenerator.class.getName());
+
+	private static boolean registered;
+
+	// per snapshot, the scratch data getter of DatabaseSnapshot is deprecated
+	private static final Map<DatabaseSnapshot, SnapshotCatalog> SNAPSHOTS = Collections
+			.synchronizedMap(new WeakHashMap<>());
+
+	private static final List<Class<? extends DatabaseObject>> TYPES = Arrays.asList(Schema.class,
+			Table.class, View.class, Column.class, PrimaryKey.class, UniqueConstraint.class, Index.class,
+			ForeignKey.class);
+
+	// NAME, TYPE, REMARKS, TABLESPACE, DEFINITION
+	private static final String PG_RELATIONS = "SELECT c.relname, CASE c.relkind WHEN 'v' THEN 'VIEW' "
+			+ "ELSE 'TABLE' END, obj_description(c.oid, 'pg_class'), NULL, CASE c.relkind WHEN 'v' "
+			+ "THEN pg_get_viewdef(c.oid) END FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "WHERE n.nspname = ? AND c.relkind IN ('r', 'p', 'v')";
+
+	// the identity expression is replaced for servers before 10
+	private static final String PG_COLUMNS = "SELECT c.relname, a.attname, a.atttypid, a.atttypmod, t.typtype, "
+			+ "t.typbasetype, t.typtypmod, a.attnotnull OR (t.typtype = 'd' AND t.typnotnull), "
+			+ "pg_get_expr(d.adbin, d.adrelid), col_description(c.oid, a.attnum), "
+			+ "row_number() OVER (PARTITION BY a.attrelid ORDER BY a.attnum), %s "
+			+ "FROM pg_attribute a JOIN pg_class c ON c.oid = a.attrelid "
+			+ "JOIN pg_namespace n ON n.oid = c.relnamespace JOIN pg_type t ON t.oid = a.atttypid "
+			+ "LEFT JOIN pg_attrdef d ON d.adrelid = a.attrelid AND d.adnum = a.attnum "
+			+ "WHERE n.nspname = ? AND c.relkind IN ('r', 'p', 'v') AND a.attnum > 0 AND NOT a.attisdropped "
+			+ "ORDER BY c.relname, a.attnum";
+
+	// TABLE, NAME, TYPE, COLUMN, POSITION, INDEX, REF_SCHEMA, REF_TABLE, REF_COLUMN, UPDATE_RULE,
+	// DELETE_RULE, DEFERRABLE, DEFERRED, VALIDATED, DISABLED, TABLESPACE
+	private static final String PG_CONSTRAINTS = "SELECT t.relname, con.conname, "
+			+ "CASE con.contype WHEN 'f' THEN 'R' ELSE upper(con.contype::text) END, a.attname, k.pos, i.relname, "
+			+ "rn.nspname, rt.relname, ra.attname, " + pgRule("con.confupdtype") + ", "
+			+ pgRule("con.confdeltype") + ", CASE WHEN con.condeferrable THEN 'Y' ELSE 'N' END, "
+			+ "CASE WHEN con.condeferred THEN 'Y' ELSE 'N' END, CASE WHEN con.convalidated THEN 'Y' ELSE 'N' END, "
+			+ "'N', NULL FROM pg_constraint con JOIN pg_namespace n ON n.oid = con.connamespace "
+			+ "JOIN pg_class t ON t.oid = con.conrelid "
+			+ "CROSS JOIN LATERAL unnest(con.conkey) WITH ORDINALITY k(attnum, pos) "
+			+ "JOIN pg_attribute a ON a.attrelid = con.conrelid AND a.attnum = k.attnum "
+			+ "LEFT JOIN pg_class i ON i.oid = con.conindid AND con.contype <> 'f' "
+			+ "LEFT JOIN pg_class rt ON rt.oid = con.confrelid LEFT JOIN pg_namespace rn ON rn.oid = rt.relnamespace "
+			+ "LEFT JOIN pg_attribute ra ON ra.attrelid = con.confrelid AND ra.attnum = con.confkey[k.pos::int] "
+			+ "WHERE n.nspname = ? AND con.contype IN ('p', 'u', 'f') ORDER BY t.relname, con.conname, k.pos";
+
+	// TABLE, NAME, UNIQUE, POSITION, COLUMN, EXPRESSION, DESCENDING, TABLESPACE
+	// the key column count is replaced for servers before 11, which have no INCLUDE columns
+	private static final String PG_INDEXES = "SELECT t.relname, i.relname, "
+			+ "CASE WHEN x.indisunique THEN 'Y' ELSE 'N' END, k.pos, a.attname, CASE WHEN k.attnum = 0 "
+			+ "THEN pg_get_indexdef(x.indexrelid, k.pos::int, false) END, "
+			+ "CASE WHEN x.indoption[(k.pos - 1)::int]::int & 1 = 1 THEN 'Y' ELSE 'N' END, NULL "
+			+ "FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid JOIN pg_class t ON t.oid = x.indrelid "
+			+ "JOIN pg_namespace n ON n.oid = t.relnamespace "
+			+ "CROSS JOIN LATERAL unnest(x.indkey::int2[]) WITH ORDINALITY k(attnum, pos) "
+			+ "LEFT JOIN pg_attribute a ON a.attrelid = x.indrelid AND a.attnum = k.attnum AND k.attnum > 0 "
+			+ "WHERE n.nspname = ? AND k.pos <= %s ORDER BY t.relname, i.relname, k.pos";
+
+	private static final String ORA_TABLESPACE = "CASE WHEN %s = (SELECT default_tablespace FROM user_users) "
+			+ "THEN NULL ELSE %<s END";
+
+	private static final String ORA_TABLES = "SELECT t.table_name, 'TABLE', c.comments, "
+			+ String.format(ORA_TABLESPACE, "t.tablespace_name") + ", NULL FROM all_tables t "
+			+ "LEFT JOIN all_tab_comments c ON c.owner = t.owner AND c.table_name = t.table_name "
+			+ "WHERE t.owner = ? AND t.table_name NOT LIKE 'BIN$%'";
+
+	// the view text is a LONG and cannot be part of a UNION
+	private static final String ORA_VIEWS = "SELECT v.view_name, 'VIEW', c.comments, NULL, v.text FROM all_views v "
+			+ "LEFT JOIN all_tab_comments c ON c.owner = v.owner AND c.table_name = v.view_name WHERE v.owner = ?";
+
+	// same columns as the bulk query of Liquibase, read by the Oracle column generator
+	private static final String ORA_COLUMNS = "SELECT NULL AS TABLE_CAT, c.OWNER AS TABLE_SCHEM, "
+			+ "'NO' AS IS_AUTOINCREMENT, cc.COMMENTS AS REMARKS, c.TABLE_NAME, c.COLUMN_NAME, "
+			+ "c.DATA_TYPE AS DATA_TYPE_NAME, c.DATA_TYPE_MOD, c.DATA_TYPE_OWNER, DECODE(c.DATA_TYPE, 'CHAR', 1, "
+			+ "'VARCHAR2', 12, 'NUMBER', 3, 'LONG', -1, 'DATE', 93, 'RAW', -3, 'LONG RAW', -4, 'BLOB', 2004, "
+			+ "'CLOB', 2005, 'BFILE', -13, 'FLOAT', 6, 'TIMESTAMP(6)', 93, 'TIMESTAMP(6) WITH TIME ZONE', -101, "
+			+ "'TIMESTAMP(6) WITH LOCAL TIME ZONE', -102, 'INTERVAL YEAR(2) TO MONTH', -103, "
+			+ "'INTERVAL DAY(2) TO SECOND(6)', -104, 'BINARY_FLOAT', 100, 'BINARY_DOUBLE', 101, 'XMLTYPE', 2009, "
+			+ "1111) AS DATA_TYPE, DECODE(c.CHAR_USED, 'C', c.CHAR_LENGTH, c.DATA_LENGTH) AS DATA_LENGTH, "
+			+ "c.DATA_PRECISION, c.DATA_SCALE, c.NULLABLE, c.COLUMN_ID AS ORDINAL_POSITION, c.DEFAULT_LENGTH, "
+			+ "c.DATA_DEFAULT, c.NUM_BUCKETS, c.CHARACTER_SET_NAME, c.CHAR_COL_DECL_LENGTH, c.CHAR_LENGTH, "
+			+ "c.CHAR_USED, c.VIRTUAL_COLUMN FROM ALL_TAB_COLS c JOIN ALL_COL_COMMENTS cc "
+			+ "ON cc.OWNER = c.OWNER AND cc.TABLE_NAME = c.TABLE_NAME AND cc.COLUMN_NAME = c.COLUMN_NAME "
+			+ "WHERE c.OWNER = ? AND c.HIDDEN_COLUMN = 'NO' ORDER BY c.TABLE_NAME, c.COLUMN_ID";
+
+	// update rules are not supported by Oracle, NO ACTION is reported as RESTRICT like Liquibase does
+	private static final String ORA_CONSTRAINTS = "SELECT c.table_name, c.constraint_name, c.constraint_type, "
+			+ "cc.column_name, cc.position, c.index_name, c.r_owner, r.table_name, rc.column_name, 'RESTRICT', "
+			+ "DECODE(c.delete_rule, 'CASCADE', 'CASCADE', 'SET NULL', 'SET NULL', 'RESTRICT'), "
+			+ "DECODE(c.deferrable, 'DEFERRABLE', 'Y', 'N'), DECODE(c.deferred, 'DEFERRED', 'Y', 'N'), "
+			+ "DECODE(c.validated, 'VALIDATED', 'Y', 'N'), DECODE(c.status, 'DISABLED', 'Y', 'N'), "
+			+ String.format(ORA_TABLESPACE, "i.tablespace_name") + " FROM all_constraints c "
+			+ "JOIN all_cons_columns cc ON cc.owner = c.owner AND cc.constraint_name = c.constraint_name "
+			+ "LEFT JOIN all_constraints r ON r.owner = c.r_owner AND r.constraint_name = c.r_constraint_name "
+			+ "LEFT JOIN all_cons_columns rc ON rc.owner = r.owner AND rc.constraint_name = r.constraint_name "
+			+ "AND rc.position = cc.position "
+			+ "LEFT JOIN all_indexes i ON i.owner = c.index_owner AND i.index_name = c.index_name "
+			+ "WHERE c.owner = ? AND c.constraint_type IN ('P', 'U', 'R') AND c.table_name NOT LIKE 'BIN$%' "
+			+ "ORDER BY c.table_name, c.constraint_name, cc.position";
+
+	private static final String ORA_INDEXES = "SELECT c.table_name, c.index_name, "
+			+ "DECODE(i.uniqueness, 'UNIQUE', 'Y', 'N'), c.column_position, c.column_name, e.column_expression, "
+			+ "DECODE(c.descend, 'DESC', 'Y', 'N'), " + String.format(ORA_TABLESPACE, "i.tablespace_name")
+			+ " FROM all_ind_columns c JOIN all_indexes i ON i.owner = c.index_owner AND i.index_name = c.index_name "
+			+ "LEFT JOIN all_ind_expressions e ON e.index_owner = c.index_owner AND e.index_name = c.index_name "
+			+ "AND e.column_position = c.column_position "
+			+ "WHERE c.table_owner = ? AND i.index_type <> 'LOB' AND c.table_name NOT LIKE 'BIN$%' "
+			+ "ORDER BY c.table_name, c.index_name, c.column_position";
+
+	/**
+	 * Snapshot PostgreSQL and Oracle schemas from the catalog. The
+	 * registration is global and cannot be undone.
+	 */
+	public static synchronized void register() {
+		if (!registered) {
+			SnapshotGeneratorFactory.getInstance().register(new CatalogSnapshotGenerator());
+			registered = true;
+		}
+	}
+
+	@Override
+	public int getPriority(final Class<? extends DatabaseObject> objectType, final Database database) {
+		if (!(database instanceof PostgresDatabase || database instanceof OracleDatabase)) {
+			return PRIORITY_NONE;
+		}
+		for (Class<? extends DatabaseObject> type : TYPES) {
+			if (type.isAssignableFrom(objectType)) {
+				// ahead of the standard and database specific generators
+				return PRIORITY_ADDITIONAL + PRIORITY_DATABASE * 2;
+			}
+		}
+		return PRIORITY_NONE;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T extends DatabaseObject> T snapshot(final T example, final DatabaseSnapshot snapshot,
+			final SnapshotGeneratorChain chain) throws DatabaseException, InvalidExampleException {
+		if (example instanceof Schema) {
+			// the relations of the schema are requested after the schema
+			getSnapshotCatalog(snapshot).schemas.add(schemaName(example.getName(), snapshot.getDatabase()));
+			return chain.snapshot(example, snapshot);
+		}
+		final Relation relation = getRelation(example);
+		final RelationInfo info = relation == null ? null : getRelationInfo(relation, snapshot);
+		if (info == null || snapshot.getSnapshotControl().shouldInclude(Data.class)) {
+			return chain.snapshot(example, snapshot);
+		}
+		try {
+			if (example instanceof Table) {
+				return info.view ? null : (T) buildTable(example.getSchema(), info, snapshot);
+			}
+			if (example instanceof View) {
+				return info.view ? (T) buildView(example.getSchema(), info, snapshot) : null;
+			}
+			if (example instanceof Column) {
+				final CachedRow row = info.getColumn(example.getName());
+				return row == null ? null : (T) readColumn(row, relation, snapshot);
+			}
+			if (example instanceof Index) {
+				final Key key = info.getIndex((Index) example);
+				return key == null ? null : (T) buildIndex(relation, key, info);
+			}
+			final Key key = info.getConstraint(example.getName(), constraintType(example));
+			if (key == null) {
+				return null;
+			}
+			if (example instanceof PrimaryKey) {
+				return (T) buildPrimaryKey((Table) relation, key);
+			}
+			if (example instanceof UniqueConstraint) {
+				return (T) buildUniqueConstraint((Table) relation, key);
+			}
+			return (T) buildForeignKey((Table) relation, key);
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends DatabaseObject>[] addsTo() {
+		// the standard generators list the objects of the schema
+		return (Class<? extends DatabaseObject>[]) new Class<?>[0];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Class<? extends SnapshotGenerator>[] replaces() {
+		// the standard generators are still used outside of schema snapshots
+		return (Class<? extends SnapshotGenerator>[]) new Class<?>[0];
+	}
+
+	private static Table buildTable(final Schema schema, final RelationInfo info, final DatabaseSnapshot snapshot)
+			throws DatabaseException, SQLException {
+		final Table table = new Table();
+		table.setName(info.name);
+		table.setSchema(schema);
+		table.setRemarks(info.remarks);
+		table.setTablespace(info.tablespace);
+		// what the additional generators of the table would add
+		addColumns(table, info, snapshot);
+		for (Key key : info.constraints) {
+			if ("P".equals(key.type) && snapshot.getSnapshotControl().shouldInclude(PrimaryKey.class)) {
+				table.setPrimaryKey(buildPrimaryKey(table, key));
+			} else if ("U".equals(key.type) && snapshot.getSnapshotControl().shouldInclude(UniqueConstraint.class)) {
+				table.getUniqueConstraints().add(buildUniqueConstraint(table, key));
+			} else if ("R".equals(key.type) && snapshot.getSnapshotControl().shouldInclude(ForeignKey.class)) {
+				table.getOutgoingForeignKeys().add(buildForeignKey(table, key));
+			}
+		}
+		if (snapshot.getSnapshotControl().shouldInclude(Index.class)) {
+			for (Key key : info.indexes) {
+				table.getIndexes().add(buildIndex(table, key, info));
+			}
+		}
+		return table;
+	}
+
+	private static View buildView(final Schema schema, final RelationInfo info, final DatabaseSnapshot snapshot)
+			throws DatabaseException, SQLException {
+		final View view = new View();
+		view.setName(info.name);
+		view.setSchema(schema);
+		view.setRemarks(info.remarks);
+		view.setDefinition(info.definition);
+		addColumns(view, info, snapshot);
+		return view;
+	}
+
+	private static void addColumns(final Relation relation, final RelationInfo info,
+			final DatabaseSnapshot snapshot) throws DatabaseException, SQLException {
+		if (snapshot.getSnapshotControl().shouldInclude(Column.class)) {
+			for (CachedRow row : info.columns) {
+				relation.addColumn(readColumn(row, relation, snapshot));
+			}
+		}
+	}
+
+	private static Column readColumn(final CachedRow row, final Relation relation, final DatabaseSnapshot snapshot)
+			throws DatabaseException, SQLException {
+		final Database database = snapshot.getDatabase();
+		final ColumnReader reader = database instanceof OracleDatabase ? new OracleColumnReader()
+				: new StandardColumnReader();
+		return reader.read(row, relation, snapshot);
+	}
+
+	private static PrimaryKey buildPrimaryKey(final Table table, final Key key) {
+		final PrimaryKey primaryKey = new PrimaryKey().setName(key.name).setTable(table);
+		for (int i = 0; i < key.columns.size(); i++) {
+			primaryKey.addColumn(i, new Column(key.columns.get(i).name).setRelation(table));
+		}
+		primaryKey.setTablespace(key.tablespace);
+		primaryKey.setBackingIndex(backingIndex(table, key));
+		return primaryKey;
+	}
+
+	private static UniqueConstraint buildUniqueConstraint(final Table table, final Key key) {
+		final UniqueConstraint constraint = new UniqueConstraint().setName(key.name).setRelation(table);
+		for (int i = 0; i < key.columns.size(); i++) {
+			constraint.addColumn(i, new Column(key.columns.get(i).name).setRelation(table));
+		}
+		constraint.setDeferrable(key.deferrable);
+		constraint.setInitiallyDeferred(key.initiallyDeferred);
+		constraint.setShouldValidate(key.validated);
+		constraint.setDisabled(key.disabled);
+		constraint.setBackingIndex(backingIndex(table, key));
+		return constraint;
+	}
+
+	private static ForeignKey buildForeignKey(final Table table, final Key key) {
+		final Schema schema = table.getSchema();
+		final Table referencedTable = new Table();
+		referencedTable.setName(key.refTable);
+		referencedTable.setSchema(key.refSchema.equals(schema.getName()) ? schema
+				: new Schema(schema.getCatalogName(), key.refSchema));
+		final ForeignKey foreignKey = new ForeignKey().setName(key.name).setForeignKeyTable(table)
+				.setPrimaryKeyTable(referencedTable);
+		for (int i = 0; i < key.columns.size(); i++) {
+			foreignKey.addForeignKeyColumn(new Column(key.columns.get(i).name).setRelation(table));
+			foreignKey.addPrimaryKeyColumn(new Column(key.refColumns.get(i)).setRelation(referencedTable));
+		}
+		foreignKey.setUpdateRule(ruleType(key.updateRule));
+		foreignKey.setDeleteRule(ruleType(key.deleteRule));
+		foreignKey.setDeferrable(key.deferrable);
+		foreignKey.setInitiallyDeferred(key.initiallyDeferred);
+		foreignKey.setShouldValidate(key.validated);
+		return foreignKey;
+	}
+
+	private static Index buildIndex(final Relation relation, final Key key, final RelationInfo info) {
+		final Index index = new Index().setName(key.name).setRelation(relation).setUnique(key.unique)
+				.setTablespace(key.tablespace);
+		for (KeyColumn keyColumn : key.columns) {
+			final Column column = new Column(keyColumn.name).setRelation(relation);
+			if (keyColumn.computed) {
+				column.setComputed(true);
+			}
+			if (keyColumn.descending) {
+				column.setDescending(true);
+			}
+			index.addColumn(column);
+		}
+		for (Key constraint : info.constraints) {
+			if ("P".equals(constraint.type) && key.name.equals(constraint.indexName)) {
+				index.addAssociatedWith(Index.MARK_PRIMARY_KEY);
+			} else if ("U".equals(constraint.type) && key.name.equals(constraint.indexName)) {
+				index.addAssociatedWith(Index.MARK_UNIQUE_CONSTRAINT);
+			} else if ("R".equals(constraint.type) && constraint.columnNames().equals(key.columnNames())) {
+				index.addAssociatedWith(Index.MARK_FOREIGN_KEY);
+			}
+		}
+		return index;
+	}
+
+	private static Index backingIndex(final Table table, final Key key) {
+		if (key.indexName == null) {
+			return null;
+		}
+		final Index index = new Index().setName(key.indexName).setRelation(table);
+		for (KeyColumn keyColumn : key.columns) {
+			index.addColumn(new Column(keyColumn.name).setRelation(table));
+		}
+		return index;
+	}
+
+	private static ForeignKeyConstraintType ruleType(final String rule) {
+		switch (rule) {
+		case "CASCADE":
+			return ForeignKeyConstraintType.importedKeyCascade;
+		case "SET NULL":
+			return ForeignKeyConstraintType.importedKeySetNull;
+		case "SET DEFAULT":
+			return ForeignKeyConstraintType.importedKeySetDefault;
+		case "NO ACTION":
+			return ForeignKeyConstraintType.importedKeyNoAction;
+		default:
+			return ForeignKeyConstraintType.importedKeyRestrict;
+		}
+	}
+
+	private static Relation getRelation(final DatabaseObject example) {
+		if (example instanceof Relation) {
+			return (Relation) example;
+		}
+		if (example instanceof Column) {
+			return ((Column) example).getRelation();
+		}
+		if (example instanceof Index) {
+			return ((Index) example).getRelation();
+		}
+		if (example instanceof PrimaryKey) {
+			return ((PrimaryKey) example).getTable();
+		}
+		if (example instanceof UniqueConstraint) {
+			return ((UniqueConstraint) example).getRelation();
+		}
+		return ((ForeignKey) example).getForeignKeyTable();
+	}
+
+	private static String constraintType(final DatabaseObject example) {
+		if (example instanceof PrimaryKey) {
+			return "P";
+		}
+		return example instanceof UniqueConstraint ? "U" : "R";
+	}
+
+	/**
+	 * Catalog entry of the relation, loading the catalog of its schema on first
+	 * use.
+	 *
+	 * @return null if the schema is not snapshotted from the catalog or the
+	 *         relation is not found
+	 */
+	private static RelationInfo getRelationInfo(final Relation relation, final DatabaseSnapshot snapshot)
+			throws DatabaseException {
+		if (relation.getName() == null) {
+			return null;
+		}
+		final Database database = snapshot.getDatabase();
+		final String schema = schemaName(relation.getSchema() == null ? null : relation.getSchema().getName(),
+				database);
+		final SnapshotCatalog snapshotCatalog = getSnapshotCatalog(snapshot);
+		if (!snapshotCatalog.schemas.contains(schema)) {
+			return null;
+		}
+		Map<String, RelationInfo> catalog = snapshotCatalog.relations.get(schema);
+		if (catalog == null) {
+			catalog = loadCatalog(database, schema);
+			snapshotCatalog.relations.put(schema, catalog);
+		}
+		final RelationInfo info = catalog.get(relation.getName());
+		if (info != null) {
+			return info;
+		}
+		for (RelationInfo candidate : catalog.values()) {
+			if (candidate.name.equalsIgnoreCase(relation.getName())) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	private static SnapshotCatalog getSnapshotCatalog(final DatabaseSnapshot snapshot) {
+		return SNAPSHOTS.computeIfAbsent(snapshot, key -> new SnapshotCatalog());
+	}
+
+	private static String schemaName(final String name, final Database database) {
+		return name == null ? database.getDefaultSchemaName() : name;
+	}
+
+	private static Map<String, RelationInfo> loadCatalog(final Database database, final String schema)
+			throws DatabaseException {
+		final long start = System.currentTimeMillis();
+		final Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+		final Map<String, RelationInfo> catalog = new HashMap<>();
+		try {
+			if (database instanceof OracleDatabase) {
+				loadRelations(connection, ORA_TABLES, schema, catalog);
+				loadRelations(connection, ORA_VIEWS, schema, catalog);
+				loadOracleColumns(connection, schema, catalog);
+				loadKeys(connection, ORA_CONSTRAINTS, schema, catalog, true);
+				loadKeys(connection, ORA_INDEXES, schema, catalog, false);
+			} else {
+				loadRelations(connection, PG_RELATIONS, schema, catalog);
+				loadPostgresColumns(connection, database.getDatabaseMajorVersion() >= 10, schema, catalog);
+				loadKeys(connection, PG_CONSTRAINTS, schema, catalog, true);
+				final String indexes = String.format(PG_INDEXES,
+						database.getDatabaseMajorVersion() >= 11 ? "x.indnkeyatts" : "x.indnatts");
+				loadKeys(connection, indexes, schema, catalog, false);
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException("Could not read catalog of schema " + schema, e);
+		}
+		LOG.fine("Read catalog of schema " + schema + " with " + catalog.size() + " relations in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return catalog;
+	}
+
+	private static void loadRelations(final Connection connection, final String sql, final String schema,
+			final Map<String, RelationInfo> catalog) throws SQLException {
+		try (PreparedStatement stmt = prepare(connection, sql, schema); ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				final RelationInfo info = new RelationInfo(rs.getString(1), "VIEW".equals(rs.getString(2)));
+				info.remarks = trimToNull(rs.getString(3));
+				info.tablespace = rs.getString(4);
+				info.definition = rs.getString(5);
+				catalog.put(info.name, info);
+			}
+		}
+	}
+
+	/**
+	 * Columns shaped like the rows of DatabaseMetaData.getColumns of the
+	 * PostgreSQL driver. The driver resolves the types, it queries each type
+	 * only once per connection.
+	 */
+	private static void loadPostgresColumns(final Connection connection, final boolean identityColumns,
+			final String schema, final Map<String, RelationInfo> catalog) throws SQLException {
+		final TypeInfo types = connection.unwrap(BaseConnection.class).getTypeInfo();
+		final String sql = String.format(PG_COLUMNS, identityColumns ? "a.attidentity::text" : "''");
+		try (PreparedStatement stmt = prepare(connection, sql, schema); ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				final RelationInfo info = catalog.get(rs.getString(1));
+				if (info == null) {
+					continue;
+				}
+				final int typeOid = (int) rs.getLong(3);
+				final int typeMod = rs.getInt(4);
+				final String typeType = rs.getString(5);
+				final String defaultValue = rs.getString(9);
+				final String identity = rs.getString(12);
+				final boolean sequence = defaultValue != null && defaultValue.contains("nextval(");
+				String typeName = types.getPGType(typeOid);
+				int sqlType;
+				if ("c".equals(typeType)) {
+					sqlType = Types.STRUCT;
+				} else if ("d".equals(typeType)) {
+					sqlType = Types.DISTINCT;
+				} else if ("e".equals(typeType)) {
+					sqlType = Types.VARCHAR;
+				} else {
+					sqlType = types.getSQLType(typeOid);
+				}
+				if (sequence && "int4".equals(typeName)) {
+					typeName = "serial";
+				} else if (sequence && "int8".equals(typeName)) {
+					typeName = "bigserial";
+				}
+				// domains have the size of their base type
+				final int sizeOid = sqlType == Types.DISTINCT ? (int) rs.getLong(6) : typeOid;
+				final int sizeMod = sqlType == Types.DISTINCT ? rs.getInt(7) : typeMod;
+				int columnSize = types.getPrecision(sizeOid, sizeMod);
+				if (columnSize == 0) {
+					columnSize = types.getDisplaySize(sizeOid, sizeMod);
+				}
+				final Map<String, Object> row = new HashMap<>();
+				row.put("TABLE_SCHEM", schema);
+				row.put("TABLE_NAME", info.name);
+				row.put("COLUMN_NAME", rs.getString(2));
+				row.put("DATA_TYPE", sqlType);
+				row.put("TYPE_NAME", typeName);
+				row.put("COLUMN_SIZE", columnSize);
+				row.put("DECIMAL_DIGITS", types.getScale(sizeOid, sizeMod));
+				row.put("NUM_PREC_RADIX", sqlType == Types.BIT ? 2 : 10);
+				final boolean notNull = rs.getBoolean(8);
+				row.put("NULLABLE", notNull ? DatabaseMetaData.columnNoNulls : DatabaseMetaData.columnNullable);
+				row.put("REMARKS", rs.getString(10));
+				row.put("COLUMN_DEF", defaultValue);
+				row.put("CHAR_OCTET_LENGTH", columnSize);
+				row.put("ORDINAL_POSITION", rs.getInt(11));
+				row.put("IS_NULLABLE", notNull ? "NO" : "YES");
+				row.put("IS_AUTOINCREMENT", sequence || identity != null && !identity.isEmpty() ? "YES" : "NO");
+				info.columns.add(new CachedRow(row));
+			}
+		}
+	}
+
+	private static void loadOracleColumns(final Connection connection, final String schema,
+			final Map<String, RelationInfo> catalog) throws SQLException {
+		try (PreparedStatement stmt = prepare(connection, ORA_COLUMNS, schema); ResultSet rs = stmt.executeQuery()) {
+			final ResultSetMetaData metaData = rs.getMetaData();
+			while (rs.next()) {
+				final Map<String, Object> row = new HashMap<>();
+				// in column order, DATA_DEFAULT is a LONG
+				for (int i = 1; i <= metaData.getColumnCount(); i++) {
+					row.put(metaData.getColumnLabel(i).toUpperCase(), rs.getObject(i));
+				}
+				final RelationInfo info = catalog.get((String) row.get("TABLE_NAME"));
+				if (info != null) {
+					info.columns.add(new CachedRow(row));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constraints or indexes, one row per column.
+	 */
+	private static void loadKeys(final Connection connection, final String sql, final String schema,
+			final Map<String, RelationInfo> catalog, final boolean constraints) throws SQLException {
+		try (PreparedStatement stmt = prepare(connection, sql, schema); ResultSet rs = stmt.executeQuery()) {
+			final Map<String, Key> keys = new LinkedHashMap<>();
+			while (rs.next()) {
+				final RelationInfo info = catalog.get(rs.getString(1));
+				if (info == null) {
+					continue;
+				}
+				final String name = rs.getString(2);
+				Key key = keys.get(info.name + "." + name);
+				if (key == null) {
+					key = new Key(name);
+					keys.put(info.name + "." + name, key);
+					if (constraints) {
+						key.type = rs.getString(3);
+						key.indexName = rs.getString(6);
+						key.refSchema = rs.getString(7);
+						key.refTable = rs.getString(8);
+						key.updateRule = rs.getString(10);
+						key.deleteRule = rs.getString(11);
+						key.deferrable = "Y".equals(rs.getString(12));
+						key.initiallyDeferred = "Y".equals(rs.getString(13));
+						key.validated = "Y".equals(rs.getString(14));
+						key.disabled = "Y".equals(rs.getString(15));
+						key.tablespace = rs.getString(16);
+						info.constraints.add(key);
+					} else {
+						key.unique = "Y".equals(rs.getString(3));
+						key.tablespace = rs.getString(8);
+						info.indexes.add(key);
+					}
+				}
+				if (constraints) {
+					key.columns.add(new KeyColumn(rs.getString(4), false, false));
+					key.refColumns.add(rs.getString(9));
+				} else {
+					key.columns.add(indexColumn(rs.getString(5), rs.getString(6), "Y".equals(rs.getString(7))));
+				}
+			}
+		}
+	}
+
+	private static KeyColumn indexColumn(final String column, final String expression, final boolean descending) {
+		if (expression == null) {
+			return new KeyColumn(column, false, descending);
+		}
+		if (descending) {
+			// Oracle keeps descending columns as hidden expression columns
+			return new KeyColumn(expression.replace("\"", ""), false, true);
+		}
+		return new KeyColumn(expression, true, false);
+	}
+
+	private static PreparedStatement prepare(final Connection connection, final String sql, final String schema)
+			throws SQLException {
+		final PreparedStatement stmt = connection.prepareStatement(sql);
+		stmt.setString(1, schema);
+		stmt.setFetchSize(1000);
+		return stmt;
+	}
+
+	private static String pgRule(final String column) {
+		return "CASE " + column + " WHEN 'c' THEN 'CASCADE' WHEN 'n' THEN 'SET NULL' WHEN 'd' THEN 'SET DEFAULT' "
+				+ "WHEN 'r' THEN 'RESTRICT' ELSE 'NO ACTION' END";
+	}
+
+	private static String trimToNull(final String value) {
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+
+	/**
+	 * Column parsing of a standard column generator.
+	 */
+	private interface ColumnReader {
+
+		Column read(CachedRow row, Relation relation, DatabaseSnapshot snapshot)
+				throws SQLException, DatabaseException;
+	}
+
+	/**
+	 * The column generators implement the generic snapshot method with a raw
+	 * signature, which cannot be typed in a subclass.
+	 */
+	@SuppressWarnings("unchecked")
+	private static final class StandardColumnReader extends ColumnSnapshotGenerator implements ColumnReader {
+
+		@Override
+		public Column read(final CachedRow row, final Relation relation, final DatabaseSnapshot snapshot)
+				throws SQLException, DatabaseException {
+			final Column column = readColumn(row, relation, snapshot.getDatabase());
+			setAutoIncrementDetails(column, snapshot.getDatabase(), snapshot);
+			return column;
+		}
+	}
+
+	/**
+	 * Column parsing of the Oracle generator, which reads the data type from
+	 * the dictionary columns.
+	 */
+	@SuppressWarnings("unchecked")
+	private static final class OracleColumnReader extends ColumnSnapshotGeneratorOracle implements ColumnReader {
+
+		@Override
+		public Column read(final CachedRow row, final Relation relation, final DatabaseSnapshot snapshot)
+				throws SQLException, DatabaseException {
+			final Column column = readColumn(row, relation, snapshot.getDatabase());
+			setAutoIncrementDetails(column, snapshot.getDatabase(), snapshot);
+			return column;
+		}
+	}
+
+	/**
+	 * Schemas of a snapshot read from the catalog and their relations.
+	 */
+	private static final class SnapshotCatalog {
+
+		private final Set<String> schemas = new HashSet<>();
+		private final Map<String, Map<String, RelationInfo>> relations = new HashMap<>();
+	}
+
+	private static final class RelationInfo {
+
+		private final String name;
+		private final boolean view;
+		private String remarks;
+		private String tablespace;
+		private String definition;
+		private final List<CachedRow> columns = new ArrayList<>();
+		private final List<Key> constraints = new ArrayList<>();
+		private final List<Key> indexes = new ArrayList<>();
+
+		RelationInfo(final String name, final boolean view) {
+			this.name = name;
+			this.view = view;
+		}
+
+		CachedRow getColumn(final String columnName) {
+			for (CachedRow row : columns) {
+				if (row.getString("COLUMN_NAME").equals(columnName)) {
+					return row;
+				}
+			}
+			for (CachedRow row : columns) {
+				if (row.getString("COLUMN_NAME").equalsIgnoreCase(columnName)) {
+					return row;
+				}
+			}
+			return null;
+		}
+
+		Key getConstraint(final String constraintName, final String type) {
+			for (Key key : constraints) {
+				if (key.type.equals(type) && (constraintName == null || key.name.equalsIgnoreCase(constraintName))) {
+					return key;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Index by name, backing indexes may be requested by their columns.
+		 */
+		Key getIndex(final Index example) {
+			final List<String> exampleColumns = new ArrayList<>();
+			for (Column column : example.getColumns()) {
+				exampleColumns.add(column.getName().toUpperCase());
+			}
+			for (Key key : indexes) {
+				if (example.getName() != null ? key.name.equalsIgnoreCase(example.getName())
+						: key.columnNames().equals(exampleColumns)) {
+					return key;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Key {
+
+		private final String name;
+		private String type;
+		private String indexName;
+		private boolean unique;
+		private String tablespace;
+		private String refSchema;
+		private String refTable;
+		private String updateRule;
+		private String deleteRule;
+		private boolean deferrable;
+		private boolean initiallyDeferred;
+		private boolean validated;
+		private boolean disabled;
+		private final List<KeyColumn> columns = new ArrayList<>();
+		private final List<String> refColumns = new ArrayList<>();
+
+		Key(final String name) {
+			this.name = name;
+		}
+
+		List<String> columnNames() {
+			final List<String> names = new ArrayList<>();
+			for (KeyColumn column : columns) {
+				names.add(column.name.toUpperCase());
+			}
+			return names;
+		}
+	}
+
+	private static final class KeyColumn {
+
+		private final String name;
+		private final boolean computed;
+		private final boolean descending;
+
+		KeyColumn(final String name, final boolean computed, final boolean descending) {
+			this.name = name;
+			this.computed = computed;
+			this.descending = descending;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.fb.commons.liquibase;
+
+import java.util.logging.Logger;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.OfflineConnection;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.exception.LiquibaseException;
+import liquibase.executor.ExecutorService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+import liquibase.servicelocator.ServiceLocator;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.statement.SqlStatement;
+
+/**
+ * Training run for the class data sharing archive built by the Maven profile
+ * cds. It loads the classes of a typical startup without a database
+ * connection: option parsing, Liquibase service discovery and, if a changelog
+ * is given as first argument, changelog parsing and SQL generation against an
+ * offline PostgreSQL database.
+ */
+public final class CdsTraining {
+
+	private static final Logger LOG = Logger.getLogger(CdsTraining.class.getName());
+
+	private CdsTraining() {
+		// private constructor
+	}
+
+	public static void main(final String[] args) throws Exception {
+		new ProgrammOptionsParser()
+				.parseOptions(new String[] { "-project", "cds", "-stage", "TEST", "-operation", "update" });
+
+		ServiceLocator.getInstance();
+		DatabaseFactory.getInstance().getImplementedDatabases();
+		ChangeFactory.getInstance().getDefinedChanges();
+		ChangeLogParserFactory.getInstance().getParsers();
+		SqlGeneratorFactory.getInstance();
+		SnapshotGeneratorFactory.getInstance();
+		LockServiceFactory.getInstance();
+		ChangeLogHistoryServiceFactory.getInstance();
+		ExecutorService.getInstance();
+		SAXParserFactory.newInstance().newSAXParser();
+
+		if (args.length > 0 && !args[0].trim().isEmpty()) {
+			generateSql(args[0]);
+		}
+		LOG.info("CDS training run finished");
+	}
+
+	private static void generateSql(final String changeLogFile) throws LiquibaseException {
+		final ResourceAccessor resourceAccessor = new ClassLoaderResourceAccessor();
+		final Database database = new PostgresDatabase();
+		database.setConnection(new OfflineConnection("offline:postgresql", resourceAccessor));
+
+		final DatabaseChangeLog changeLog = ChangeLogParserFactory.getInstance()
+				.getParser(changeLogFile, resourceAccessor)
+				.parse(changeLogFile, new ChangeLogParameters(database), resourceAccessor);
+		for (ChangeSet changeSet : changeLog.getChangeSets()) {
+			for (Change change : changeSet.getChanges()) {
+				for (SqlStatement statement : change.generateStatements(database)) {
+					SqlGeneratorFactory.getInstance().generateSql(statement, database);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.fb.commons.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.resource.ResourceAccessor;
+import liquibase.util.StreamUtil;
+
+/**
+ * No-op fast path of UPDATE. After an update which left no pending changesets
+ * the fingerprint of the changelog files is stored in the metadata table next
+ * to the changelog table (changelog table name + "Meta"), together with the
+ * state of the changelog table (row count, highest execution order and date).
+ * The next update compares both with two small queries and skips parsing the
+ * changelog and reading the changelog table if nothing changed.
+ * <p>
+ * The fingerprint covers all files below the changelog location and is
+ * computed from the files on first use, so it cannot be stale. The metadata
+ * table is excluded from diff and documentation by
+ * {@link LiquibaseTableFilter}. Nothing is stored while changesets stay pending,
+ * e.g. runAlways changesets or changesets skipped by a precondition, so those
+ * changelogs always take the regular path.
+ */
+public class ChangeLogFingerprint {
+
+	private static final Logger LOG = Logger.getLogger(ChangeLogFingerprint.class.getName());
+
+	/** Suffix of the metadata table name, after the changelog table name */
+	static final String META_TABLE_SUFFIX = "Meta";
+	private static final int META_ID = 1;
+
+	private final ResourceAccessor resourceAccessor;
+	private final String location;
+	private final String rootChangeLogName;
+
+	private String fingerprint;
+
+	/**
+	 * @param resourceAccessor  - accessor of the changelog files
+	 * @param location          - changelog location, as given to
+	 *                          {@link LiquibaseBuilder#withDatabaseChangeLog}
+	 * @param rootChangeLogName - name of the root changelog in the location
+	 */
+	public ChangeLogFingerprint(final ResourceAccessor resourceAccessor, final String location,
+			final String rootChangeLogName) {
+		this.resourceAccessor = resourceAccessor;
+		this.location = location;
+		this.rootChangeLogName = rootChangeLogName;
+	}
+
+	/**
+	 * Check if the changelog is unchanged since the last update which left
+	 * nothing pending, and nobody changed the changelog table since.
+	 *
+	 * @param database
+	 * @return true if there are no pending changesets for sure
+	 */
+	public boolean isUpToDate(final Database database) {
+		final long start = System.currentTimeMillis();
+		final Connection connection = getConnection(database);
+		try {
+			final String stored;
+			try (Statement stmt = connection.createStatement();
+					ResultSet rs = stmt.executeQuery("SELECT FINGERPRINT, CHANGELOG_STATE FROM "
+							+ getMetaTable(database) + " WHERE ID = " + META_ID)) {
+				if (!rs.next()) {
+					return false;
+				}
+				stored = rs.getString(1) + "|" + rs.getString(2);
+			}
+			final boolean upToDate = stored.equals(getFingerprint() + "|" + getChangeLogState(database));
+			LOG.info((upToDate ? "Changelog unchanged since last update" : "Changelog changed since last update")
+					+ ", checked in " + (System.currentTimeMillis() - start) + " ms");
+			return upToDate;
+		} catch (SQLException e) {
+			// e.g. first update without metadata or changelog table
+			LOG.fine("Changelog fingerprint not available: " + e.getMessage());
+			return false;
+		} finally {
+			endTransaction(connection);
+		}
+	}
+
+	/**
+	 * Store the fingerprint after a successful update, unless changesets are
+	 * still pending. Failures are only logged, the next update takes the regular
+	 * path then.
+	 *
+	 * @param liquibase
+	 */
+	public void store(final Liquibase liquibase) {
+		final Database database = liquibase.getDatabase();
+		final Connection connection = getConnection(database);
+		try {
+			final List<ChangeSet> pending = liquibase.listUnrunChangeSets(new Contexts(), new LabelExpression());
+			if (!pending.isEmpty()) {
+				LOG.info(pending.size() + " changesets still pending, changelog fingerprint not stored");
+				clear(connection, database);
+				return;
+			}
+			final String metaTable = getMetaTable(database);
+			final String state = getChangeLogState(database);
+			if (update(connection, metaTable, state) == 0) {
+				endTransaction(connection);
+				createMetaTable(connection, metaTable);
+				try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO " + metaTable
+						+ " (ID, FINGERPRINT, CHANGELOG_STATE, UPDATED) VALUES (" + META_ID + ", ?, ?, ?)")) {
+					stmt.setString(1, getFingerprint());
+					stmt.setString(2, state);
+					stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+					stmt.executeUpdate();
+				}
+			}
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+			LOG.fine("Stored changelog fingerprint " + getFingerprint());
+		} catch (LiquibaseException | SQLException e) {
+			LOG.warning("Could not store changelog fingerprint: " + e.getMessage());
+			endTransaction(connection);
+		}
+	}
+
+	private int update(final Connection connection, final String metaTable, final String state) {
+		try (PreparedStatement stmt = connection.prepareStatement("UPDATE " + metaTable
+				+ " SET FINGERPRINT = ?, CHANGELOG_STATE = ?, UPDATED = ? WHERE ID = " + META_ID)) {
+			stmt.setString(1, getFingerprint());
+			stmt.setString(2, state);
+			stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+			return stmt.executeUpdate();
+		} catch (SQLException e) {
+			// no metadata table yet
+			return 0;
+		}
+	}
+
+	private void createMetaTable(final Connection connection, final String metaTable) {
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute("CREATE TABLE " + metaTable + " (ID INTEGER NOT NULL PRIMARY KEY, "
+					+ "FINGERPRINT VARCHAR(64) NOT NULL, CHANGELOG_STATE VARCHAR(255) NOT NULL, "
+					+ "UPDATED TIMESTAMP NOT NULL)");
+			LOG.info("Created changelog metadata table " + metaTable);
+		} catch (SQLException e) {
+			// created by a concurrent update or by an earlier run
+			LOG.fine("Changelog metadata table not created: " + e.getMessage());
+			endTransaction(connection);
+		}
+	}
+
+	private void clear(final Connection connection, final Database database) {
+		try (Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("DELETE FROM " + getMetaTable(database) + " WHERE ID = " + META_ID);
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			endTransaction(connection);
+		}
+	}
+
+	/**
+	 * Row count, highest execution order and date of the changelog table.
+	 */
+	private static String getChangeLogState(final Database database) throws SQLException {
+		final String changeLogTable = database.escapeTableName(database.getLiquibaseCatalogName(),
+				database.getLiquibaseSchemaName(), database.getDatabaseChangeLogTableName());
+		try (Statement stmt = getConnection(database).createStatement();
+				ResultSet rs = stmt.executeQuery(
+						"SELECT COUNT(*), MAX(ORDEREXECUTED), MAX(DATEEXECUTED) FROM " + changeLogTable)) {
+			rs.next();
+			return rs.getLong(1) + "," + rs.getLong(2) + "," + rs.getTimestamp(3);
+		}
+	}
+
+	/**
+	 * Fingerprint of the root changelog name and all files in the location,
+	 * computed once.
+	 */
+	private synchronized String getFingerprint() {
+		if (fingerprint == null) {
+			final long start = System.currentTimeMillis();
+			fingerprint = Hashes.sha256Hex(rootChangeLogName + "|" + computeFiles());
+			LOG.fine("Changelog fingerprint " + fingerprint + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		return fingerprint;
+	}
+
+	private String computeFiles() {
+		try {
+			final Set<String> paths = resourceAccessor.list(null, location, true, false, true);
+			if (paths == null || paths.isEmpty()) {
+				throw new MigrationException("No changelog files found in " + location);
+			}
+			final SortedMap<String, byte[]> hashes = new TreeMap<>();
+			for (String path : paths) {
+				final String normalized = path.replace('\\', '/');
+				final int index = normalized.indexOf(location);
+				final String name = index < 0 ? normalized : normalized.substring(index + location.length());
+				try (InputStream in = StreamUtil.singleInputStream(path, resourceAccessor)) {
+					if (in != null) {
+						hashes.put(name, Hashes.sha256(in));
+					}
+				}
+			}
+			return aggregate(hashes);
+		} catch (IOException e) {
+			throw new MigrationException("Cannot compute changelog fingerprint of " + location, e);
+		}
+	}
+
+	/**
+	 * Hash of the sorted lines "name hash" of all files.
+	 */
+	private static String aggregate(final SortedMap<String, byte[]> hashes) {
+		final MessageDigest digest = Hashes.newSha256();
+		for (Map.Entry<String, byte[]> entry : hashes.entrySet()) {
+			final String line = entry.getKey() + " " + Hashes.toHex(entry.getValue()) + "\n";
+			digest.update(line.getBytes(StandardCharsets.UTF_8));
+		}
+		return Hashes.toHex(digest.digest());
+	}
+
+	private static String getMetaTable(final Database database) {
+		return database.escapeTableName(database.getLiquibaseCatalogName(), database.getLiquibaseSchemaName(),
+				database.getDatabaseChangeLogTableName() + META_TABLE_SUFFIX);
+	}
+
+	private static Connection getConnection(final Database database) {
+		return ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+	}
+
+	private static void endTransaction(final Connection connection) {
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+		} catch (SQLException e) {
+			LOG.warning("Rollback of changelog fingerprint query failed: " + e.getMessage());
+		}
+	}
+}
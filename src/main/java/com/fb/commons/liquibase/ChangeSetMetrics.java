@@ -0,0 +1,472 @@
+package com.fb.commons.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.visitor.AbstractChangeExecListener;
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.core.OracleDatabase;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+
+/**
+ * Records wall time, statement count, affected rows and lock-wait time of every
+ * changeset executed by an UPDATE and writes them as JSON report and as
+ * Prometheus text file when the operation ends.
+ * <p>
+ * Statements and rows are counted by a proxy of the JDBC connection, only
+ * statements of the changeset itself (changes and preconditions) are counted,
+ * not the changelog bookkeeping. Lock waits are read from V$SESSION_EVENT on Oracle and sampled
+ * from pg_stat_activity on a separate monitor connection on PostgreSQL. If the
+ * session views cannot be read, lock-wait time is reported as -1.
+ */
+public class ChangeSetMetrics extends AbstractChangeExecListener {
+
+	private static final Logger LOG = Logger.getLogger(ChangeSetMetrics.class.getName());
+
+	public static final String JSON_FILE = "changeset-metrics.json";
+	public static final String PROMETHEUS_FILE = "changeset-metrics.prom";
+
+	private static final long SAMPLE_INTERVAL_MILLIS = 20;
+
+	private static final String ORACLE_LOCK_WAIT_QUERY = "SELECT NVL(SUM(TIME_WAITED_MICRO), 0) FROM V$SESSION_EVENT "
+			+ "WHERE SID = SYS_CONTEXT('USERENV', 'SID') AND WAIT_CLASS IN ('Application', 'Concurrency')";
+	private static final String POSTGRES_PID_QUERY = "SELECT pg_backend_pid()";
+	private static final String POSTGRES_WAIT_QUERY = "SELECT wait_event_type FROM pg_stat_activity WHERE pid = ?";
+
+	private final File directory;
+	private final Supplier<Database> monitorFactory;
+
+	private final List<Entry> entries = new ArrayList<>();
+	private Entry current;
+
+	private Database database;
+	private DatabaseConnection originalConnection;
+	private Connection rawConnection;
+	private boolean oracleLockWaits;
+	private PostgresLockWaitSampler sampler;
+	private Instant started;
+	private long startNanos;
+
+	/**
+	 * @param directory      - output directory of the reports
+	 * @param monitorFactory - opens an additional connection to the migrated
+	 *                       database, used for lock-wait sampling on PostgreSQL.
+	 *                       May be null.
+	 */
+	public ChangeSetMetrics(final File directory, final Supplier<Database> monitorFactory) {
+		this.directory = directory;
+		this.monitorFactory = monitorFactory;
+	}
+
+	/**
+	 * Register this listener at the given Liquibase and route the statements of
+	 * its database through the counting connection.
+	 *
+	 * @param liquibase
+	 */
+	public void attach(final Liquibase liquibase) {
+		database = liquibase.getDatabase();
+		originalConnection = database.getConnection();
+		if (!(originalConnection instanceof JdbcConnection)) {
+			throw new MigrationException("Changeset metrics need a JDBC connection");
+		}
+		rawConnection = ((JdbcConnection) originalConnection).getUnderlyingConnection();
+		entries.clear();
+		started = Instant.now();
+		startNanos = System.nanoTime();
+
+		try {
+			database.setConnection(new JdbcConnection(countingConnection(rawConnection)));
+		} catch (RuntimeException e) {
+			throw new MigrationException("Counting connection cannot be attached", e);
+		}
+		if (database instanceof OracleDatabase) {
+			oracleLockWaits = readOracleLockWait() >= 0;
+		} else if (database instanceof PostgresDatabase && monitorFactory != null) {
+			sampler = startSampler();
+		}
+		liquibase.setChangeExecListener(this);
+	}
+
+	/**
+	 * Restore the original connection and write the reports.
+	 *
+	 * @param operation - name of the operation
+	 * @param success   - whether the operation succeeded
+	 */
+	public void detach(final String operation, final boolean success) {
+		final long durationNanos = System.nanoTime() - startNanos;
+		if (sampler != null) {
+			sampler.stop();
+			sampler = null;
+		}
+		try {
+			database.setConnection(originalConnection);
+		} catch (RuntimeException e) {
+			LOG.warning("Original connection cannot be restored: " + e.getMessage());
+		}
+		try {
+			Files.createDirectories(directory.toPath());
+			writeAtomically(directory.toPath().resolve(JSON_FILE), json(operation, success, durationNanos));
+			writeAtomically(directory.toPath().resolve(PROMETHEUS_FILE),
+					prometheus(operation, success, durationNanos));
+			LOG.info("Changeset metrics of " + entries.size() + " changesets written to " + directory);
+		} catch (IOException e) {
+			// metrics must not fail the migration
+			LOG.warning("Changeset metrics cannot be written: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void willRun(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+			final Database database, final ChangeSet.RunStatus runStatus) {
+		current = new Entry(changeSet);
+		if (oracleLockWaits) {
+			current.lockWaitStartMicros = readOracleLockWait();
+		} else if (sampler != null) {
+			sampler.track(current.lockWaitNanos);
+		}
+		current.startNanos = System.nanoTime();
+	}
+
+	@Override
+	public void ran(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog, final Database database,
+			final ChangeSet.ExecType execType) {
+		finish(execType.name());
+	}
+
+	@Override
+	public void runFailed(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+			final Database database, final Exception exception) {
+		finish("FAILED");
+	}
+
+	private void finish(final String status) {
+		if (current == null) {
+			return;
+		}
+		current.durationNanos = System.nanoTime() - current.startNanos;
+		current.status = status;
+		if (oracleLockWaits) {
+			final long micros = readOracleLockWait();
+			current.lockWaitNanos
+					.set(micros < 0 ? -1 : TimeUnit.MICROSECONDS.toNanos(micros - current.lockWaitStartMicros));
+		} else if (sampler != null) {
+			sampler.track(null);
+		} else {
+			current.lockWaitNanos.set(-1);
+		}
+		entries.add(current);
+		current = null;
+	}
+
+	/**
+	 * Cumulated wait time of the session on locks and latches. The query runs on
+	 * the raw connection, so it is not counted.
+	 *
+	 * @return microseconds or -1 if V$SESSION_EVENT cannot be read
+	 */
+	private long readOracleLockWait() {
+		try (Statement stmt = rawConnection.createStatement();
+				ResultSet rs = stmt.executeQuery(ORACLE_LOCK_WAIT_QUERY)) {
+			return rs.next() ? rs.getLong(1) : 0;
+		} catch (SQLException e) {
+			if (oracleLockWaits) {
+				LOG.warning("Lock waits cannot be read from V$SESSION_EVENT: " + e.getMessage());
+				oracleLockWaits = false;
+			} else {
+				LOG.fine("Lock waits cannot be read from V$SESSION_EVENT: " + e.getMessage());
+			}
+			return -1;
+		}
+	}
+
+	private PostgresLockWaitSampler startSampler() {
+		try (Statement stmt = rawConnection.createStatement();
+				ResultSet rs = stmt.executeQuery(POSTGRES_PID_QUERY)) {
+			rs.next();
+			final PostgresLockWaitSampler result = new PostgresLockWaitSampler(monitorFactory.get(), rs.getInt(1));
+			result.start();
+			return result;
+		} catch (SQLException | RuntimeException e) {
+			LOG.warning("Lock waits cannot be sampled: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private Connection countingConnection(final Connection connection) {
+		return (Connection) Proxy.newProxyInstance(ChangeSetMetrics.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					final Object result = invoke(connection, method, args);
+					if (result instanceof Statement && method.getReturnType().isInterface()) {
+						return countingStatement((Statement) result, method.getReturnType());
+					}
+					return result;
+				});
+	}
+
+	private Object countingStatement(final Statement statement, final Class<?> type) {
+		return Proxy.newProxyInstance(ChangeSetMetrics.class.getClassLoader(), new Class<?>[] { type },
+				(proxy, method, args) -> {
+					final Object result = invoke(statement, method, args);
+					if (current != null && method.getName().startsWith("execute")) {
+						count(statement, method, result);
+					}
+					return result;
+				});
+	}
+
+	private void count(final Statement statement, final Method method, final Object result) throws SQLException {
+		if (result instanceof int[]) {
+			final int[] counts = (int[]) result;
+			current.statements += counts.length;
+			for (int count : counts) {
+				current.rows += Math.max(0, count);
+			}
+			return;
+		}
+		current.statements++;
+		if (result instanceof Number) {
+			current.rows += Math.max(0, ((Number) result).longValue());
+		} else if (Boolean.FALSE.equals(result)) {
+			current.rows += Math.max(0, statement.getUpdateCount());
+		}
+	}
+
+	private static Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private String json(final String operation, final boolean success, final long durationNanos) {
+		final StringBuilder out = new StringBuilder();
+		out.append("{\n");
+		out.append("  \"operation\": ").append(quote(operation)).append(",\n");
+		out.append("  \"success\": ").append(success).append(",\n");
+		out.append("  \"started\": ").append(quote(started.toString())).append(",\n");
+		out.append("  \"durationMillis\": ").append(TimeUnit.NANOSECONDS.toMillis(durationNanos)).append(",\n");
+		out.append("  \"changeSets\": [");
+		for (int i = 0; i < entries.size(); i++) {
+			final Entry entry = entries.get(i);
+			out.append(i == 0 ? "\n" : ",\n");
+			out.append("    {\"id\": ").append(quote(entry.id));
+			out.append(", \"author\": ").append(quote(entry.author));
+			out.append(", \"changeLog\": ").append(quote(entry.changeLog));
+			out.append(", \"status\": ").append(quote(entry.status));
+			out.append(", \"durationMillis\": ").append(TimeUnit.NANOSECONDS.toMillis(entry.durationNanos));
+			out.append(", \"statements\": ").append(entry.statements);
+			out.append(", \"rows\": ").append(entry.rows);
+			out.append(", \"lockWaitMillis\": ").append(lockWaitMillis(entry)).append('}');
+		}
+		out.append(entries.isEmpty() ? "]\n" : "\n  ]\n");
+		out.append("}\n");
+		return out.toString();
+	}
+
+	private String prometheus(final String operation, final boolean success, final long durationNanos) {
+		final StringBuilder out = new StringBuilder();
+		final String operationLabel = "operation=" + quote(operation);
+		gauge(out, "liquibase_operation_duration_seconds", "Wall time of the operation.");
+		out.append("liquibase_operation_duration_seconds{").append(operationLabel).append("} ")
+				.append(seconds(durationNanos)).append('\n');
+		gauge(out, "liquibase_operation_success", "1 if the operation succeeded, 0 otherwise.");
+		out.append("liquibase_operation_success{").append(operationLabel).append("} ").append(success ? 1 : 0)
+				.append('\n');
+		gauge(out, "liquibase_operation_last_run_timestamp_seconds", "Start time of the operation.");
+		out.append("liquibase_operation_last_run_timestamp_seconds{").append(operationLabel).append("} ")
+				.append(started.getEpochSecond()).append('\n');
+
+		gauge(out, "liquibase_changeset_duration_seconds", "Wall time of the changeset.");
+		for (Entry entry : entries) {
+			out.append("liquibase_changeset_duration_seconds").append(labels(entry)).append(' ')
+					.append(seconds(entry.durationNanos)).append('\n');
+		}
+		gauge(out, "liquibase_changeset_statements", "Statements executed by the changeset.");
+		for (Entry entry : entries) {
+			out.append("liquibase_changeset_statements").append(labels(entry)).append(' ').append(entry.statements)
+					.append('\n');
+		}
+		gauge(out, "liquibase_changeset_rows", "Rows affected by the changeset.");
+		for (Entry entry : entries) {
+			out.append("liquibase_changeset_rows").append(labels(entry)).append(' ').append(entry.rows).append('\n');
+		}
+		gauge(out, "liquibase_changeset_lock_wait_seconds", "Time the changeset waited for locks, -1 if unknown.");
+		for (Entry entry : entries) {
+			final long lockWait = entry.lockWaitNanos.get();
+			out.append("liquibase_changeset_lock_wait_seconds").append(labels(entry)).append(' ')
+					.append(lockWait < 0 ? "-1" : seconds(lockWait)).append('\n');
+		}
+		return out.toString();
+	}
+
+	private static void gauge(final StringBuilder out, final String name, final String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+	}
+
+	private static String labels(final Entry entry) {
+		return "{changelog=" + quote(entry.changeLog) + ",id=" + quote(entry.id) + ",author=" + quote(entry.author)
+				+ ",status=" + quote(entry.status) + "}";
+	}
+
+	private static long lockWaitMillis(final Entry entry) {
+		final long nanos = entry.lockWaitNanos.get();
+		return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static String seconds(final long nanos) {
+		return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+	}
+
+	/**
+	 * Quote a value for JSON and for Prometheus labels, both escape backslash,
+	 * double quote and line feed the same way.
+	 */
+	private static String quote(final String value) {
+		final StringBuilder out = new StringBuilder("\"");
+		for (char c : String.valueOf(value).toCharArray()) {
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c == '\n') {
+				out.append("\\n");
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+
+	/**
+	 * Replace the file in one step, so a collector never reads a half written
+	 * file.
+	 */
+	private static void writeAtomically(final Path file, final String content) throws IOException {
+		final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			writer.write(content);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static final class Entry {
+		private final String id;
+		private final String author;
+		private final String changeLog;
+		private final AtomicLong lockWaitNanos = new AtomicLong();
+		private String status;
+		private long startNanos;
+		private long durationNanos;
+		private long lockWaitStartMicros;
+		private long statements;
+		private long rows;
+
+		private Entry(final ChangeSet changeSet) {
+			this.id = changeSet.getId();
+			this.author = changeSet.getAuthor();
+			this.changeLog = changeSet.getFilePath();
+		}
+	}
+
+	/**
+	 * Polls the wait state of the migration session on its own connection and
+	 * adds the sample interval to the tracked counter while the session waits for
+	 * a lock.
+	 */
+	private static final class PostgresLockWaitSampler implements Runnable {
+		private final Database monitor;
+		private final int pid;
+		private final Thread thread;
+		private volatile AtomicLong tracked;
+		private volatile boolean running = true;
+
+		private PostgresLockWaitSampler(final Database monitor, final int pid) {
+			this.monitor = monitor;
+			this.pid = pid;
+			this.thread = new Thread(this, "lock-wait-sampler");
+			this.thread.setDaemon(true);
+		}
+
+		private void start() {
+			thread.start();
+		}
+
+		private void track(final AtomicLong counter) {
+			tracked = counter;
+		}
+
+		private void stop() {
+			running = false;
+			thread.interrupt();
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			final Connection connection = ((JdbcConnection) monitor.getConnection()).getUnderlyingConnection();
+			try (PreparedStatement stmt = connection.prepareStatement(POSTGRES_WAIT_QUERY)) {
+				connection.setAutoCommit(true);
+				stmt.setInt(1, pid);
+				long last = System.nanoTime();
+				while (running) {
+					final AtomicLong counter = tracked;
+					boolean waiting = false;
+					try (ResultSet rs = stmt.executeQuery()) {
+						waiting = rs.next() && "Lock".equals(rs.getString(1));
+					}
+					final long now = System.nanoTime();
+					if (waiting && counter != null) {
+						counter.addAndGet(now - last);
+					}
+					last = now;
+					Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				// stopped
+			} catch (SQLException e) {
+				LOG.warning("Lock-wait sampling stopped: " + e.getMessage());
+			} finally {
+				try {
+					monitor.close();
+				} catch (DatabaseException e) {
+					LOG.warning("Could not close monitor connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+}
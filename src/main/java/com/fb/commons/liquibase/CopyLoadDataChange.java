@@ -0,0 +1,251 @@
+package com.fb.commons.liquibase;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import liquibase.change.ChangeFactory;
+import liquibase.change.ChangeMetaData;
+import liquibase.change.ColumnConfig;
+import liquibase.change.DatabaseChange;
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.LoadDataColumnConfig;
+import liquibase.database.Database;
+import liquibase.database.PreparedStatementFactory;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.UnexpectedLiquibaseException;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.jvm.JdbcExecutor;
+import liquibase.statement.AbstractSqlStatement;
+import liquibase.statement.ExecutablePreparedStatement;
+import liquibase.statement.SqlStatement;
+import liquibase.structure.core.Column;
+import liquibase.util.BooleanParser;
+import liquibase.util.StringUtils;
+import liquibase.util.csv.CSVReader;
+
+/**
+ * loadData which streams the CSV file into PostgreSQL with COPY ... FROM STDIN
+ * instead of one INSERT per row. The file is read with the same CSV reader
+ * and the same rules as loadData (header mapping, skipped columns, comments,
+ * NULL values, booleans), every row is written directly to the COPY stream.
+ * <p>
+ * The change replaces loadData once {@link #register()} was called. It has the
+ * same name and properties, so the checksums do not change. Other databases,
+ * SQL output and columns whose values must be computed (computed, sequence,
+ * blob, clob, uuid, default values) use the standard loadData. COPY runs in
+ * the transaction of the changeset and is rolled back with it.
+ */
+@DatabaseChange(name = "loadData", description = "Loads data from a CSV file into an existing table, "
+		+ "with COPY on PostgreSQL", priority = ChangeMetaData.PRIORITY_DATABASE, appliesTo = "table")
+public class CopyLoadDataChange extends LoadDataChange {
+
+	private static final Logger LOG = Logger.getLogger(CopyLoadDataChange.class.getName());
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final String NULL_VALUE = "NULL";
+
+	private static boolean registered;
+
+	/**
+	 * Let the Liquibase change factory create this change for loadData. The
+	 * registration is global and cannot be undone.
+	 */
+	public static synchronized void register() {
+		if (!registered) {
+			ChangeFactory.getInstance().register(CopyLoadDataChange.class);
+			registered = true;
+		}
+	}
+
+	@Override
+	public SqlStatement[] generateStatements(final Database database) {
+		if (!isCopySupported(database)) {
+			return super.generateStatements(database);
+		}
+		return new SqlStatement[] { new CopyStatement(database) };
+	}
+
+	/**
+	 * Check if the data is loaded with COPY instead of Liquibase statements.
+	 */
+	boolean isCopySupported(final Database database) {
+		if (!(database instanceof PostgresDatabase) || Boolean.TRUE.equals(getUsePreparedStatements())
+				|| !(ExecutorService.getInstance().getExecutor(database) instanceof JdbcExecutor)) {
+			return false;
+		}
+		for (LoadDataColumnConfig column : getColumns()) {
+			if (column.getDefaultValue() != null || column.getValueComputed() != null
+					|| plan(column.getType()) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * How values of the given loadData type are written, null if COPY cannot
+	 * produce the same value as loadData.
+	 */
+	private static ColumnPlan plan(final String type) {
+		if (type == null) {
+			return ColumnPlan.TEXT;
+		}
+		final String lowerType = type.toLowerCase(Locale.ROOT);
+		if ("skip".equals(lowerType)) {
+			return ColumnPlan.SKIP;
+		}
+		if ("boolean".equals(lowerType)) {
+			return ColumnPlan.BOOLEAN;
+		}
+		if ("string".equals(lowerType) || "numeric".equals(lowerType) || lowerType.contains("date")
+				|| lowerType.contains("time")) {
+			return ColumnPlan.TEXT;
+		}
+		return null;
+	}
+
+	private enum ColumnPlan {
+		SKIP, TEXT, BOOLEAN
+	}
+
+	/**
+	 * Reads the CSV file and writes it to the COPY stream when executed.
+	 */
+	private final class CopyStatement extends AbstractSqlStatement implements ExecutablePreparedStatement {
+
+		private final Database database;
+
+		private CopyStatement(final Database database) {
+			this.database = database;
+		}
+
+		@Override
+		public void execute(final PreparedStatementFactory factory) throws DatabaseException {
+			final long start = System.currentTimeMillis();
+			try (CSVReader reader = getCSVReader()) {
+				if (reader == null) {
+					throw new UnexpectedLiquibaseException("Unable to read file " + getFile());
+				}
+				final String[] headers = reader.readNext();
+				if (headers == null) {
+					throw new UnexpectedLiquibaseException("Data file " + getFile() + " was empty");
+				}
+				final ColumnPlan[] plans = new ColumnPlan[headers.length];
+				final List<String> columnNames = new ArrayList<>();
+				for (int i = 0; i < headers.length; i++) {
+					final String header = headers[i].trim();
+					final ColumnConfig config = getColumnConfig(i, header);
+					plans[i] = plan(config == null ? null : config.getType());
+					if (plans[i] != ColumnPlan.SKIP) {
+						columnNames.add(database.escapeObjectName(
+								config != null && config.getName() != null ? config.getName() : header, Column.class));
+					}
+				}
+				final long rows = copy(reader, headers.length, plans, copySql(columnNames));
+				LOG.info("Copied " + rows + " rows from " + getFile() + " into " + getTableName() + " in "
+						+ (System.currentTimeMillis() - start) + " ms");
+			} catch (IOException | SQLException e) {
+				throw new DatabaseException("COPY of " + getFile() + " into " + getTableName() + " failed", e);
+			}
+		}
+
+		private String copySql(final List<String> columnNames) {
+			return "COPY " + database.escapeTableName(getCatalogName(), getSchemaName(), getTableName()) + " ("
+					+ String.join(", ", columnNames) + ") FROM STDIN";
+		}
+
+		private long copy(final CSVReader reader, final int columnCount, final ColumnPlan[] plans, final String sql)
+				throws IOException, SQLException {
+			final PGConnection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection()
+					.unwrap(PGConnection.class);
+			final PGCopyOutputStream copy = new PGCopyOutputStream(connection, sql, COPY_BUFFER_SIZE);
+			try {
+				final Writer out = new BufferedWriter(new OutputStreamWriter(copy, StandardCharsets.UTF_8),
+						COPY_BUFFER_SIZE);
+				final String commentPrefix = getCommentLineStartsWith();
+				int lineNumber = 1;
+				String[] line;
+				while ((line = reader.readNext()) != null) {
+					lineNumber++;
+					if (line.length == 0 || (line.length == 1 && StringUtils.trimToNull(line[0]) == null)
+							|| (StringUtils.isNotEmpty(commentPrefix)
+									&& StringUtils.startsWith(line[0], commentPrefix))) {
+						continue;
+					}
+					if (line.length != columnCount) {
+						throw new UnexpectedLiquibaseException("CSV file " + getFile() + " Line " + lineNumber
+								+ " has " + line.length + " values defined, Header has " + columnCount
+								+ ". Numbers MUST be equal (check for unquoted string with embedded commas)");
+					}
+					writeRow(out, line, plans);
+				}
+				out.flush();
+				return copy.endCopy();
+			} finally {
+				if (copy.isActive()) {
+					copy.cancelCopy();
+				}
+			}
+		}
+
+		private void writeRow(final Writer out, final String[] line, final ColumnPlan[] plans) throws IOException {
+			boolean first = true;
+			for (int i = 0; i < line.length; i++) {
+				if (plans[i] == ColumnPlan.SKIP) {
+					continue;
+				}
+				if (!first) {
+					out.write('\t');
+				}
+				first = false;
+				final String value = line[i];
+				if (value == null || NULL_VALUE.equalsIgnoreCase(value)) {
+					out.write("\\N");
+				} else if (plans[i] == ColumnPlan.BOOLEAN) {
+					out.write(BooleanParser.parseBoolean(value.toLowerCase(Locale.ROOT)) ? 't' : 'f');
+				} else {
+					writeText(out, value);
+				}
+			}
+			out.write('\n');
+		}
+
+		/**
+		 * Escape a value for the text format of COPY.
+		 */
+		private void writeText(final Writer out, final String value) throws IOException {
+			for (int i = 0; i < value.length(); i++) {
+				final char c = value.charAt(i);
+				switch (c) {
+				case '\\':
+					out.write("\\\\");
+					break;
+				case '\t':
+					out.write("\\t");
+					break;
+				case '\n':
+					out.write("\\n");
+					break;
+				case '\r':
+					out.write("\\r");
+					break;
+				default:
+					out.write(c);
+				}
+			}
+		}
+	}
+}
@@ -4,8 +4,15 @@ import java.security.GeneralSecurityException;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import com.fb.commons.crypt.Crypt;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 import liquibase.database.Database;
 import liquibase.database.DatabaseFactory;
@@ -14,6 +21,20 @@ import liquibase.exception.DatabaseException;
 
 public final class DatabaseBuilder {
 
+	private static final Logger LOG = Logger.getLogger(DatabaseBuilder.class.getName());
+
+	// PostgreSQL driver property
+	private static final String REWRITE_BATCHED_INSERTS = "reWriteBatchedInserts";
+
+	// Connection pools by url, user and pool settings, only used if pool.enabled is set
+	private static final Map<String, HikariDataSource> POOLS = new ConcurrentHashMap<>();
+
+	// Pool connections regardless of the stage properties, set by the daemon
+	private static volatile boolean poolingForced;
+
+	// Set with the first pool, guarded by POOLS
+	private static boolean shutdownHookAdded;
+
 	private DatabaseBuilder() {
 		// empty constructor
 	}
@@ -56,22 +77,105 @@ public final class DatabaseBuilder {
 
 	private static Database buildDatabase(final StageProperties properties, final DatabaseType databaseType,
 			final byte[] privateKey, boolean diff) throws SQLException, GeneralSecurityException, DatabaseException {
+		final String url = diff ? properties.getDiffUrl() : properties.getUrl();
+		final String userName = diff ? properties.getDiffUserName() : properties.getUserName();
+		final String password = diff ? properties.getDiffPassword() : properties.getPassword();
+
+		// let the driver turn batched inserts into multi-row inserts
+		final boolean rewriteBatchedInserts = databaseType == DatabaseType.POSTGRESQL && properties.getBatchSize() > 1;
+
 		JdbcConnection connection = null;
-		if (diff) {
-			connection = new JdbcConnection(DriverManager.getConnection(properties.getDiffUrl(),
-					properties.getDiffUserName(), Crypt.decrypt(privateKey, properties.getDiffPassword())));
+		if (isPooled(properties)) {
+			// the pool validates idle connections itself
+			connection = new JdbcConnection(
+					getPool(properties, url, userName, password, privateKey, rewriteBatchedInserts).getConnection());
 		} else {
-			connection = new JdbcConnection(DriverManager.getConnection(properties.getUrl(), properties.getUserName(),
-					Crypt.decrypt(privateKey, properties.getPassword())));
+			final Properties info = new Properties();
+			info.setProperty("user", userName);
+			info.setProperty("password", Crypt.decrypt(privateKey, password));
+			if (rewriteBatchedInserts) {
+				info.setProperty(REWRITE_BATCHED_INSERTS, "true");
+			}
+			connection = new JdbcConnection(DriverManager.getConnection(url, info));
+			checkConnection(connection, databaseType);
 		}
 
-		checkConnection(connection, databaseType);
 		Database database = DatabaseFactory.getInstance().findCorrectDatabaseImplementation(connection);
 		database.setDefaultSchemaName(diff ? properties.getDiffSchemaName() : properties.getSchemaName());
 
 		return database;
 	}
 
+	/**
+	 * Get the pool for the given url, user and pool settings, create it on first
+	 * use. The password is decrypted only once per pool.
+	 */
+	private static HikariDataSource getPool(final StageProperties properties, final String url,
+			final String userName, final String password, final byte[] privateKey, final boolean rewriteBatchedInserts)
+			throws GeneralSecurityException {
+		final String key = userName + "@" + url + "?size=" + properties.getPoolSize() + "&validation="
+				+ properties.getPoolValidationInterval() + "&rewrite=" + rewriteBatchedInserts;
+		HikariDataSource pool = POOLS.get(key);
+		if (pool != null) {
+			return pool;
+		}
+		synchronized (POOLS) {
+			pool = POOLS.get(key);
+			if (pool == null) {
+				final HikariConfig config = new HikariConfig();
+				config.setPoolName("migration-" + POOLS.size());
+				config.setJdbcUrl(url);
+				config.setUsername(userName);
+				config.setPassword(Crypt.decrypt(privateKey, password));
+				config.setMaximumPoolSize(properties.getPoolSize());
+				config.setMinimumIdle(1);
+				config.setKeepaliveTime(TimeUnit.SECONDS.toMillis(properties.getPoolValidationInterval()));
+				if (rewriteBatchedInserts) {
+					config.addDataSourceProperty(REWRITE_BATCHED_INSERTS, "true");
+				}
+				LOG.info("Create connection pool for " + key + " with " + properties.getPoolSize()
+						+ " connections");
+				pool = new HikariDataSource(config);
+				POOLS.put(key, pool);
+				if (!shutdownHookAdded) {
+					Runtime.getRuntime()
+							.addShutdownHook(new Thread(DatabaseBuilder::closePools, "close-connection-pools"));
+					shutdownHookAdded = true;
+				}
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * Pool the connections of all databases built from now on, even if
+	 * pool.enabled is not set.
+	 */
+	public static void forcePooling() {
+		poolingForced = true;
+	}
+
+	/**
+	 * @param properties
+	 * @return true if databases for these properties use pooled connections
+	 */
+	public static boolean isPooled(final StageProperties properties) {
+		return poolingForced || properties.isConnectionPool();
+	}
+
+	/**
+	 * Close all connection pools. Called on shutdown, pooled databases must not be
+	 * used afterwards.
+	 */
+	public static void closePools() {
+		synchronized (POOLS) {
+			for (HikariDataSource pool : POOLS.values()) {
+				pool.close();
+			}
+			POOLS.clear();
+		}
+	}
+
 	private static void checkConnection(JdbcConnection connection, DatabaseType databaseType) {
 		try (Statement stmt = connection.createStatement()) {
 			switch (databaseType) {
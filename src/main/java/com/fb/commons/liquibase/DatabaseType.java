@@ -2,5 +2,22 @@ package com.fb.commons.liquibase;
 
 public enum DatabaseType {
     ORACLE,
-    POSTGRESQL
+    POSTGRESQL;
+
+    /**
+     * Database type of a JDBC url.
+     * 
+     * @param url
+     * @return database type
+     * @throws IllegalArgumentException if the url belongs to another database
+     */
+    public static DatabaseType fromUrl(final String url) {
+        if (url.startsWith("jdbc:oracle")) {
+            return ORACLE;
+        }
+        if (url.startsWith("jdbc:postgresql")) {
+            return POSTGRESQL;
+        }
+        throw new IllegalArgumentException("Cannot determine database type from JDBC url!");
+    }
 }
@@ -0,0 +1,473 @@
+package com.fb.commons.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.RuntimeEnvironment;
+import liquibase.change.Change;
+import liquibase.changelog.ChangeLogIterator;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.ChangeSetFilterResult;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.visitor.ChangeSetVisitor;
+import liquibase.database.Database;
+import liquibase.dbdoc.AuthorListWriter;
+import liquibase.dbdoc.AuthorWriter;
+import liquibase.dbdoc.ChangeLogListWriter;
+import liquibase.dbdoc.ChangeLogWriter;
+import liquibase.dbdoc.ColumnWriter;
+import liquibase.dbdoc.DBDocUtil;
+import liquibase.dbdoc.PendingChangesWriter;
+import liquibase.dbdoc.PendingSQLWriter;
+import liquibase.dbdoc.RecentChangesWriter;
+import liquibase.dbdoc.TableListWriter;
+import liquibase.dbdoc.TableWriter;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.exception.LockException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.resource.ResourceAccessor;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Column;
+import liquibase.structure.core.ForeignKey;
+import liquibase.structure.core.Index;
+import liquibase.structure.core.Table;
+import liquibase.util.StreamUtil;
+
+/**
+ * Generates the same documentation as {@link Liquibase#generateDocumentation},
+ * but renders the author, table, column and changelog pages on a worker pool.
+ * <p>
+ * In incremental mode a manifest with a fingerprint of the content of every
+ * page is kept in the output directory. Pages whose fingerprint did not change
+ * since the last run are not written again, pages of dropped objects are
+ * deleted. The overview pages (lists, pending and recent changes) are small
+ * and always written.
+ */
+public class DbDocGenerator {
+
+	private static final Logger LOG = Logger.getLogger(DbDocGenerator.class.getName());
+
+	private static final String MANIFEST_FILE = ".dbdoc-manifest.properties";
+	private static final int MAX_RECENT_CHANGES = 50;
+	private static final String[] STATIC_RESOURCES = { "stylesheet.css", "index.html", "globalnav.html",
+			"overview-summary.html" };
+
+	private final File outputDirectory;
+	private final int threads;
+	private final boolean incremental;
+
+	public DbDocGenerator(final File outputDirectory, final int threads, final boolean incremental) {
+		this.outputDirectory = outputDirectory;
+		this.threads = threads;
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Generate the documentation for the changelog of the given Liquibase
+	 * instance. The changelog lock is held while the documentation is generated.
+	 *
+	 * @param liquibase
+	 * @throws LiquibaseException if the changelog or the database cannot be read
+	 */
+	public void generate(final Liquibase liquibase) throws LiquibaseException {
+		final Database database = liquibase.getDatabase();
+		final LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+		lockService.waitForLock();
+		try {
+			final DatabaseChangeLog changeLog = liquibase.getDatabaseChangeLog();
+			final Contexts contexts = new Contexts();
+			final LabelExpression labels = new LabelExpression();
+			liquibase.checkLiquibaseTables(false, changeLog, contexts, labels);
+			changeLog.validate(database, contexts, labels);
+
+			final CollectingVisitor visitor = new CollectingVisitor();
+			new ChangeLogIterator(changeLog, new DbmsChangeSetFilter(database)).run(visitor,
+					new RuntimeEnvironment(database, contexts, labels));
+
+			write(visitor, database, liquibase.getResourceAccessor());
+		} catch (IOException e) {
+			throw new LiquibaseException("Documentation cannot be written", e);
+		} finally {
+			try {
+				lockService.releaseLock();
+			} catch (LockException e) {
+				LOG.warning("Could not release changelog lock: " + e.getMessage());
+			}
+		}
+	}
+
+	private void write(final CollectingVisitor visitor, final Database database,
+			final ResourceAccessor resourceAccessor) throws IOException, LiquibaseException {
+		final long start = System.currentTimeMillis();
+		Files.createDirectories(outputDirectory.toPath());
+		for (String resource : STATIC_RESOURCES) {
+			copyResource(resource);
+		}
+
+		final DatabaseSnapshot snapshot = SnapshotGeneratorFactory.getInstance()
+				.createSnapshot(database.getDefaultSchema(), database, new SnapshotControl(database));
+		final SortedSet<Table> tables = new TreeSet<>();
+		for (Table table : snapshot.get(Table.class)) {
+			if (!LiquibaseTableFilter.isExcluded(database, table)) {
+				tables.add(table);
+			}
+		}
+
+		new ChangeLogListWriter(outputDirectory).writeHTML(visitor.changeLogs);
+		new TableListWriter(outputDirectory).writeHTML(tables);
+		new AuthorListWriter(outputDirectory).writeHTML(new TreeSet<>(visitor.changesByAuthor.keySet()));
+
+		final Properties previous = incremental ? readManifest() : new Properties();
+		final Map<String, String> current = new ConcurrentHashMap<>();
+		final List<Page> pages = new ArrayList<>();
+
+		for (final String author : visitor.changesByAuthor.keySet()) {
+			final List<Change> changes = visitor.changesByAuthor.get(author);
+			final List<Change> changesToRun = visitor.changesToRunByAuthor.get(author);
+			pages.add(new Page("authors", author, () -> fingerprint(database, changes, changesToRun),
+					() -> new AuthorWriter(outputDirectory, database).writeHTML(author, changes, changesToRun,
+							visitor.rootChangeLogName)));
+		}
+		for (final Table table : tables) {
+			final List<Change> changes = visitor.changesByObject.get(table);
+			final List<Change> changesToRun = visitor.changesToRunByObject.get(table);
+			pages.add(new Page("tables", table.toString(),
+					() -> fingerprint(database, changes, changesToRun) + describe(table),
+					() -> new TableWriter(outputDirectory, database).writeHTML(table, changes, changesToRun,
+							visitor.rootChangeLogName)));
+		}
+		for (final Column column : snapshot.get(Column.class)) {
+			if (LiquibaseTableFilter.isExcluded(database, column)) {
+				continue;
+			}
+			final List<Change> changes = visitor.changesByObject.get(column);
+			final List<Change> changesToRun = visitor.changesToRunByObject.get(column);
+			pages.add(new Page("columns", column.toString(),
+					() -> fingerprint(database, changes, changesToRun) + describe(column),
+					() -> new ColumnWriter(outputDirectory, database).writeHTML(column, changes, changesToRun,
+							visitor.rootChangeLogName)));
+		}
+		for (final ChangeLogInfo info : visitor.changeLogs) {
+			pages.add(new Page("changelogs", info.logicalPath, () -> hashResource(info.physicalPath, resourceAccessor),
+					() -> new ChangeLogWriter(resourceAccessor, outputDirectory).writeChangeLog(info.logicalPath,
+							info.physicalPath)));
+		}
+
+		final int written = render(pages, previous, current);
+
+		// the pending SQL is generated through a logging executor which is
+		// registered for the whole database, so these pages are written last
+		new PendingChangesWriter(outputDirectory, database).writeHTML("index", null, visitor.changesToRun,
+				visitor.rootChangeLogName);
+		new PendingSQLWriter(outputDirectory, database, visitor.rootChangeLog).writeHTML("sql", null,
+				visitor.changesToRun, visitor.rootChangeLogName);
+		final List<Change> recentChanges = visitor.recentChanges.size() > MAX_RECENT_CHANGES
+				? visitor.recentChanges.subList(0, MAX_RECENT_CHANGES)
+				: visitor.recentChanges;
+		new RecentChangesWriter(outputDirectory, database).writeHTML("index", recentChanges, null,
+				visitor.rootChangeLogName);
+
+		if (incremental) {
+			deleteStalePages(previous, current);
+		}
+		writeManifest(current);
+		LOG.info("Documentation written to " + outputDirectory + ": " + written + " of " + pages.size()
+				+ " pages rendered in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Render all pages whose fingerprint changed on the worker pool.
+	 *
+	 * @return number of rendered pages
+	 */
+	private int render(final List<Page> pages, final Properties previous, final Map<String, String> current)
+			throws LiquibaseException {
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<Boolean>> futures = new ArrayList<>();
+			for (final Page page : pages) {
+				futures.add(pool.submit(() -> {
+					final String fingerprint = Hashes.sha256Hex(page.fingerprint.call());
+					current.put(page.getKey(), fingerprint);
+					if (fingerprint.equals(previous.getProperty(page.getKey())) && page.getFile().isFile()) {
+						return false;
+					}
+					page.writer.write();
+					return true;
+				}));
+			}
+
+			int written = 0;
+			for (Future<Boolean> future : futures) {
+				if (future.get()) {
+					written++;
+				}
+			}
+			return written;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LiquibaseException("Documentation generation interrupted", e);
+		} catch (ExecutionException e) {
+			throw new LiquibaseException("Documentation page cannot be written", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fingerprint of the change lists shown on a page, including the run status
+	 * and the execution date of every changeset.
+	 */
+	private static String fingerprint(final Database database, final List<Change> changes,
+			final List<Change> changesToRun) throws DatabaseException, LiquibaseException {
+		final StringBuilder result = new StringBuilder();
+		for (List<Change> list : Arrays.asList(changes, changesToRun)) {
+			result.append('[');
+			if (list != null) {
+				for (Change change : list) {
+					final ChangeSet changeSet = change.getChangeSet();
+					final Date ranDate = database.getRanDate(changeSet);
+					result.append(changeSet.toString(false)).append('|').append(database.getRunStatus(changeSet))
+							.append('|').append(ranDate != null ? ranDate.getTime() : 0).append('|')
+							.append(change.getConfirmationMessage()).append('|').append(changeSet.getComments())
+							.append('\n');
+				}
+			}
+			result.append(']');
+		}
+		return result.toString();
+	}
+
+	private static String describe(final Table table) {
+		final StringBuilder result = new StringBuilder(table.getName()).append('|').append(table.getRemarks());
+		for (Column column : table.getColumns()) {
+			result.append('\n').append(describe(column));
+		}
+		result.append('\n').append(table.getPrimaryKey());
+		for (Index index : table.getIndexes()) {
+			result.append('\n').append(index).append(index.getColumnNames()).append(index.isUnique());
+		}
+		for (ForeignKey foreignKey : table.getOutgoingForeignKeys()) {
+			result.append('\n').append(foreignKey);
+		}
+		return result.toString();
+	}
+
+	private static String describe(final Column column) {
+		return column.getName() + '|' + column.getType() + '|' + column.isNullable() + '|'
+				+ column.getDefaultValue() + '|' + column.getAutoIncrementInformation() + '|' + column.getRemarks();
+	}
+
+	private static String hashResource(final String location, final ResourceAccessor resourceAccessor)
+			throws IOException {
+		try (InputStream in = StreamUtil.singleInputStream(location, resourceAccessor)) {
+			if (in == null) {
+				return "";
+			}
+			return Hashes.toHex(Hashes.sha256(in));
+		}
+	}
+
+	private void copyResource(final String name) throws IOException {
+		try (InputStream in = getClass().getClassLoader().getResourceAsStream("liquibase/dbdoc/" + name)) {
+			if (in == null) {
+				throw new IOException("Documentation resource not found: " + name);
+			}
+			Files.copy(in, new File(outputDirectory, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private Properties readManifest() {
+		final Properties manifest = new Properties();
+		final Path file = new File(outputDirectory, MANIFEST_FILE).toPath();
+		if (Files.isRegularFile(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				manifest.load(in);
+			} catch (IOException e) {
+				LOG.warning("Ignore unreadable documentation manifest " + file + ": " + e.getMessage());
+			}
+		}
+		return manifest;
+	}
+
+	private void writeManifest(final Map<String, String> fingerprints) throws IOException {
+		final Properties manifest = new Properties();
+		manifest.putAll(fingerprints);
+		final Path tempFile = Files.createTempFile(outputDirectory.toPath(), "manifest", ".tmp");
+		try (OutputStream out = Files.newOutputStream(tempFile)) {
+			manifest.store(out, "dbdoc page fingerprints");
+		}
+		Files.move(tempFile, new File(outputDirectory, MANIFEST_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void deleteStalePages(final Properties previous, final Map<String, String> current) throws IOException {
+		for (String key : previous.stringPropertyNames()) {
+			if (!current.containsKey(key)) {
+				LOG.fine("Delete documentation page " + key);
+				Files.deleteIfExists(new File(outputDirectory, key).toPath());
+			}
+		}
+	}
+
+	private interface PageWriter {
+		void write() throws IOException, LiquibaseException;
+	}
+
+	/**
+	 * One page of the documentation with the file name used by the Liquibase
+	 * writers.
+	 */
+	private class Page {
+
+		private final String directory;
+		private final String name;
+		private final Callable<String> fingerprint;
+		private final PageWriter writer;
+
+		Page(final String directory, final String name, final Callable<String> fingerprint,
+				final PageWriter writer) {
+			this.directory = directory;
+			this.name = name;
+			this.fingerprint = fingerprint;
+			this.writer = writer;
+		}
+
+		String getKey() {
+			final String fileName = "changelogs".equals(directory) ? name.replace(":", "_")
+					: DBDocUtil.toFileName(name);
+			return directory + "/" + fileName.toLowerCase() + ".html";
+		}
+
+		File getFile() {
+			return new File(outputDirectory, getKey());
+		}
+	}
+
+	/**
+	 * Changelog file shown in the changelog list, the list uses the logical path
+	 * as page name.
+	 */
+	private static class ChangeLogInfo implements Comparable<ChangeLogInfo> {
+
+		private final String logicalPath;
+		private final String physicalPath;
+
+		ChangeLogInfo(final String logicalPath, final String physicalPath) {
+			this.logicalPath = logicalPath;
+			this.physicalPath = physicalPath;
+		}
+
+		@Override
+		public int compareTo(final ChangeLogInfo other) {
+			return logicalPath.compareTo(other.logicalPath);
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof ChangeLogInfo && logicalPath.equals(((ChangeLogInfo) other).logicalPath);
+		}
+
+		@Override
+		public int hashCode() {
+			return logicalPath.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return logicalPath;
+		}
+	}
+
+	/**
+	 * Collects the changes per author and per database object like the DBDoc
+	 * visitor of Liquibase. Visiting also loads the run status of all changesets,
+	 * so the workers only read the cached history afterwards.
+	 */
+	private static class CollectingVisitor implements ChangeSetVisitor {
+
+		private final Map<String, List<Change>> changesByAuthor = new HashMap<>();
+		private final Map<String, List<Change>> changesToRunByAuthor = new HashMap<>();
+		private final Map<DatabaseObject, List<Change>> changesByObject = new HashMap<>();
+		private final Map<DatabaseObject, List<Change>> changesToRunByObject = new HashMap<>();
+		private final List<Change> changesToRun = new ArrayList<>();
+		private final List<Change> recentChanges = new ArrayList<>();
+		private final SortedSet<ChangeLogInfo> changeLogs = new TreeSet<>();
+		private String rootChangeLogName;
+		private DatabaseChangeLog rootChangeLog;
+
+		@Override
+		public Direction getDirection() {
+			return Direction.FORWARD;
+		}
+
+		@Override
+		public void visit(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+				final Database database, final Set<ChangeSetFilterResult> filterResults) throws LiquibaseException {
+			final ChangeSet.RunStatus runStatus = database.getRunStatus(changeSet);
+			if (rootChangeLogName == null) {
+				rootChangeLogName = changeSet.getFilePath();
+				rootChangeLog = databaseChangeLog;
+			}
+			final boolean toRun = runStatus == ChangeSet.RunStatus.NOT_RAN
+					|| runStatus == ChangeSet.RunStatus.RUN_AGAIN;
+
+			changesByAuthor.computeIfAbsent(changeSet.getAuthor(), author -> new ArrayList<>());
+			changesToRunByAuthor.computeIfAbsent(changeSet.getAuthor(), author -> new ArrayList<>());
+			for (Change change : changeSet.getChanges()) {
+				if (toRun) {
+					changesToRunByAuthor.get(changeSet.getAuthor()).add(change);
+					changesToRun.add(change);
+				} else {
+					changesByAuthor.get(changeSet.getAuthor()).add(change);
+					recentChanges.add(0, change);
+				}
+			}
+
+			changeLogs.add(new ChangeLogInfo(changeSet.getChangeLog().getLogicalFilePath(),
+					changeSet.getChangeLog().getPhysicalFilePath()));
+
+			for (Change change : changeSet.getChanges()) {
+				final Set<DatabaseObject> affectedObjects = change.getAffectedDatabaseObjects(database);
+				if (affectedObjects == null) {
+					continue;
+				}
+				for (DatabaseObject object : affectedObjects) {
+					final Map<DatabaseObject, List<Change>> target = toRun ? changesToRunByObject : changesByObject;
+					target.computeIfAbsent(object, key -> new ArrayList<>()).add(change);
+				}
+			}
+		}
+	}
+}
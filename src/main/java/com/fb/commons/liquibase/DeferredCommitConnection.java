@@ -0,0 +1,43 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+
+/**
+ * Ignores the commits of Liquibase until {@link #commitNow()}.
+ */
+class DeferredCommitConnection extends JdbcConnection {
+
+	private boolean rolledBack;
+
+	DeferredCommitConnection(final Connection connection) {
+		super(connection);
+	}
+
+	@Override
+	public void commit() throws DatabaseException {
+		// deferred to commitNow
+	}
+
+	@Override
+	public void rollback() throws DatabaseException {
+		rolledBack = true;
+		super.rollback();
+	}
+
+	/**
+	 * Commit the work of Liquibase since the last commit.
+	 */
+	void commitNow() throws DatabaseException {
+		super.commit();
+	}
+
+	/**
+	 * @return true if Liquibase rolled back the transaction
+	 */
+	boolean isRolledBack() {
+		return rolledBack;
+	}
+}
@@ -0,0 +1,308 @@
+package com.fb.commons.liquibase;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.database.Database;
+import liquibase.database.core.OracleDatabase;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LockException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.structure.core.Schema;
+
+/**
+ * DROPALL without snapshot. {@link Liquibase#dropAll()} reads the whole schema
+ * and drops the objects one by one, which takes minutes for schemas with
+ * thousands of objects. This cleaner lets the database drop them in bulk:
+ * <ul>
+ * <li>PostgreSQL: DROP SCHEMA ... CASCADE and CREATE SCHEMA in one
+ * transaction. Owner, grants, default privileges and comment of the schema are
+ * read before and restored. Extensions installed in the schema are dropped,
+ * too. Large schemas may need a higher max_locks_per_transaction. CASCADE
+ * would also drop objects of other schemas which depend on the schema, e.g.
+ * views, foreign keys or column types; the cleaner fails with their list
+ * instead and drops nothing.</li>
+ * <li>Oracle: one PL/SQL block drops all objects of the schema found in the
+ * data dictionary, tables with CASCADE CONSTRAINTS PURGE. Objects which cannot
+ * be dropped are counted, the block fails at the end with the first
+ * error.</li>
+ * </ul>
+ * The default schema of the database is cleaned, including the changelog
+ * tables.
+ */
+public class FastSchemaCleaner {
+
+	private static final Logger LOG = Logger.getLogger(FastSchemaCleaner.class.getName());
+
+	private static final String SCHEMA_QUERY = "SELECT pg_get_userbyid(n.nspowner), "
+			+ "obj_description(n.oid, 'pg_namespace') FROM pg_namespace n WHERE n.nspname = ?";
+
+	// grantee 0 is PUBLIC
+	private static final String SCHEMA_GRANTS_QUERY = "SELECT CASE a.grantee WHEN 0 THEN NULL "
+			+ "ELSE pg_get_userbyid(a.grantee) END, a.privilege_type, a.is_grantable "
+			+ "FROM pg_namespace n, aclexplode(n.nspacl) a WHERE n.nspname = ?";
+
+	private static final String DEFAULT_PRIVILEGES_QUERY = "SELECT pg_get_userbyid(d.defaclrole), d.defaclobjtype, "
+			+ "CASE a.grantee WHEN 0 THEN NULL ELSE pg_get_userbyid(a.grantee) END, a.privilege_type, "
+			+ "a.is_grantable FROM pg_default_acl d, aclexplode(d.defaclacl) a WHERE d.defaclnamespace = "
+			+ "(SELECT oid FROM pg_namespace WHERE nspname = ?)";
+
+	// objects outside the schema which depend on objects in it; rules, triggers, policies and column
+	// defaults belong to the schema of their table, everything else to the schema pg_identify_object names
+	private static final String EXTERNAL_DEPENDENTS_QUERY = "WITH s AS (SELECT oid FROM pg_namespace "
+			+ "WHERE nspname = ?), inside (classid, objid) AS (SELECT 'pg_namespace'::regclass::oid, s.oid FROM s "
+			+ "UNION ALL SELECT 'pg_class'::regclass::oid, c.oid FROM pg_class c, s WHERE c.relnamespace = s.oid "
+			+ "UNION ALL SELECT 'pg_type'::regclass::oid, t.oid FROM pg_type t, s WHERE t.typnamespace = s.oid "
+			+ "UNION ALL SELECT 'pg_proc'::regclass::oid, p.oid FROM pg_proc p, s WHERE p.pronamespace = s.oid "
+			+ "UNION ALL SELECT 'pg_operator'::regclass::oid, o.oid FROM pg_operator o, s "
+			+ "WHERE o.oprnamespace = s.oid "
+			+ "UNION ALL SELECT 'pg_collation'::regclass::oid, l.oid FROM pg_collation l, s "
+			+ "WHERE l.collnamespace = s.oid) "
+			+ "SELECT DISTINCT pg_describe_object(d.classid, d.objid, d.objsubid) "
+			+ "FROM pg_depend d JOIN inside i ON d.refclassid = i.classid AND d.refobjid = i.objid "
+			+ "WHERE d.deptype IN ('n', 'a') AND COALESCE(CASE d.classid "
+			+ "WHEN 'pg_rewrite'::regclass THEN (SELECT c.relnamespace FROM pg_rewrite r "
+			+ "JOIN pg_class c ON c.oid = r.ev_class WHERE r.oid = d.objid) "
+			+ "WHEN 'pg_trigger'::regclass THEN (SELECT c.relnamespace FROM pg_trigger t "
+			+ "JOIN pg_class c ON c.oid = t.tgrelid WHERE t.oid = d.objid) "
+			+ "WHEN 'pg_policy'::regclass THEN (SELECT c.relnamespace FROM pg_policy p "
+			+ "JOIN pg_class c ON c.oid = p.polrelid WHERE p.oid = d.objid) "
+			+ "WHEN 'pg_attrdef'::regclass THEN (SELECT c.relnamespace FROM pg_attrdef a "
+			+ "JOIN pg_class c ON c.oid = a.adrelid WHERE a.oid = d.objid) "
+			+ "WHEN 'pg_extension'::regclass THEN (SELECT extnamespace FROM pg_extension WHERE oid = d.objid) "
+			+ "WHEN 'pg_default_acl'::regclass THEN (SELECT defaclnamespace FROM pg_default_acl "
+			+ "WHERE oid = d.objid) "
+			+ "ELSE (SELECT n.oid FROM pg_namespace n "
+			+ "WHERE n.nspname = (pg_identify_object(d.classid, d.objid, 0)).schema) END, 0) <> (SELECT oid FROM s) "
+			+ "ORDER BY 1";
+
+	private static final int MAX_LISTED_DEPENDENTS = 20;
+
+	// object types in drop order, indexes, LOBs and package bodies are dropped with their owner;
+	// objects which disappeared with an object dropped before are ignored
+	private static final String ORACLE_DROP_BLOCK = "DECLARE\n"
+			+ "  v_owner VARCHAR2(128) := ?;\n"
+			+ "  v_failed PLS_INTEGER := 0;\n"
+			+ "  v_first VARCHAR2(4000);\n"
+			+ "BEGIN\n"
+			+ "  FOR o IN (SELECT object_name, object_type FROM all_objects\n"
+			+ "            WHERE owner = v_owner AND generated = 'N' AND object_name NOT LIKE 'BIN$%'\n"
+			+ "              AND object_type IN ('MATERIALIZED VIEW', 'TABLE', 'VIEW', 'SYNONYM', 'SEQUENCE',\n"
+			+ "                'PACKAGE', 'PROCEDURE', 'FUNCTION', 'TRIGGER', 'TYPE')\n"
+			+ "              AND NOT (object_type = 'TABLE' AND object_name IN (SELECT mview_name\n"
+			+ "                FROM all_mviews WHERE owner = v_owner))\n"
+			+ "              AND NOT (object_type = 'TABLE' AND object_name IN (SELECT table_name\n"
+			+ "                FROM all_tables WHERE owner = v_owner\n"
+			+ "                AND (nested = 'YES' OR secondary = 'Y' OR iot_type = 'IOT_OVERFLOW')))\n"
+			+ "            ORDER BY DECODE(object_type, 'TRIGGER', 0, 'MATERIALIZED VIEW', 1, 'TABLE', 2, 'VIEW', 3,\n"
+			+ "              'TYPE', 9, 5))\n"
+			+ "  LOOP\n"
+			+ "    BEGIN\n"
+			+ "      EXECUTE IMMEDIATE 'DROP ' || o.object_type\n"
+			+ "        || ' \"' || v_owner || '\".\"' || o.object_name || '\"'\n"
+			+ "        || CASE o.object_type WHEN 'TABLE' THEN ' CASCADE CONSTRAINTS PURGE'\n"
+			+ "           WHEN 'TYPE' THEN ' FORCE' END;\n"
+			+ "    EXCEPTION\n"
+			+ "      WHEN OTHERS THEN\n"
+			+ "        IF SQLCODE NOT IN (-942, -1434, -2289, -4043, -4080, -12003) THEN\n"
+			+ "          v_failed := v_failed + 1;\n"
+			+ "          IF v_first IS NULL THEN\n"
+			+ "            v_first := SUBSTR(o.object_type || ' ' || o.object_name || ': ' || SQLERRM, 1, 3900);\n"
+			+ "          END IF;\n"
+			+ "        END IF;\n"
+			+ "    END;\n"
+			+ "  END LOOP;\n"
+			+ "  IF v_failed > 0 THEN\n"
+			+ "    RAISE_APPLICATION_ERROR(-20001, v_failed || ' objects could not be dropped, first: ' || v_first);\n"
+			+ "  END IF;\n"
+			+ "END;";
+
+	/**
+	 * Drop all objects of the default schema under the changelog lock.
+	 *
+	 * @param liquibase
+	 */
+	public void dropAll(final Liquibase liquibase) throws LockException {
+		final Database database = liquibase.getDatabase();
+		final LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+		lockService.waitForLock();
+		final long start = System.currentTimeMillis();
+		boolean dropped = false;
+		try {
+			final String schema = database.getDefaultSchemaName();
+			if (database instanceof PostgresDatabase) {
+				dropPostgres(database, schema);
+			} else if (database instanceof OracleDatabase) {
+				dropOracle(database, schema);
+			} else {
+				throw new MigrationException("Fast drop all is not supported for " + database.getShortName());
+			}
+			dropped = true;
+			LOG.info("Dropped all objects of schema " + schema + " in " + (System.currentTimeMillis() - start)
+					+ " ms");
+		} finally {
+			ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).reset();
+			if (!dropped) {
+				releaseAfterFailure(lockService);
+			} else if (lockService instanceof SessionLockService) {
+				lockService.releaseLock();
+			} else {
+				// the lock table was dropped with the schema
+				lockService.reset();
+			}
+		}
+	}
+
+	/**
+	 * Release the lock after a failed or refused drop, the lock table is still
+	 * there unless Oracle dropped it before the failure.
+	 */
+	private static void releaseAfterFailure(final LockService lockService) {
+		try {
+			lockService.releaseLock();
+		} catch (LockException e) {
+			LOG.warning("Could not release changelog lock: " + e.getMessage());
+			lockService.reset();
+		}
+	}
+
+	private static void dropPostgres(final Database database, final String schema) {
+		final Connection connection = getConnection(database);
+		final String escapedSchema = database.escapeObjectName(schema, Schema.class);
+		try {
+			checkExternalDependents(connection, schema);
+			final List<String> statements = new ArrayList<>();
+			try (PreparedStatement stmt = connection.prepareStatement(SCHEMA_QUERY)) {
+				stmt.setString(1, schema);
+				try (ResultSet rs = stmt.executeQuery()) {
+					if (!rs.next()) {
+						throw new MigrationException("Schema " + schema + " does not exist");
+					}
+					statements.add("DROP SCHEMA " + escapedSchema + " CASCADE");
+					statements.add("CREATE SCHEMA " + escapedSchema + " AUTHORIZATION " + quoteRole(rs.getString(1)));
+					if (rs.getString(2) != null) {
+						statements.add("COMMENT ON SCHEMA " + escapedSchema + " IS " + quoteLiteral(rs.getString(2)));
+					}
+				}
+			}
+			try (PreparedStatement stmt = connection.prepareStatement(SCHEMA_GRANTS_QUERY)) {
+				stmt.setString(1, schema);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						statements.add("GRANT " + rs.getString(2) + " ON SCHEMA " + escapedSchema + " TO "
+								+ grantee(rs.getString(1)) + (rs.getBoolean(3) ? " WITH GRANT OPTION" : ""));
+					}
+				}
+			}
+			try (PreparedStatement stmt = connection.prepareStatement(DEFAULT_PRIVILEGES_QUERY)) {
+				stmt.setString(1, schema);
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next()) {
+						statements.add("ALTER DEFAULT PRIVILEGES FOR ROLE " + quoteRole(rs.getString(1)) + " IN SCHEMA "
+								+ escapedSchema + " GRANT " + rs.getString(4) + " ON " + objectTypes(rs.getString(2))
+								+ " TO " + grantee(rs.getString(3))
+								+ (rs.getBoolean(5) ? " WITH GRANT OPTION" : ""));
+					}
+				}
+			}
+			// one transaction, the schema is either cleaned or unchanged
+			try (Statement stmt = connection.createStatement()) {
+				for (String statement : statements) {
+					LOG.fine(statement);
+					stmt.execute(statement);
+				}
+			}
+			database.commit();
+		} catch (SQLException | DatabaseException e) {
+			rollback(database);
+			throw new MigrationException("Could not drop schema " + schema, e);
+		}
+	}
+
+	/**
+	 * Fail if DROP SCHEMA ... CASCADE would drop objects of other schemas.
+	 */
+	private static void checkExternalDependents(final Connection connection, final String schema)
+			throws SQLException {
+		final List<String> dependents = new ArrayList<>();
+		try (PreparedStatement stmt = connection.prepareStatement(EXTERNAL_DEPENDENTS_QUERY)) {
+			stmt.setString(1, schema);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					dependents.add(rs.getString(1));
+				}
+			}
+		}
+		if (dependents.isEmpty()) {
+			return;
+		}
+		final StringBuilder message = new StringBuilder("Schema " + schema + " cannot be dropped fast, "
+				+ dependents.size() + " objects outside the schema depend on it: ");
+		message.append(String.join(", ", dependents.subList(0, Math.min(dependents.size(), MAX_LISTED_DEPENDENTS))));
+		if (dependents.size() > MAX_LISTED_DEPENDENTS) {
+			message.append(" and ").append(dependents.size() - MAX_LISTED_DEPENDENTS).append(" more");
+		}
+		throw new MigrationException(message.append(". Drop them or run DROPALL without ")
+				.append("dropall.fast").toString());
+	}
+
+	private static void dropOracle(final Database database, final String schema) {
+		try (CallableStatement stmt = getConnection(database).prepareCall(ORACLE_DROP_BLOCK)) {
+			stmt.setString(1, schema);
+			stmt.execute();
+		} catch (SQLException e) {
+			throw new MigrationException("Could not drop all objects of schema " + schema, e);
+		}
+	}
+
+	private static String grantee(final String role) {
+		return role == null ? "PUBLIC" : quoteRole(role);
+	}
+
+	private static String objectTypes(final String defaclObjType) {
+		switch (defaclObjType) {
+		case "r":
+			return "TABLES";
+		case "S":
+			return "SEQUENCES";
+		case "f":
+			return "FUNCTIONS";
+		case "T":
+			return "TYPES";
+		default:
+			throw new MigrationException("Unknown default privilege object type: " + defaclObjType);
+		}
+	}
+
+	private static String quoteRole(final String role) {
+		return "\"" + role.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String quoteLiteral(final String value) {
+		return "'" + value.replace("'", "''") + "'";
+	}
+
+	private static Connection getConnection(final Database database) {
+		return ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+	}
+
+	private static void rollback(final Database database) {
+		try {
+			database.rollback();
+		} catch (DatabaseException e) {
+			LOG.warning("Could not roll back: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LockException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.structure.core.Schema;
+
+/**
+ * Runs UPDATE or VALIDATE across many schemas of the same database (schema per
+ * tenant) on a bounded worker pool. Every worker owns exactly one connection
+ * which is switched from schema to schema.
+ */
+public class FleetMigrationExecutor {
+
+	private static final Logger LOG = Logger.getLogger(FleetMigrationExecutor.class.getName());
+
+	private final StageProperties properties;
+	private final DatabaseType databaseType;
+	private final byte[] privateKey;
+	// computed once for all schemas
+	private final ChangeLogFingerprint changeLogFingerprint;
+
+	public FleetMigrationExecutor(final StageProperties properties, final DatabaseType databaseType,
+			final byte[] privateKey) {
+		this.properties = properties;
+		this.databaseType = databaseType;
+		this.privateKey = privateKey;
+		this.changeLogFingerprint = properties.isUpdateFingerprint()
+				? new ChangeLogFingerprint(new ClassLoaderResourceAccessor(), properties.getLocations(),
+						properties.getRootChangeLogName())
+				: null;
+	}
+
+	/**
+	 * Resolve the schema specification to a list of schema names. The
+	 * specification is a comma separated list, entries containing a '%' are
+	 * treated as LIKE pattern and looked up in the database. Only '%' is a
+	 * wildcard, '_' matches itself as it is common in schema names.
+	 *
+	 * @param schemaSpec - e.g. "tenant_a,tenant_b" or "tenant_%"
+	 * @param database   - database used to look up patterns
+	 * @return schema names in stable order without duplicates
+	 */
+	public List<String> resolveSchemas(final String schemaSpec, final Database database) {
+		final Set<String> schemas = new LinkedHashSet<>();
+		for (String entry : schemaSpec.split(",")) {
+			final String schema = entry.trim();
+			if (schema.isEmpty()) {
+				continue;
+			}
+			if (schema.contains("%")) {
+				schemas.addAll(findSchemas(schema, database));
+			} else {
+				schemas.add(schema);
+			}
+		}
+		return new ArrayList<>(schemas);
+	}
+
+	/**
+	 * Run the operation for all given schemas and wait for completion.
+	 *
+	 * @param operation - UPDATE or VALIDATE
+	 * @param schemas   - schemas to migrate
+	 * @return consolidated report
+	 */
+	public FleetReport execute(final LiquibaseOperation operation, final List<String> schemas) {
+		if (operation != LiquibaseOperation.UPDATE && operation != LiquibaseOperation.VALIDATE) {
+			throw new MigrationException("Operation not supported in fleet mode: " + operation);
+		}
+
+		final FleetReport report = new FleetReport(operation);
+		if (schemas.isEmpty()) {
+			LOG.warning("No schemas found for fleet " + operation);
+			return report;
+		}
+
+		final int workers = Math.min(properties.getFleetThreads(), schemas.size());
+		LOG.info("Start fleet " + operation + " for " + schemas.size() + " schemas with " + workers + " workers");
+
+		final List<Database> connections = Collections.synchronizedList(new ArrayList<Database>());
+		final ThreadLocal<Database> workerDatabase = new ThreadLocal<>();
+		final ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try {
+			final List<Future<FleetReport.SchemaResult>> futures = new ArrayList<>();
+			for (final String schema : schemas) {
+				futures.add(pool.submit(() -> {
+					Database database = workerDatabase.get();
+					if (database == null) {
+						database = DatabaseBuilder.buildDatabase(properties, databaseType, privateKey);
+						workerDatabase.set(database);
+						connections.add(database);
+					}
+					return processSchema(operation, schema, database);
+				}));
+			}
+
+			for (int i = 0; i < futures.size(); i++) {
+				report.add(await(schemas.get(i), futures.get(i)));
+			}
+		} finally {
+			pool.shutdownNow();
+			for (Database database : connections) {
+				if (DatabaseBuilder.isPooled(properties)) {
+					resetSchema(database);
+				}
+				close(database);
+			}
+		}
+
+		report.log();
+		return report;
+	}
+
+	private FleetReport.SchemaResult processSchema(final LiquibaseOperation operation, final String schema,
+			final Database database) {
+		final long start = System.currentTimeMillis();
+		try {
+			switchSchema(database, schema);
+			final Liquibase liquibase = new LiquibaseBuilder().withDatabase(database).withResourceAccessor()
+					.withDatabaseChangeLog(properties.getLocations(), properties.getRootChangeLogName())
+					.withChangeLogTableName(properties.getVersionTable())
+					.withChangeLogCache(properties.getChangeLogCacheDir())
+					.withLoadDataCopy(properties.isLoadDataCopy())
+					.withSessionLock(properties.isSessionLock())
+					.withCatalogSnapshot(properties.isCatalogSnapshot()).build();
+			final LiquibaseOperationExecutor executor = new LiquibaseOperationExecutor();
+			executor.setParallelValidation(properties.isParallelValidation());
+			executor.setBatchSize(properties.getBatchSize());
+			executor.setCommitGroupSize(properties.getCommitGroupSize());
+			executor.setChangeLogFingerprint(changeLogFingerprint);
+			executor.setAtomicUpdate(properties.isAtomicUpdate());
+			if (properties.isOnlineDdl()) {
+				executor.setOnlineLockTimeout(properties.getOnlineLockTimeout());
+				executor.setOnlineRetries(properties.getOnlineRetries());
+			}
+			executor.processOperation(operation, liquibase);
+			LOG.info("Schema " + schema + " done");
+			return new FleetReport.SchemaResult(schema, true, System.currentTimeMillis() - start, null);
+		} catch (RuntimeException e) {
+			LOG.severe("Schema " + schema + " failed: " + e.getMessage());
+			releaseLock(database, schema);
+			return new FleetReport.SchemaResult(schema, false, System.currentTimeMillis() - start,
+					rootMessage(e));
+		}
+	}
+
+	/**
+	 * Point the worker connection to the given schema. Lock and history services
+	 * are cached per database instance by Liquibase, so they are reset to pick
+	 * up the changelog tables of the new schema.
+	 */
+	private void switchSchema(final Database database, final String schema) {
+		try {
+			database.rollback();
+			database.setDefaultSchemaName(schema);
+			database.setLiquibaseSchemaName(schema);
+			final String escapedSchema = database.escapeObjectName(schema, Schema.class);
+			final String sql;
+			switch (databaseType) {
+			case ORACLE:
+				sql = "ALTER SESSION SET CURRENT_SCHEMA = " + escapedSchema;
+				break;
+			case POSTGRESQL:
+				sql = "SET search_path TO " + escapedSchema;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown database type: " + databaseType);
+			}
+			try (Statement stmt = ((JdbcConnection) database.getConnection()).createStatement()) {
+				stmt.execute(sql);
+			}
+		} catch (SQLException | DatabaseException e) {
+			throw new MigrationException("Cannot switch to schema " + schema, e);
+		}
+		LockServiceFactory.getInstance().getLockService(database).reset();
+		ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).reset();
+	}
+
+	/**
+	 * Pooled connections are reused by later operations, so the session schema is
+	 * set back to the default of the user.
+	 */
+	private void resetSchema(final Database database) {
+		final String sql;
+		switch (databaseType) {
+		case ORACLE:
+			sql = "ALTER SESSION SET CURRENT_SCHEMA = " + database.getConnection().getConnectionUserName();
+			break;
+		case POSTGRESQL:
+			sql = "RESET search_path";
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown database type: " + databaseType);
+		}
+		try (Statement stmt = ((JdbcConnection) database.getConnection()).createStatement()) {
+			database.rollback();
+			stmt.execute(sql);
+		} catch (SQLException | DatabaseException e) {
+			LOG.warning("Could not reset schema of fleet connection: " + e.getMessage());
+		}
+	}
+
+	private void releaseLock(final Database database, final String schema) {
+		final LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+		try {
+			database.rollback();
+			if (lockService.hasChangeLogLock()) {
+				lockService.releaseLock();
+			}
+		} catch (DatabaseException | LockException e) {
+			LOG.warning("Could not release changelog lock of schema " + schema + ": " + e.getMessage());
+		}
+	}
+
+	private List<String> findSchemas(final String pattern, final Database database) {
+		final String sql;
+		switch (databaseType) {
+		case ORACLE:
+			sql = "SELECT USERNAME FROM ALL_USERS WHERE USERNAME LIKE ? ESCAPE '\\' ORDER BY USERNAME";
+			break;
+		case POSTGRESQL:
+			sql = "SELECT schema_name FROM information_schema.schemata WHERE schema_name LIKE ? ESCAPE '\\' "
+					+ "ORDER BY schema_name";
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown database type: " + databaseType);
+		}
+
+		final Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+		final List<String> result = new ArrayList<>();
+		try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+			stmt.setString(1, escapeLikePattern(pattern));
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next()) {
+					result.add(rs.getString(1));
+				}
+			}
+		} catch (SQLException e) {
+			throw new MigrationException("Cannot resolve schema pattern " + pattern, e);
+		}
+		LOG.info("Schema pattern " + pattern + " matches " + result.size() + " schemas");
+		return result;
+	}
+
+	/**
+	 * Escape '_' and the escape character itself, so only '%' remains a wildcard.
+	 */
+	private static String escapeLikePattern(final String pattern) {
+		return pattern.replace("\\", "\\\\").replace("_", "\\_");
+	}
+
+	private FleetReport.SchemaResult await(final String schema, final Future<FleetReport.SchemaResult> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MigrationException("Fleet operation interrupted", e);
+		} catch (ExecutionException e) {
+			// connection could not be opened for the worker
+			return new FleetReport.SchemaResult(schema, false, 0, rootMessage(e.getCause()));
+		}
+	}
+
+	private void close(final Database database) {
+		try {
+			database.close();
+		} catch (DatabaseException e) {
+			LOG.warning("Could not close fleet connection: " + e.getMessage());
+		}
+	}
+
+	private static String rootMessage(final Throwable throwable) {
+		Throwable cause = throwable;
+		while (cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName();
+	}
+}
@@ -0,0 +1,98 @@
+package com.fb.commons.liquibase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Consolidated result of a fleet operation, one entry per schema.
+ */
+public class FleetReport {
+
+	private static final Logger LOG = Logger.getLogger(FleetReport.class.getName());
+
+	private final LiquibaseOperation operation;
+	private final List<SchemaResult> results = new ArrayList<>();
+
+	public FleetReport(final LiquibaseOperation operation) {
+		this.operation = operation;
+	}
+
+	public void add(final SchemaResult result) {
+		results.add(result);
+	}
+
+	public LiquibaseOperation getOperation() {
+		return operation;
+	}
+
+	public List<SchemaResult> getResults() {
+		return Collections.unmodifiableList(results);
+	}
+
+	public List<SchemaResult> getFailures() {
+		final List<SchemaResult> failures = new ArrayList<>();
+		for (SchemaResult result : results) {
+			if (!result.isSuccess()) {
+				failures.add(result);
+			}
+		}
+		return failures;
+	}
+
+	public boolean hasFailures() {
+		return !getFailures().isEmpty();
+	}
+
+	/**
+	 * Log one line per schema followed by the summary.
+	 */
+	public void log() {
+		LOG.info("Fleet " + operation + " report:");
+		for (SchemaResult result : results) {
+			final String line = result.getSchema() + ": " + (result.isSuccess() ? "OK" : "FAILED") + " ("
+					+ result.getDurationMillis() + " ms)";
+			if (result.isSuccess()) {
+				LOG.info(line);
+			} else {
+				LOG.severe(line + " - " + result.getMessage());
+			}
+		}
+		final int failed = getFailures().size();
+		LOG.info("Fleet " + operation + " finished: " + (results.size() - failed) + " succeeded, " + failed
+				+ " failed");
+	}
+
+	public static class SchemaResult {
+
+		private final String schema;
+		private final boolean success;
+		private final long durationMillis;
+		private final String message;
+
+		public SchemaResult(final String schema, final boolean success, final long durationMillis,
+				final String message) {
+			this.schema = schema;
+			this.success = success;
+			this.durationMillis = durationMillis;
+			this.message = message;
+		}
+
+		public String getSchema() {
+			return schema;
+		}
+
+		public boolean isSuccess() {
+			return success;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.fb.commons.liquibase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashes of fingerprints, checkpoints and lock names.
+ */
+final class Hashes {
+
+	private Hashes() {
+	}
+
+	/**
+	 * @return new SHA-256 digest
+	 */
+	static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new MigrationException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return SHA-256 hash of the UTF-8 bytes of the value
+	 */
+	static byte[] sha256(final String value) {
+		return newSha256().digest(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param in - stream to read to the end, not closed
+	 * @return SHA-256 hash of the stream content
+	 */
+	static byte[] sha256(final InputStream in) throws IOException {
+		final MessageDigest digest = newSha256();
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, read);
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * @param value
+	 * @return SHA-256 hash of the UTF-8 bytes of the value as lower case hex
+	 */
+	static String sha256Hex(final String value) {
+		return toHex(sha256(value));
+	}
+
+	/**
+	 * @param bytes
+	 * @return lower case hex representation
+	 */
+	static String toHex(final byte[] bytes) {
+		final char[] digits = "0123456789abcdef".toCharArray();
+		final char[] result = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			result[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+			result[2 * i + 1] = digits[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+}
@@ -1,5 +1,7 @@
 package com.fb.commons.liquibase;
 
+import java.nio.file.Paths;
+
 import liquibase.Liquibase;
 import liquibase.configuration.ConfigurationContainer;
 import liquibase.configuration.GlobalConfiguration;
@@ -11,10 +13,16 @@ import liquibase.resource.ResourceAccessor;
 
 public class LiquibaseBuilder {
 
+	private static boolean loggerConfigured;
+
 	private Database database;
 	private ResourceAccessor resourceAccessor;
 	private String rootChangeLog;
 	private String changeLogTableName;
+	private String changeLogCacheDirectory;
+	private boolean loadDataCopy;
+	private boolean sessionLock;
+	private boolean catalogSnapshot;
 
 	public LiquibaseBuilder withDatabase(final Database database) {
 		this.database = database;
@@ -26,6 +34,18 @@ public class LiquibaseBuilder {
 		return this;
 	}
 
+	/**
+	 * Use the given resource accessor instead of the class loader to find the
+	 * changelogs.
+	 * 
+	 * @param resourceAccessor
+	 * @return LiquibaseBuilder
+	 */
+	public LiquibaseBuilder withResourceAccessor(final ResourceAccessor resourceAccessor) {
+		this.resourceAccessor = resourceAccessor;
+		return this;
+	}
+
 	public LiquibaseBuilder withDatabaseChangeLog(final String location, final String changeLogName) {
 		this.rootChangeLog = location + changeLogName;
 		return this;
@@ -36,22 +56,111 @@ public class LiquibaseBuilder {
 		return this;
 	}
 
+	/**
+	 * Cache parsed changelog files in the given directory. An empty directory
+	 * disables the cache.
+	 * 
+	 * @param directory - cache directory
+	 * @return LiquibaseBuilder
+	 */
+	public LiquibaseBuilder withChangeLogCache(final String directory) {
+		this.changeLogCacheDirectory = directory;
+		return this;
+	}
+
+	/**
+	 * Load the CSV files of loadData with COPY on PostgreSQL, see
+	 * {@link CopyLoadDataChange}.
+	 * 
+	 * @param loadDataCopy
+	 * @return LiquibaseBuilder
+	 */
+	public LiquibaseBuilder withLoadDataCopy(final boolean loadDataCopy) {
+		this.loadDataCopy = loadDataCopy;
+		return this;
+	}
+
+	/**
+	 * Hold the changelog lock with a session lock instead of the lock table on
+	 * PostgreSQL and Oracle, see {@link SessionLockService}.
+	 * 
+	 * @param sessionLock
+	 * @return LiquibaseBuilder
+	 */
+	public LiquibaseBuilder withSessionLock(final boolean sessionLock) {
+		this.sessionLock = sessionLock;
+		return this;
+	}
+
+	/**
+	 * Snapshot PostgreSQL and Oracle schemas with bulk catalog queries, see
+	 * {@link CatalogSnapshotGenerator}.
+	 * 
+	 * @param catalogSnapshot
+	 * @return LiquibaseBuilder
+	 */
+	public LiquibaseBuilder withCatalogSnapshot(final boolean catalogSnapshot) {
+		this.catalogSnapshot = catalogSnapshot;
+		return this;
+	}
+
+	/**
+	 * Register the change types of this library with Liquibase. Changelogs which
+	 * use them cannot be parsed before.
+	 *
+	 * @param loadDataCopy - load CSV data with COPY on PostgreSQL
+	 */
+	static void registerChanges(final boolean loadDataCopy) {
+		BackfillChange.register();
+		if (loadDataCopy) {
+			CopyLoadDataChange.register();
+		}
+	}
+
 	/**
 	 * Build Liquibase instance
 	 * 
 	 * @return Liquibase
 	 */
 	public Liquibase build() {
-		Liquibase liquibase = new Liquibase(rootChangeLog, resourceAccessor, database);
-		ConfigurationContainer configurationContainer = LiquibaseConfiguration.getInstance()
-				.getConfiguration(GlobalConfiguration.class);
-		configurationContainer.setValue(GlobalConfiguration.DATABASECHANGELOG_TABLE_NAME, changeLogTableName);
-		configurationContainer.setValue(GlobalConfiguration.DATABASECHANGELOGLOCK_TABLE_NAME,
-				changeLogTableName + "Lock");
+		final Liquibase liquibase;
+		final StartupProfiler.Phase phase = StartupProfiler.start("liquibase");
+		try {
+			if (changeLogCacheDirectory != null && !changeLogCacheDirectory.trim().isEmpty()) {
+				CachingChangeLogParser.register(Paths.get(changeLogCacheDirectory.trim()));
+			}
+			registerChanges(loadDataCopy);
+			if (sessionLock) {
+				SessionLockService.register();
+			}
+			if (catalogSnapshot) {
+				CatalogSnapshotGenerator.register();
+			}
+			liquibase = new Liquibase(rootChangeLog, resourceAccessor, database);
+			ConfigurationContainer configurationContainer = LiquibaseConfiguration.getInstance()
+					.getConfiguration(GlobalConfiguration.class);
+			configurationContainer.setValue(GlobalConfiguration.DATABASECHANGELOG_TABLE_NAME, changeLogTableName);
+			configurationContainer.setValue(GlobalConfiguration.DATABASECHANGELOGLOCK_TABLE_NAME,
+					changeLogTableName + "Lock");
+			configureLogger();
+		} finally {
+			phase.close();
+		}
+		StartupProfiler.report();
+		return liquibase;
+	}
+
+	/**
+	 * The Liquibase log level is global, it is set by the first build only.
+	 */
+	private static synchronized void configureLogger() {
+		if (loggerConfigured) {
+			return;
+		}
 		DefaultLoggerConfiguration config = LiquibaseConfiguration.getInstance()
 				.getConfiguration(DefaultLoggerConfiguration.class);
 		config.setLogLevel("info");
-		return liquibase;
+		loggerConfigured = true;
 	}
 
 }
@@ -8,5 +8,7 @@ public enum LiquibaseOperation {
 	DIFF,
 	SQL_OUTPUT,
 	DBDOC,
-	VALIDATE;
+	VALIDATE,
+	STATUS,
+	PREFLIGHT;
 }
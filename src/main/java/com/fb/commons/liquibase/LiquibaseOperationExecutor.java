@@ -1,30 +1,73 @@
 package com.fb.commons.liquibase;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import liquibase.Contexts;
+import liquibase.LabelExpression;
 import liquibase.Liquibase;
 import liquibase.database.Database;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.diff.DiffGeneratorFactory;
 import liquibase.diff.DiffResult;
 import liquibase.diff.compare.CompareControl;
 import liquibase.diff.output.DiffOutputControl;
 import liquibase.diff.output.changelog.DiffToChangeLog;
 import liquibase.exception.DatabaseException;
 import liquibase.exception.LiquibaseException;
+import liquibase.exception.LockException;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
 
 public class LiquibaseOperationExecutor {
 
 	private static final Logger LOG = Logger.getLogger(LiquibaseOperationExecutor.class.getName());
 
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
 	// Diff arguments
 	private Database referenceDatabase;
 	private Database targetDatabase;
+	private ParallelDiffGenerator parallelDiffGenerator;
+	private String referenceSnapshotFile;
+	// Update arguments
+	private ChangeLogFingerprint changeLogFingerprint;
+	private ChangeSetMetrics changeSetMetrics;
+	private ParallelChangeSetScheduler changeSetScheduler;
+	private boolean atomicUpdate;
+	private int batchSize = 1;
+	private int commitGroupSize = 1;
+	private int onlineLockTimeout;
+	private int onlineRetries = 10;
+	// Drop all arguments
+	private boolean fastDropAll;
 	// Rollback arguments
 	private Integer tag;
+	// Validate arguments
+	private boolean parallelValidation;
+	// SQL output arguments
+	private String sqlOutputFile;
+	private boolean sqlOutputCompressed;
+	// DBDoc arguments
+	private String dbDocDirectory = "dbdoc";
+	private int dbDocThreads = Runtime.getRuntime().availableProcessors();
+	private boolean dbDocIncremental;
 
 	public void processOperation(final LiquibaseOperation operation, final Liquibase liquibase) {
 
@@ -37,7 +80,7 @@ public class LiquibaseOperationExecutor {
 				return;
 			case UPDATE:
 				LOG.info("Start migration");
-				liquibase.update(new Contexts());
+				update(liquibase);
 				return;
 			case ROLLBACK:
 				LOG.info("Start rollback");
@@ -45,14 +88,39 @@ public class LiquibaseOperationExecutor {
 				return;
 			case DIFF:
 				LOG.info("Start create diff");
-				DiffResult diff = liquibase.diff(referenceDatabase, targetDatabase, CompareControl.STANDARD);
-				DiffToChangeLog diffChangeLog = new DiffToChangeLog(diff, new DiffOutputControl());
+				DiffResult diff = createDiff(liquibase);
+				DiffToChangeLog diffChangeLog = new DiffToChangeLog(diff, new DiffOutputControl()
+						.setObjectChangeFilter(new LiquibaseTableFilter(liquibase.getDatabase())));
 				diffChangeLog.setChangeSetAuthor("MigrationTool");
 				diffChangeLog.print(System.out);
 				return;
+			case SQL_OUTPUT:
+				LOG.info("Start SQL output to " + (isEmpty(sqlOutputFile) ? "stdout" : sqlOutputFile));
+				writeSqlOutput(liquibase);
+				return;
+			case DBDOC:
+				LOG.info("Generate documentation to " + dbDocDirectory
+						+ (dbDocIncremental ? " (incremental)" : ""));
+				new DbDocGenerator(new File(dbDocDirectory), dbDocThreads, dbDocIncremental).generate(liquibase);
+				return;
 			case VALIDATE:
 				LOG.info("Validate migration");
-				liquibase.validate();
+				if (parallelValidation) {
+					new ParallelChangeLogValidator(Runtime.getRuntime().availableProcessors()).validate(liquibase);
+				} else {
+					liquibase.validate();
+				}
+				return;
+			case STATUS:
+				// status of this target only, see StageStatusReporter for all targets
+				LOG.info("Report status");
+				final Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+				liquibase.reportStatus(true, new Contexts(), writer);
+				writer.flush();
+				return;
+			case PREFLIGHT:
+				LOG.info("Estimate pending changesets");
+				System.out.print(new PreflightEstimator().estimate(liquibase));
 				return;
 			default:
 				throw new MigrationException("Unknown operation: " + operation);
@@ -64,6 +132,159 @@ public class LiquibaseOperationExecutor {
 		}
 	}
 
+	/**
+	 * Run the update unless the changelog fingerprint shows that nothing is
+	 * pending. The fingerprint is stored after a successful update.
+	 * 
+	 * @param liquibase
+	 */
+	private void update(final Liquibase liquibase) throws LiquibaseException {
+		if (changeLogFingerprint != null && changeLogFingerprint.isUpToDate(liquibase.getDatabase())) {
+			LOG.info("No pending changesets, skip migration");
+			return;
+		}
+		if (atomicUpdate) {
+			if (changeSetScheduler != null || changeSetMetrics != null || batchSize > 1 || commitGroupSize > 1
+					|| onlineLockTimeout > 0) {
+				LOG.warning("Parallel update, metrics, batching, commit groups and online DDL are not used by the "
+						+ "single transaction update");
+			}
+			new SingleTransactionUpdate().update(liquibase);
+		} else if (changeSetScheduler != null) {
+			if (changeSetMetrics != null || batchSize > 1 || commitGroupSize > 1 || onlineLockTimeout > 0) {
+				throw new MigrationException(
+						"Parallel update cannot be combined with metrics, batching, commit groups or online DDL");
+			}
+			changeSetScheduler.update(liquibase);
+		} else {
+			runUpdate(liquibase);
+		}
+		if (changeLogFingerprint != null) {
+			changeLogFingerprint.store(liquibase);
+		}
+	}
+
+	/**
+	 * Run the update, with the metrics listener attached and the batching or
+	 * online DDL executor installed if configured. The metrics are written for
+	 * failed updates, too.
+	 * 
+	 * @param liquibase
+	 */
+	private void runUpdate(final Liquibase liquibase) throws LiquibaseException {
+		final boolean online = onlineLockTimeout > 0 && isOnlineDdlSupported(liquibase.getDatabase());
+		if (changeSetMetrics == null && batchSize < 2 && commitGroupSize < 2 && !online) {
+			liquibase.update(new Contexts());
+			return;
+		}
+		if (changeSetMetrics != null) {
+			changeSetMetrics.attach(liquibase);
+		}
+		BatchingExecutor batchingExecutor = null;
+		if (online) {
+			batchingExecutor = new OnlineDdlExecutor(batchSize, commitGroupSize, onlineLockTimeout, onlineRetries)
+					.install(liquibase.getDatabase());
+		} else if (batchSize > 1 || commitGroupSize > 1) {
+			batchingExecutor = new BatchingExecutor(batchSize, commitGroupSize).install(liquibase.getDatabase());
+		}
+		if (batchingExecutor != null) {
+			liquibase.setChangeExecListener(batchingExecutor.getChangeExecListener(changeSetMetrics));
+		}
+		boolean success = false;
+		try {
+			liquibase.update(new Contexts());
+			success = true;
+		} finally {
+			if (batchingExecutor != null) {
+				batchingExecutor.uninstall();
+			}
+			if (changeSetMetrics != null) {
+				changeSetMetrics.detach(LiquibaseOperation.UPDATE.name(), success);
+			}
+		}
+	}
+
+	private static boolean isOnlineDdlSupported(final Database database) {
+		if (database instanceof PostgresDatabase) {
+			return true;
+		}
+		LOG.warning("Online DDL is only supported on PostgreSQL, run regular update");
+		return false;
+	}
+
+	/**
+	 * Compare reference and target database. A cached reference snapshot takes
+	 * precedence over the concurrent snapshot of both databases.
+	 * 
+	 * @param liquibase
+	 * @return diff result
+	 */
+	private DiffResult createDiff(final Liquibase liquibase) throws LiquibaseException {
+		if (!isEmpty(referenceSnapshotFile)) {
+			final DatabaseSnapshot referenceSnapshot = new SnapshotCache(Paths.get(referenceSnapshotFile))
+					.getSnapshot(referenceDatabase);
+			final DatabaseSnapshot targetSnapshot = SnapshotGeneratorFactory.getInstance().createSnapshot(
+					CompareControl.STANDARD.getSchemas(CompareControl.DatabaseRole.COMPARISON), targetDatabase,
+					new SnapshotControl(targetDatabase));
+			return DiffGeneratorFactory.getInstance().compare(referenceSnapshot, targetSnapshot,
+					CompareControl.STANDARD);
+		}
+		if (parallelDiffGenerator != null) {
+			return parallelDiffGenerator.diff(referenceDatabase, targetDatabase);
+		}
+		return liquibase.diff(referenceDatabase, targetDatabase, CompareControl.STANDARD);
+	}
+
+	/**
+	 * Render the pending changesets as SQL script. Liquibase hands every statement
+	 * to the writer as soon as it is generated, so memory use does not depend on
+	 * the size of the script.
+	 * 
+	 * @param liquibase
+	 */
+	private void writeSqlOutput(final Liquibase liquibase) throws LiquibaseException {
+		try (Writer writer = openSqlOutput()) {
+			liquibase.update(new Contexts(), new LabelExpression(), writer);
+		} catch (IOException e) {
+			throw new MigrationException("SQL output cannot be written", e);
+		}
+	}
+
+	private Writer openSqlOutput() throws IOException {
+		OutputStream out;
+		if (isEmpty(sqlOutputFile)) {
+			out = new OutputStream() {
+				@Override
+				public void write(int b) {
+					System.out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+					System.out.write(b, off, len);
+				}
+
+				@Override
+				public void close() {
+					// never close stdout
+					System.out.flush();
+				}
+			};
+		} else {
+			out = Channels.newOutputStream(FileChannel.open(Paths.get(sqlOutputFile), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+		}
+		out = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+		if (sqlOutputCompressed || (!isEmpty(sqlOutputFile) && sqlOutputFile.endsWith(".gz"))) {
+			out = new GZIPOutputStream(out, OUTPUT_BUFFER_SIZE);
+		}
+		return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+	}
+
+	private static boolean isEmpty(final String value) {
+		return value == null || value.trim().isEmpty();
+	}
+
 	/**
 	 * Ask user to confirm cleanup operation and clean.
 	 * 
@@ -73,11 +294,15 @@ public class LiquibaseOperationExecutor {
 		try (Scanner in = new Scanner(System.in)) {
 			if ("Y".equalsIgnoreCase(in.nextLine())) {
 				LOG.info("Clean operation was acknowledged");
-				liquibase.dropAll();
+				if (fastDropAll) {
+					new FastSchemaCleaner().dropAll(liquibase);
+				} else {
+					liquibase.dropAll();
+				}
 			} else {
 				LOG.info("Clean operation was canceled");
 			}
-		} catch (DatabaseException e) {
+		} catch (DatabaseException | LockException e) {
 			throw new MigrationException("Failure while drop all from schema", e);
 		}
 	}
@@ -98,6 +323,161 @@ public class LiquibaseOperationExecutor {
 		this.targetDatabase = targetDatabase;
 	}
 
+	public ParallelDiffGenerator getParallelDiffGenerator() {
+		return parallelDiffGenerator;
+	}
+
+	/**
+	 * Snapshot reference and target database concurrently for DIFF, sequential
+	 * Liquibase diff if not set.
+	 * 
+	 * @param parallelDiffGenerator
+	 */
+	public void setParallelDiffGenerator(ParallelDiffGenerator parallelDiffGenerator) {
+		this.parallelDiffGenerator = parallelDiffGenerator;
+	}
+
+	public String getReferenceSnapshotFile() {
+		return referenceSnapshotFile;
+	}
+
+	/**
+	 * File caching the snapshot of the reference database for DIFF, the reference
+	 * is snapshotted on every run if not set.
+	 * 
+	 * @param referenceSnapshotFile
+	 */
+	public void setReferenceSnapshotFile(String referenceSnapshotFile) {
+		this.referenceSnapshotFile = referenceSnapshotFile;
+	}
+
+	public ChangeLogFingerprint getChangeLogFingerprint() {
+		return changeLogFingerprint;
+	}
+
+	/**
+	 * Skip UPDATE if the changelog did not change since the last update, see
+	 * {@link ChangeLogFingerprint}. Always run the update if not set.
+	 * 
+	 * @param changeLogFingerprint
+	 */
+	public void setChangeLogFingerprint(ChangeLogFingerprint changeLogFingerprint) {
+		this.changeLogFingerprint = changeLogFingerprint;
+	}
+
+	public ChangeSetMetrics getChangeSetMetrics() {
+		return changeSetMetrics;
+	}
+
+	/**
+	 * Record timings, statements, rows and lock waits of every changeset run by
+	 * UPDATE, no metrics if not set.
+	 * 
+	 * @param changeSetMetrics
+	 */
+	public void setChangeSetMetrics(ChangeSetMetrics changeSetMetrics) {
+		this.changeSetMetrics = changeSetMetrics;
+	}
+
+	public ParallelChangeSetScheduler getChangeSetScheduler() {
+		return changeSetScheduler;
+	}
+
+	/**
+	 * Run independent changesets of UPDATE concurrently, see
+	 * {@link ParallelChangeSetScheduler}. Sequential update if not set.
+	 * 
+	 * @param changeSetScheduler
+	 */
+	public void setChangeSetScheduler(ParallelChangeSetScheduler changeSetScheduler) {
+		this.changeSetScheduler = changeSetScheduler;
+	}
+
+	public boolean isFastDropAll() {
+		return fastDropAll;
+	}
+
+	/**
+	 * Drop the schema in bulk instead of object by object for DROPALL, see
+	 * {@link FastSchemaCleaner}.
+	 *
+	 * @param fastDropAll
+	 */
+	public void setFastDropAll(boolean fastDropAll) {
+		this.fastDropAll = fastDropAll;
+	}
+
+	public boolean isAtomicUpdate() {
+		return atomicUpdate;
+	}
+
+	/**
+	 * Run all pending changesets of UPDATE in one transaction on PostgreSQL, see
+	 * {@link SingleTransactionUpdate}.
+	 *
+	 * @param atomicUpdate
+	 */
+	public void setAtomicUpdate(boolean atomicUpdate) {
+		this.atomicUpdate = atomicUpdate;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Send consecutive insert, update and delete statements of UPDATE in JDBC
+	 * batches of the given size, no batching if less than 2.
+	 * 
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getCommitGroupSize() {
+		return commitGroupSize;
+	}
+
+	/**
+	 * Commit up to the given number of consecutive changesets of UPDATE together
+	 * and insert their history rows as one batch, see {@link BatchingExecutor}.
+	 * No grouping if less than 2.
+	 * 
+	 * @param commitGroupSize
+	 */
+	public void setCommitGroupSize(int commitGroupSize) {
+		this.commitGroupSize = commitGroupSize;
+	}
+
+	public int getOnlineLockTimeout() {
+		return onlineLockTimeout;
+	}
+
+	/**
+	 * Run UPDATE on PostgreSQL in online DDL mode with the given lock_timeout in
+	 * milliseconds, see {@link OnlineDdlExecutor}. Online DDL is off if 0.
+	 * 
+	 * @param onlineLockTimeout
+	 */
+	public void setOnlineLockTimeout(int onlineLockTimeout) {
+		this.onlineLockTimeout = onlineLockTimeout;
+	}
+
+	public int getOnlineRetries() {
+		return onlineRetries;
+	}
+
+	/**
+	 * Retries of a statement which ran into the lock timeout in online DDL mode,
+	 * 10 if not set.
+	 * 
+	 * @param onlineRetries
+	 */
+	public void setOnlineRetries(int onlineRetries) {
+		this.onlineRetries = onlineRetries;
+	}
+
 	public Integer getTag() {
 		return tag;
 	}
@@ -106,4 +486,76 @@ public class LiquibaseOperationExecutor {
 		this.tag = tag;
 	}
 
+	public String getSqlOutputFile() {
+		return sqlOutputFile;
+	}
+
+	/**
+	 * File for the SQL_OUTPUT operation, stdout if not set. Files ending with .gz
+	 * are compressed.
+	 * 
+	 * @param sqlOutputFile
+	 */
+	public void setSqlOutputFile(String sqlOutputFile) {
+		this.sqlOutputFile = sqlOutputFile;
+	}
+
+	public boolean isSqlOutputCompressed() {
+		return sqlOutputCompressed;
+	}
+
+	public void setSqlOutputCompressed(boolean sqlOutputCompressed) {
+		this.sqlOutputCompressed = sqlOutputCompressed;
+	}
+
+	public String getDbDocDirectory() {
+		return dbDocDirectory;
+	}
+
+	/**
+	 * Output directory of the DBDOC operation, "dbdoc" if not set.
+	 * 
+	 * @param dbDocDirectory
+	 */
+	public void setDbDocDirectory(String dbDocDirectory) {
+		if (!isEmpty(dbDocDirectory)) {
+			this.dbDocDirectory = dbDocDirectory;
+		}
+	}
+
+	public int getDbDocThreads() {
+		return dbDocThreads;
+	}
+
+	public void setDbDocThreads(int dbDocThreads) {
+		this.dbDocThreads = dbDocThreads;
+	}
+
+	public boolean isDbDocIncremental() {
+		return dbDocIncremental;
+	}
+
+	/**
+	 * Only render the pages whose content changed since the last DBDOC run into
+	 * the same directory.
+	 * 
+	 * @param dbDocIncremental
+	 */
+	public void setDbDocIncremental(boolean dbDocIncremental) {
+		this.dbDocIncremental = dbDocIncremental;
+	}
+
+	public boolean isParallelValidation() {
+		return parallelValidation;
+	}
+
+	/**
+	 * Compute checksums and validate changesets on all available cores.
+	 * 
+	 * @param parallelValidation
+	 */
+	public void setParallelValidation(boolean parallelValidation) {
+		this.parallelValidation = parallelValidation;
+	}
+
 }
@@ -0,0 +1,100 @@
+package com.fb.commons.liquibase;
+
+import liquibase.database.Database;
+import liquibase.diff.ObjectDifferences;
+import liquibase.diff.output.ObjectChangeFilter;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Column;
+import liquibase.structure.core.ForeignKey;
+import liquibase.structure.core.Index;
+import liquibase.structure.core.PrimaryKey;
+import liquibase.structure.core.Relation;
+import liquibase.structure.core.UniqueConstraint;
+
+/**
+ * Excludes the tables of Liquibase and of this tool from diff changelogs and
+ * documentation: the changelog and lock table, and the tables next to the
+ * changelog table named changelog table name + suffix, see
+ * {@link ChangeLogFingerprint} and {@link BackfillChange}.
+ */
+public class LiquibaseTableFilter implements ObjectChangeFilter {
+
+	private static final String[] TABLE_SUFFIXES = { ChangeLogFingerprint.META_TABLE_SUFFIX,
+			BackfillChange.CHECKPOINT_TABLE_SUFFIX };
+
+	private final Database database;
+
+	/**
+	 * @param database - database whose changelog table name applies
+	 */
+	public LiquibaseTableFilter(final Database database) {
+		this.database = database;
+	}
+
+	/**
+	 * Check if the object is one of the tables, or belongs to one of them.
+	 *
+	 * @param database - database whose changelog table name applies
+	 * @param object
+	 * @return true if the object must not be diffed or documented
+	 */
+	public static boolean isExcluded(final Database database, final DatabaseObject object) {
+		if (object == null) {
+			return false;
+		}
+		if (database.isLiquibaseObject(object)) {
+			return true;
+		}
+		final Relation relation = getRelation(object);
+		if (relation == null || relation.getName() == null) {
+			return false;
+		}
+		final String changeLogTable = database.getDatabaseChangeLogTableName();
+		for (String suffix : TABLE_SUFFIXES) {
+			if (relation.getName().equalsIgnoreCase(changeLogTable + suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Relation getRelation(final DatabaseObject object) {
+		if (object instanceof Relation) {
+			return (Relation) object;
+		} else if (object instanceof Column) {
+			return ((Column) object).getRelation();
+		} else if (object instanceof Index) {
+			return ((Index) object).getRelation();
+		} else if (object instanceof PrimaryKey) {
+			return ((PrimaryKey) object).getTable();
+		} else if (object instanceof UniqueConstraint) {
+			return ((UniqueConstraint) object).getRelation();
+		} else if (object instanceof ForeignKey) {
+			return ((ForeignKey) object).getForeignKeyTable();
+		}
+		return null;
+	}
+
+	@Override
+	public boolean includeMissing(final DatabaseObject object, final Database referenceDatabase,
+			final Database comparisonDatabase) {
+		return include(object);
+	}
+
+	@Override
+	public boolean includeUnexpected(final DatabaseObject object, final Database referenceDatabase,
+			final Database comparisonDatabase) {
+		return include(object);
+	}
+
+	@Override
+	public boolean includeChanged(final DatabaseObject object, final ObjectDifferences differences,
+			final Database referenceDatabase, final Database comparisonDatabase) {
+		return include(object);
+	}
+
+	@Override
+	public boolean include(final DatabaseObject object) {
+		return !isExcluded(database, object);
+	}
+}
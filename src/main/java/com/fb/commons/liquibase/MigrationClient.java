@@ -0,0 +1,135 @@
+package com.fb.commons.liquibase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Thin client of the {@link MigrationDaemon}. It takes the usual command line
+ * arguments, sends them to the daemon on localhost and prints the streamed
+ * output. The exit code is 0 if the operation succeeded, 1 if it failed and 2
+ * if the daemon is not reachable.
+ * <p>
+ * The port is read from the system property migration.daemon.port. Every
+ * request carries the token the daemon wrote to the token file, by default
+ * ~/.migration-daemon.token, set with the system property
+ * migration.daemon.token.file. The file must only be accessible by its owner.
+ */
+public final class MigrationClient {
+
+	static final String PORT_PROPERTY = "migration.daemon.port";
+	static final int DEFAULT_PORT = 7878;
+	static final String TOKEN_FILE_PROPERTY = "migration.daemon.token.file";
+	static final String DEFAULT_TOKEN_FILE = ".migration-daemon.token";
+	static final String TOKEN_HEADER = "X-Migration-Token";
+	static final String RUN_PATH = "/run";
+	static final String RESULT_PREFIX = "#RESULT ";
+	static final String RESULT_OK = "OK";
+
+	private MigrationClient() {
+		// private constructor
+	}
+
+	public static void main(final String[] args) {
+		System.exit(run(args, Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT)));
+	}
+
+	/**
+	 * Run the operation of the given command line arguments on the daemon.
+	 *
+	 * @param args - command line arguments as for the migration service
+	 * @param port - daemon port
+	 * @return exit code
+	 */
+	public static int run(final String[] args, final int port) {
+		final String token;
+		try {
+			token = readToken(getTokenFile());
+		} catch (IOException e) {
+			System.err.println("Cannot read migration daemon token: " + e.getMessage());
+			return 2;
+		}
+		try {
+			final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + RUN_PATH)
+					.openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setReadTimeout(0);
+			connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+			connection.setRequestProperty(TOKEN_HEADER, token);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(String.join("\n", args).getBytes(StandardCharsets.UTF_8));
+			}
+
+			final boolean accepted = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+			final InputStream body = accepted ? connection.getInputStream() : connection.getErrorStream();
+			String result = null;
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith(RESULT_PREFIX)) {
+						result = line.substring(RESULT_PREFIX.length());
+					} else {
+						System.out.println(line);
+					}
+				}
+			}
+			if (accepted && RESULT_OK.equals(result)) {
+				return 0;
+			}
+			System.err.println("Migration failed: " + (result != null ? result : "no result from daemon"));
+			return 1;
+		} catch (ConnectException e) {
+			System.err.println("Migration daemon not reachable on port " + port);
+			return 2;
+		} catch (IOException e) {
+			System.err.println("Communication with migration daemon failed: " + e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * @return token file shared by daemon and client
+	 */
+	static Path getTokenFile() {
+		final String tokenFile = System.getProperty(TOKEN_FILE_PROPERTY);
+		return tokenFile != null ? Paths.get(tokenFile)
+				: Paths.get(System.getProperty("user.home"), DEFAULT_TOKEN_FILE);
+	}
+
+	/**
+	 * Read the token, the file must not be accessible by group or others.
+	 *
+	 * @param tokenFile
+	 * @return token
+	 * @throws IOException if the file cannot be read or is too open
+	 */
+	static String readToken(final Path tokenFile) throws IOException {
+		if (tokenFile.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			// copyOf fails on an empty set
+			final Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+			permissions.addAll(Files.getPosixFilePermissions(tokenFile));
+			permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+			if (!permissions.isEmpty()) {
+				throw new IOException("Token file " + tokenFile + " must only be readable by its owner (0600)");
+			}
+		}
+		final String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim();
+		if (token.isEmpty()) {
+			throw new IOException("Token file " + tokenFile + " is empty");
+		}
+		return token;
+	}
+}
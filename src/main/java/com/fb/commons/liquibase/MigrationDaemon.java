@@ -0,0 +1,319 @@
+package com.fb.commons.liquibase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.executor.ExecutorService;
+import liquibase.lockservice.LockServiceFactory;
+
+/**
+ * Keeps the migration service warm between CI steps. The daemon listens on
+ * localhost and runs one operation per request with the usual command line
+ * arguments (one argument per line in the request body). Log records and
+ * console output of the operation are streamed back, the last line holds the
+ * result. See {@link MigrationClient} for the client side.
+ * <p>
+ * The loopback interface is open to every local process and, through DNS
+ * rebinding or simple cross-site requests, to browser pages. Requests must
+ * therefore carry the token of the token file (created with mode 0600 on the
+ * first start, see {@link MigrationClient#getTokenFile()}); requests with an
+ * Origin header or a Host other than localhost are rejected.
+ * <p>
+ * Requests are processed one after the other, because Liquibase keeps the
+ * changelog table names in global configuration. Connections are pooled and
+ * parsed changelogs are cached across requests, in the changelog.cache.dir of
+ * the first request or in memory. The lock services, history services and
+ * executors Liquibase keeps per database are dropped after every request.
+ * DROPALL asks for a confirmation on the console and is therefore rejected.
+ * <p>
+ * Usage in the main method of a migration service:
+ *
+ * <pre>
+ * new MigrationDaemon(MyMigrationService::new, privateKey, port).start();
+ * </pre>
+ */
+public class MigrationDaemon {
+
+	private static final Logger LOG = Logger.getLogger(MigrationDaemon.class.getName());
+
+	private final Supplier<? extends AbstractMigrationService> serviceFactory;
+	private final byte[] privateKey;
+	private final int port;
+	private HttpServer server;
+	private byte[] token;
+
+	public MigrationDaemon(final Supplier<? extends AbstractMigrationService> serviceFactory,
+			final byte[] privateKey, final int port) {
+		this.serviceFactory = serviceFactory;
+		this.privateKey = privateKey;
+		this.port = port;
+	}
+
+	/**
+	 * Start listening, returns immediately.
+	 */
+	public synchronized void start() {
+		token = loadToken(MigrationClient.getTokenFile()).getBytes(StandardCharsets.UTF_8);
+		DatabaseBuilder.forcePooling();
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		} catch (IOException e) {
+			throw new MigrationException("Cannot listen on port " + port, e);
+		}
+		server.createContext(MigrationClient.RUN_PATH, this::handle);
+		server.setExecutor(Executors.newSingleThreadExecutor());
+		server.start();
+		LOG.info("Migration daemon listening on localhost:" + port);
+	}
+
+	/**
+	 * Stop listening and close all pooled connections.
+	 */
+	public synchronized void stop() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+		DatabaseBuilder.closePools();
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			final String error = checkRequest(exchange);
+			if (error != null) {
+				reject(exchange, 403, error);
+				return;
+			}
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				reject(exchange, 405, "Only POST is supported");
+				return;
+			}
+			final String[] args = readArguments(exchange.getRequestBody());
+			final String argumentError = checkArguments(args);
+			if (argumentError != null) {
+				reject(exchange, 400, argumentError);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			try (PrintStream out = new PrintStream(exchange.getResponseBody(), true, "UTF-8")) {
+				out.println(MigrationClient.RESULT_PREFIX + run(args, out));
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Run the operation with log records and console output redirected to the
+	 * response.
+	 *
+	 * @return result line
+	 */
+	private String run(final String[] args, final PrintStream out) {
+		final long start = System.currentTimeMillis();
+		final Logger rootLogger = Logger.getLogger("");
+		final StreamingHandler handler = new StreamingHandler(out);
+		final PrintStream console = System.out;
+		rootLogger.addHandler(handler);
+		System.setOut(out);
+		AbstractMigrationService service = null;
+		try {
+			service = serviceFactory.get();
+			service.init(args, privateKey);
+			registerChangeLogCache(service.getProperties());
+			service.execute();
+			LOG.info("Operation finished in " + (System.currentTimeMillis() - start) + " ms");
+			return MigrationClient.RESULT_OK;
+		} catch (RuntimeException e) {
+			LOG.severe("Operation failed: " + e.getMessage());
+			return "FAILED " + rootMessage(e);
+		} finally {
+			if (service != null) {
+				service.close();
+			}
+			resetLiquibaseServices();
+			System.setOut(console);
+			rootLogger.removeHandler(handler);
+		}
+	}
+
+	/**
+	 * Keep parsed changelogs across requests, in the configured cache directory
+	 * if there is one.
+	 */
+	private static void registerChangeLogCache(final StageProperties properties) {
+		final String cacheDirectory = properties.getChangeLogCacheDir();
+		CachingChangeLogParser.register(cacheDirectory == null || cacheDirectory.trim().isEmpty() ? null
+				: Paths.get(cacheDirectory.trim()));
+	}
+
+	/**
+	 * Drop the lock services, history services and executors Liquibase keeps
+	 * per database, every request opens new databases.
+	 */
+	private static void resetLiquibaseServices() {
+		LockServiceFactory.reset();
+		ChangeLogHistoryServiceFactory.reset();
+		ExecutorService.getInstance().reset();
+	}
+
+	/**
+	 * Only the client may run operations: no browser requests, loopback host
+	 * names only and the token of the token file.
+	 *
+	 * @return error or null if the request is accepted
+	 */
+	private String checkRequest(final HttpExchange exchange) {
+		if (exchange.getRequestHeaders().containsKey("Origin")) {
+			return "Requests from browsers are not accepted";
+		}
+		final String host = exchange.getRequestHeaders().getFirst("Host");
+		final String hostName = host == null ? "" : host.replaceFirst(":\\d+$", "");
+		if (!"localhost".equalsIgnoreCase(hostName) && !"127.0.0.1".equals(hostName) && !"[::1]".equals(hostName)) {
+			return "Host " + host + " is not accepted";
+		}
+		final String requestToken = exchange.getRequestHeaders().getFirst(MigrationClient.TOKEN_HEADER);
+		if (requestToken == null
+				|| !MessageDigest.isEqual(token, requestToken.trim().getBytes(StandardCharsets.UTF_8))) {
+			return "Missing or invalid token";
+		}
+		return null;
+	}
+
+	/**
+	 * Read the token of the token file, create the file with a random token
+	 * readable by the owner only if it does not exist.
+	 */
+	private static String loadToken(final Path tokenFile) {
+		try {
+			if (!Files.exists(tokenFile)) {
+				final byte[] secret = new byte[32];
+				new SecureRandom().nextBytes(secret);
+				// write to a temporary file first, clients must never read half a token
+				final Path directory = tokenFile.toAbsolutePath().getParent();
+				final Path tempFile = tokenFile.getFileSystem().supportedFileAttributeViews().contains("posix")
+						? Files.createTempFile(directory, "token", ".tmp",
+								PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+						: Files.createTempFile(directory, "token", ".tmp");
+				try {
+					Files.write(tempFile, Base64.getUrlEncoder().withoutPadding().encodeToString(secret)
+							.getBytes(StandardCharsets.UTF_8));
+					Files.move(tempFile, tokenFile, StandardCopyOption.ATOMIC_MOVE);
+					LOG.info("Created daemon token file " + tokenFile);
+				} catch (FileAlreadyExistsException e) {
+					// created by a concurrent start
+				} finally {
+					Files.deleteIfExists(tempFile);
+				}
+			}
+			return MigrationClient.readToken(tokenFile);
+		} catch (IOException e) {
+			throw new MigrationException("Cannot read daemon token file " + tokenFile, e);
+		}
+	}
+
+	private String checkArguments(final String[] args) {
+		final ProgramOptions options;
+		try {
+			options = new ProgrammOptionsParser().parseOptions(args);
+		} catch (RuntimeException e) {
+			return "Invalid arguments: " + e.getMessage();
+		}
+		if (options.getValue() != null) {
+			return "Encrypt is not supported by the daemon";
+		}
+		if (options.getOperation() == LiquibaseOperation.DROPALL) {
+			return "DROPALL needs a confirmation and is not supported by the daemon";
+		}
+		return null;
+	}
+
+	private static String[] readArguments(final InputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		final List<String> args = new ArrayList<>();
+		for (String line : new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+			if (!line.trim().isEmpty()) {
+				args.add(line.trim());
+			}
+		}
+		return args.toArray(new String[args.size()]);
+	}
+
+	private static void reject(final HttpExchange exchange, final int status, final String message)
+			throws IOException {
+		LOG.warning("Request rejected: " + message);
+		final byte[] body = (MigrationClient.RESULT_PREFIX + message + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private static String rootMessage(final Throwable throwable) {
+		Throwable cause = throwable;
+		while (cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName();
+	}
+
+	/**
+	 * Writes log records to the response of the running request.
+	 */
+	private static class StreamingHandler extends Handler {
+
+		private final PrintStream out;
+
+		StreamingHandler(final PrintStream out) {
+			this.out = out;
+			setFormatter(new SimpleFormatter());
+		}
+
+		@Override
+		public void publish(final LogRecord record) {
+			if (isLoggable(record)) {
+				out.println(record.getLevel() + " " + getFormatter().formatMessage(record));
+			}
+		}
+
+		@Override
+		public void flush() {
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.sql.visitor.SqlVisitor;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.CreateIndexStatement;
+
+/**
+ * Executor for UPDATE on PostgreSQL databases under load. Every statement of
+ * the migration runs with lock_timeout, so a blocked DDL statement does not
+ * queue the application traffic behind its lock request for long.
+ * <p>
+ * A statement which runs into the lock timeout is rolled back to a savepoint
+ * taken before it and retried after a backoff with full jitter (random delay
+ * between 0 and an exponentially growing limit). The changeset fails when all
+ * retries are used up.
+ * <p>
+ * The open commit group is committed before the changelog lock table is
+ * updated, outside the savepoint of the lock statement.
+ * <p>
+ * A backfill commits its chunks, which would end the savepoint. It runs
+ * without savepoint and retries the chunk which ran into the lock timeout
+ * itself, see {@link BackfillChange}.
+ * <p>
+ * createIndex with an index name is executed as CREATE INDEX CONCURRENTLY. It
+ * cannot run in a transaction, so the statements of the changeset executed
+ * before are committed first; they are not rolled back if the changeset fails
+ * later. An invalid index left by a failed attempt is dropped before the next
+ * attempt. The concurrent build runs without lock_timeout: it waits for all
+ * transactions older than itself before and after the build, and a short
+ * timeout would throw away a finished build on a busy database. Its lock does
+ * not block reads or writes of the table.
+ */
+public class OnlineDdlExecutor extends BatchingExecutor {
+
+	private static final Logger LOG = Logger.getLogger(OnlineDdlExecutor.class.getName());
+
+	private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+	private static final String INVALID_INDEX_QUERY = "SELECT 1 FROM pg_index WHERE indexrelid = to_regclass(?) "
+			+ "AND NOT indisvalid";
+
+	private static final long INITIAL_BACKOFF_MILLIS = 200;
+	private static final long MAX_BACKOFF_MILLIS = 10_000;
+
+	private final int lockTimeoutMillis;
+	private final int retries;
+
+	/**
+	 * @param batchSize         - maximum number of statements per batch, no
+	 *                          batching if less than 2
+	 * @param groupSize         - maximum number of changesets per commit, no
+	 *                          grouping if less than 2
+	 * @param lockTimeoutMillis - lock_timeout of every statement
+	 * @param retries           - number of retries of a statement which ran into
+	 *                          the lock timeout
+	 */
+	public OnlineDdlExecutor(final int batchSize, final int groupSize, final int lockTimeoutMillis,
+			final int retries) {
+		super(batchSize, groupSize);
+		this.lockTimeoutMillis = lockTimeoutMillis;
+		this.retries = retries;
+	}
+
+	@Override
+	public BatchingExecutor install(final Database database) {
+		super.install(database);
+		setLockTimeout(lockTimeoutMillis + "ms");
+		LOG.info("Online DDL: lock_timeout " + lockTimeoutMillis + " ms, " + retries + " retries");
+		return this;
+	}
+
+	@Override
+	public void uninstall() {
+		try {
+			setLockTimeout("DEFAULT");
+		} catch (MigrationException e) {
+			LOG.warning(e.getMessage() + ": " + e.getCause().getMessage());
+		}
+		super.uninstall();
+	}
+
+	@Override
+	protected void executeStatement(final SqlStatement sql, final List<SqlVisitor> sqlVisitors)
+			throws DatabaseException {
+		if (sql instanceof CreateIndexStatement && ((CreateIndexStatement) sql).getIndexName() != null) {
+			createIndexConcurrently((CreateIndexStatement) sql, sqlVisitors);
+			return;
+		}
+		if (sql instanceof BackfillChange.BackfillStatement) {
+			((BackfillChange.BackfillStatement) sql).setLockRetries(retries);
+			super.executeStatement(sql, sqlVisitors);
+			return;
+		}
+		withLockRetry(() -> super.executeStatement(sql, sqlVisitors));
+	}
+
+	@Override
+	protected void executeBatch(final List<BatchStatement> statements) throws DatabaseException {
+		withLockRetry(() -> super.executeBatch(statements));
+	}
+
+	@Override
+	public int update(final SqlStatement sql, final List<SqlVisitor> sqlVisitors) throws DatabaseException {
+		if (isLockStatement(sql)) {
+			// the commit of the open group would end the savepoint
+			commitGroup();
+		}
+		final int[] result = new int[1];
+		withLockRetry(() -> result[0] = super.update(sql, sqlVisitors));
+		return result[0];
+	}
+
+	/**
+	 * Run the action, roll back to a savepoint and retry after a backoff if it
+	 * ran into the lock timeout.
+	 */
+	private void withLockRetry(final Action action) throws DatabaseException {
+		final Connection connection = getConnection();
+		for (int attempt = 0;; attempt++) {
+			final Savepoint savepoint = setSavepoint(connection);
+			try {
+				action.run();
+				releaseSavepoint(connection, savepoint);
+				return;
+			} catch (DatabaseException e) {
+				if (!isLockTimeout(e) || attempt >= retries) {
+					throw e;
+				}
+				rollbackToSavepoint(connection, savepoint);
+				backoff(attempt, retries, e);
+			}
+		}
+	}
+
+	private void createIndexConcurrently(final CreateIndexStatement sql, final List<SqlVisitor> sqlVisitors)
+			throws DatabaseException {
+		final String[] statements = applyVisitors(sql, sqlVisitors);
+		final String indexName = database.escapeIndexName(sql.getTableCatalogName(), sql.getTableSchemaName(),
+				sql.getIndexName());
+		// commits the statements of the changeset executed so far, and the open group
+		commitGroup();
+		final Connection connection = getConnection();
+		try {
+			connection.setAutoCommit(true);
+			setLockTimeout("0");
+			for (int attempt = 0;; attempt++) {
+				try (Statement stmt = connection.createStatement()) {
+					for (String statement : statements) {
+						stmt.execute(concurrently(statement));
+					}
+					return;
+				} catch (SQLException e) {
+					// a failed CREATE INDEX CONCURRENTLY leaves an invalid index
+					dropInvalidIndex(connection, indexName);
+					if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || attempt >= retries) {
+						throw new DatabaseException("CREATE INDEX CONCURRENTLY " + indexName + " failed: "
+								+ e.getMessage(), e);
+					}
+					backoff(attempt, retries, e);
+				}
+			}
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		} finally {
+			try {
+				setLockTimeout(lockTimeoutMillis + "ms");
+			} catch (MigrationException e) {
+				LOG.warning(e.getMessage() + ": " + e.getCause().getMessage());
+			}
+			try {
+				connection.setAutoCommit(database.getAutoCommitMode());
+			} catch (SQLException e) {
+				LOG.warning("Could not restore auto-commit mode: " + e.getMessage());
+			}
+		}
+	}
+
+	private static String concurrently(final String statement) {
+		return statement.replaceFirst("(?i)^(\\s*CREATE\\s+(UNIQUE\\s+)?INDEX)\\s+(?!CONCURRENTLY\\b)",
+				"$1 CONCURRENTLY ");
+	}
+
+	/**
+	 * Drop the index if it is invalid. A valid index with the same name existed
+	 * before and is kept.
+	 */
+	private static void dropInvalidIndex(final Connection connection, final String indexName) {
+		try (PreparedStatement query = connection.prepareStatement(INVALID_INDEX_QUERY)) {
+			query.setString(1, indexName);
+			try (ResultSet rs = query.executeQuery()) {
+				if (!rs.next()) {
+					return;
+				}
+			}
+			try (Statement stmt = connection.createStatement()) {
+				stmt.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+			}
+		} catch (SQLException e) {
+			LOG.warning("Could not drop index " + indexName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Wait before the next attempt after a lock timeout, a random delay up to a
+	 * limit which doubles with every attempt.
+	 */
+	static void backoff(final int attempt, final int retries, final Exception cause) throws DatabaseException {
+		final long limit = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 16));
+		final long delay = ThreadLocalRandom.current().nextLong(limit + 1);
+		LOG.info("Lock not available (attempt " + (attempt + 1) + " of " + (retries + 1) + "), retry in " + delay
+				+ " ms");
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseException("Interrupted while waiting for lock retry", cause);
+		}
+	}
+
+	/**
+	 * @param e
+	 * @return true if the exception or one of its causes is a lock timeout
+	 */
+	static boolean isLockTimeout(final Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException && LOCK_NOT_AVAILABLE.equals(((SQLException) cause).getSQLState())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Set lock_timeout of the session and commit, the setting of a rolled back
+	 * transaction would be lost.
+	 */
+	private void setLockTimeout(final String value) {
+		final Connection connection = getConnection();
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute("SET lock_timeout = " + ("DEFAULT".equals(value) ? value : "'" + value + "'"));
+			if (!connection.getAutoCommit()) {
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			throw new MigrationException("Could not set lock_timeout", e);
+		}
+	}
+
+	private Connection getConnection() {
+		return ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+	}
+
+	private static Savepoint setSavepoint(final Connection connection) throws DatabaseException {
+		try {
+			return connection.getAutoCommit() ? null : connection.setSavepoint();
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	private static void releaseSavepoint(final Connection connection, final Savepoint savepoint)
+			throws DatabaseException {
+		if (savepoint == null) {
+			return;
+		}
+		try {
+			connection.releaseSavepoint(savepoint);
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	private static void rollbackToSavepoint(final Connection connection, final Savepoint savepoint)
+			throws DatabaseException {
+		if (savepoint == null) {
+			return;
+		}
+		try {
+			connection.rollback(savepoint);
+		} catch (SQLException e) {
+			throw new DatabaseException(e);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Action {
+		void run() throws DatabaseException;
+	}
+}
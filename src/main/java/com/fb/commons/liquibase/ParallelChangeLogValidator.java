@@ -0,0 +1,306 @@
+package com.fb.commons.liquibase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.RuntimeEnvironment;
+import liquibase.change.Change;
+import liquibase.changelog.ChangeLogIterator;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.RanChangeSet;
+import liquibase.changelog.filter.ChangeSetFilterResult;
+import liquibase.changelog.filter.ContextChangeSetFilter;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.filter.LabelChangeSetFilter;
+import liquibase.changelog.visitor.ChangeSetVisitor;
+import liquibase.changelog.visitor.ValidatingVisitor;
+import liquibase.database.Database;
+import liquibase.exception.LiquibaseException;
+import liquibase.exception.SetupException;
+import liquibase.exception.ValidationErrors;
+import liquibase.exception.ValidationFailedException;
+import liquibase.exception.Warnings;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.statement.SqlStatement;
+
+/**
+ * Validates a changelog like {@link Liquibase#validate()}, but computes the
+ * checksums and runs the per changeset validation on a fork-join pool. The
+ * results are merged in changelog order into a regular
+ * {@link ValidatingVisitor}, so the error report is the same as the one of the
+ * sequential validation.
+ */
+public class ParallelChangeLogValidator {
+
+	private static final Logger LOG = Logger.getLogger(ParallelChangeLogValidator.class.getName());
+
+	private final int parallelism;
+
+	public ParallelChangeLogValidator(final int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Validate the changelog of the given Liquibase instance.
+	 *
+	 * @param liquibase
+	 * @throws LiquibaseException if the validation failed
+	 */
+	public void validate(final Liquibase liquibase) throws LiquibaseException {
+		final Database database = liquibase.getDatabase();
+		final DatabaseChangeLog changeLog = liquibase.getDatabaseChangeLog();
+		database.setObjectQuotingStrategy(changeLog.getObjectQuotingStrategy());
+
+		final Contexts contexts = new Contexts();
+		final LabelExpression labels = new LabelExpression();
+		final RuntimeEnvironment environment = new RuntimeEnvironment(database, contexts, labels);
+		final ChangeLogIterator iterator = new ChangeLogIterator(changeLog, new DbmsChangeSetFilter(database),
+				new ContextChangeSetFilter(contexts), new LabelChangeSetFilter(labels));
+
+		final List<ChangeSet> changeSets = new ArrayList<>();
+		iterator.run(new CollectingVisitor(changeSets), environment);
+
+		final ParallelValidatingVisitor visitor = new ParallelValidatingVisitor(database.getRanChangeSetList());
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			LOG.info("Validate " + changeSets.size() + " changesets with parallelism " + parallelism);
+			visitor.prepare(changeSets, database, pool);
+		} finally {
+			pool.shutdown();
+		}
+
+		// changelog preconditions and merge of the results in changelog order
+		visitor.validate(database, changeLog);
+		iterator.run(visitor, environment);
+
+		for (String message : visitor.getWarnings().getMessages()) {
+			LOG.warning(message);
+		}
+		if (!visitor.validationPassed()) {
+			throw new ValidationFailedException(visitor);
+		}
+	}
+
+	/**
+	 * Collects the changesets passing the filters.
+	 */
+	private static class CollectingVisitor implements ChangeSetVisitor {
+
+		private final List<ChangeSet> changeSets;
+
+		CollectingVisitor(final List<ChangeSet> changeSets) {
+			this.changeSets = changeSets;
+		}
+
+		@Override
+		public Direction getDirection() {
+			return Direction.FORWARD;
+		}
+
+		@Override
+		public void visit(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+				final Database database, final Set<ChangeSetFilterResult> filterResults) {
+			changeSets.add(changeSet);
+		}
+	}
+
+	/**
+	 * Result of the parallel validation of one changeset.
+	 */
+	private static class ChangeSetResult {
+		private final List<SetupException> setupExceptions = new ArrayList<>();
+		private final Warnings warnings = new Warnings();
+		private final List<ValidationErrors> validationErrors = new ArrayList<>();
+		private final List<Throwable> changeValidationExceptions = new ArrayList<>();
+	}
+
+	/**
+	 * Validating visitor which takes the results of the parallel phase instead of
+	 * validating the changes itself.
+	 */
+	private static class ParallelValidatingVisitor extends ValidatingVisitor {
+
+		private final Map<String, RanChangeSet> ranIndex = new HashMap<>();
+		private final Map<ChangeSet, ChangeSetResult> results = new IdentityHashMap<>();
+		private final Set<String> seenChangeSets = new HashSet<>();
+
+		ParallelValidatingVisitor(final List<RanChangeSet> ranChangeSets) {
+			super(ranChangeSets);
+			for (RanChangeSet ranChangeSet : ranChangeSets) {
+				ranIndex.put(ranChangeSet.toString(), ranChangeSet);
+			}
+		}
+
+		/**
+		 * Compute checksums and validate the changes of all changesets on the pool.
+		 * Liquibase caches the SQL generators per statement type in unsynchronized
+		 * maps, so the generators are looked up once sequentially before the changes
+		 * are validated in parallel.
+		 * <p>
+		 * The statements for the lookup are generated on the calling thread.
+		 * Changes with volatile statements (e.g. loadData reading its CSV file)
+		 * are skipped, their validation does not generate statements either. The
+		 * validation on the pool only generates statements which do not depend on
+		 * the database state, the shared connection is not used concurrently.
+		 */
+		void prepare(final List<ChangeSet> changeSets, final Database database, final ForkJoinPool pool)
+				throws LiquibaseException {
+			for (ChangeSet changeSet : changeSets) {
+				results.put(changeSet, new ChangeSetResult());
+			}
+
+			run(pool, () -> changeSets.parallelStream().forEach(this::initialize));
+
+			final Map<String, SqlStatement> statements = new LinkedHashMap<>();
+			for (ChangeSet changeSet : changeSets) {
+				if (shouldValidate(changeSet)) {
+					collectStatements(changeSet, database, statements);
+				}
+			}
+			for (SqlStatement statement : statements.values()) {
+				SqlGeneratorFactory.getInstance().getGenerators(statement, database);
+			}
+
+			run(pool, () -> changeSets.parallelStream().forEach(changeSet -> validateChanges(changeSet, database)));
+		}
+
+		private void initialize(final ChangeSet changeSet) {
+			final ChangeSetResult result = results.get(changeSet);
+			for (Change change : changeSet.getChanges()) {
+				try {
+					change.finishInitialization();
+				} catch (SetupException e) {
+					result.setupExceptions.add(e);
+				}
+			}
+
+			if (findRanChangeSet(changeSet) != null) {
+				// cached in the changeset for the checksum comparison of the merge
+				changeSet.generateCheckSum();
+			}
+		}
+
+		private static void collectStatements(final ChangeSet changeSet, final Database database,
+				final Map<String, SqlStatement> statements) {
+			for (Change change : changeSet.getChanges()) {
+				if (change.generateStatementsVolatile(database)) {
+					continue;
+				}
+				try {
+					for (SqlStatement statement : change.generateStatements(database)) {
+						statements.putIfAbsent(statement.getClass().getName(), statement);
+					}
+				} catch (RuntimeException e) {
+					// reported by the validation of the change
+				}
+			}
+		}
+
+		private void validateChanges(final ChangeSet changeSet, final Database database) {
+			if (!shouldValidate(changeSet)) {
+				return;
+			}
+			final ChangeSetResult result = results.get(changeSet);
+			for (Change change : changeSet.getChanges()) {
+				result.warnings.addAll(change.warn(database));
+				try {
+					final ValidationErrors errors = change.validate(database);
+					// kept without errors too, their warnings are logged by the merge
+					if (errors != null) {
+						result.validationErrors.add(errors);
+					}
+				} catch (Throwable e) {
+					result.changeValidationExceptions.add(e);
+				}
+			}
+		}
+
+		@Override
+		public void visit(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+				final Database database, final Set<ChangeSetFilterResult> filterResults) {
+			final ChangeSetResult result = results.get(changeSet);
+			getSetupExceptions().addAll(result.setupExceptions);
+			getWarnings().addAll(result.warnings);
+			for (ValidationErrors errors : result.validationErrors) {
+				if (errors.hasErrors()
+						&& ChangeSet.ValidationFailOption.MARK_RAN.equals(changeSet.getOnValidationFail())) {
+					LOG.info("Skipping changeset " + changeSet + " due to validation error(s): "
+							+ String.join(", ", errors.getErrorMessages()));
+					changeSet.setValidationFailed(true);
+				} else {
+					if (!errors.getWarningMessages().isEmpty()) {
+						LOG.warning("Changeset " + changeSet + ": " + String.join(", ", errors.getWarningMessages()));
+					}
+					getValidationErrors().addAll(errors, changeSet);
+				}
+			}
+			getChangeValidationExceptions().addAll(result.changeValidationExceptions);
+
+			final RanChangeSet ranChangeSet = findRanChangeSet(changeSet);
+			if (ranChangeSet != null && !changeSet.isCheckSumValid(ranChangeSet.getLastCheckSum())
+					&& !changeSet.shouldRunOnChange()) {
+				getInvalidMD5Sums().add(changeSet.toString(false) + " was: " + ranChangeSet.getLastCheckSum()
+						+ " but is now: " + changeSet.generateCheckSum());
+			}
+
+			final String changeSetString = changeSet.toString(false);
+			if (seenChangeSets.contains(changeSetString)) {
+				getDuplicateChangeSets().add(changeSet);
+			} else {
+				seenChangeSets.add(changeSetString);
+			}
+		}
+
+		private boolean shouldValidate(final ChangeSet changeSet) {
+			return findRanChangeSet(changeSet) == null || changeSet.shouldRunOnChange()
+					|| changeSet.shouldAlwaysRun();
+		}
+
+		private RanChangeSet findRanChangeSet(final ChangeSet changeSet) {
+			final RanChangeSet result = ranIndex.get(changeSet.toString(false));
+			if (result != null) {
+				return result;
+			}
+			for (RanChangeSet ranChangeSet : ranIndex.values()) {
+				if (ranChangeSet.getId().equalsIgnoreCase(changeSet.getId())
+						&& ranChangeSet.getAuthor().equalsIgnoreCase(changeSet.getAuthor())) {
+					final String changeSetPath = normalizePath(changeSet.getFilePath());
+					final String ranChangeSetPath = normalizePath(ranChangeSet.getChangeLog());
+					if (ranChangeSetPath.equalsIgnoreCase(changeSetPath) || ranChangeSetPath.endsWith(changeSetPath)
+							|| changeSetPath.endsWith(ranChangeSetPath)) {
+						return ranChangeSet;
+					}
+				}
+			}
+			return null;
+		}
+
+		private static String normalizePath(final String filePath) {
+			return filePath.replaceFirst("^classpath:", "");
+		}
+
+		private static void run(final ForkJoinPool pool, final Runnable task) throws LiquibaseException {
+			try {
+				pool.submit(task).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new LiquibaseException("Parallel validation interrupted", e);
+			} catch (ExecutionException e) {
+				throw new LiquibaseException("Parallel validation failed", e.getCause());
+			}
+		}
+	}
+}
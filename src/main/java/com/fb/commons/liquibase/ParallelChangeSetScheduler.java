@@ -0,0 +1,571 @@
+package com.fb.commons.liquibase;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.change.Change;
+import liquibase.change.ColumnConfig;
+import liquibase.change.ConstraintsConfig;
+import liquibase.change.core.AddAutoIncrementChange;
+import liquibase.change.core.AddColumnChange;
+import liquibase.change.core.AddDefaultValueChange;
+import liquibase.change.core.AddForeignKeyConstraintChange;
+import liquibase.change.core.AddNotNullConstraintChange;
+import liquibase.change.core.AddPrimaryKeyChange;
+import liquibase.change.core.AddUniqueConstraintChange;
+import liquibase.change.core.CreateIndexChange;
+import liquibase.change.core.CreateTableChange;
+import liquibase.change.core.DeleteDataChange;
+import liquibase.change.core.DropColumnChange;
+import liquibase.change.core.DropDefaultValueChange;
+import liquibase.change.core.DropIndexChange;
+import liquibase.change.core.DropNotNullConstraintChange;
+import liquibase.change.core.DropPrimaryKeyChange;
+import liquibase.change.core.DropTableChange;
+import liquibase.change.core.DropUniqueConstraintChange;
+import liquibase.change.core.EmptyChange;
+import liquibase.change.core.InsertDataChange;
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.ModifyDataTypeChange;
+import liquibase.change.core.OutputChange;
+import liquibase.change.core.RenameColumnChange;
+import liquibase.change.core.RenameTableChange;
+import liquibase.change.core.SetColumnRemarksChange;
+import liquibase.change.core.SetTableRemarksChange;
+import liquibase.change.core.UpdateDataChange;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.database.ObjectQuotingStrategy;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.sql.Sql;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+import liquibase.statement.SqlStatement;
+import liquibase.statement.core.MarkChangeSetRanStatement;
+
+/**
+ * Runs the pending changesets of an UPDATE concurrently where they do not
+ * depend on each other. A changeset depends on every earlier changeset which
+ * touches one of its tables. The tables are derived from table changes like
+ * createTable, addColumn, createIndex, addForeignKeyConstraint or loadData.
+ * All other changesets (sql, sqlFile, custom changes, views, sequences,
+ * changesets with preconditions, tagDatabase) are barriers: they wait for all
+ * earlier changesets and all later changesets wait for them.
+ * <p>
+ * Changesets can declare their dependencies with labels:
+ * <ul>
+ * <li>tables:&lt;table&gt;;&lt;table&gt; - the tables of a changeset whose
+ * tables cannot be derived, e.g. a sql changeset; it is no barrier then</li>
+ * <li>after:&lt;id&gt; - run after the changeset with the given id</li>
+ * <li>serial - make the changeset a barrier</li>
+ * </ul>
+ * Labels do not restrict which changesets run, UPDATE runs without label
+ * expression.
+ * <p>
+ * Every changeset runs in its own transaction on one of the worker
+ * connections, opened through the connection factory. Its history row is
+ * written in the same transaction, so a committed changeset is always
+ * recorded. ORDEREXECUTED is assigned when a changeset completes, before its
+ * dependents start, so it is a valid order for rollbacks. The changelog lock
+ * is held on the connection of the Liquibase instance. After a failure no
+ * further changesets are started; the running ones are completed and recorded.
+ * <p>
+ * Liquibase caches executors and SQL generators in unsynchronized maps. The
+ * worker connections and their executors are set up and the generators of all
+ * statements known in advance are looked up on the scheduling thread, so the
+ * workers only read these caches. Changesets whose statements are only known
+ * when they run are barriers, except loadData with COPY, which does not use
+ * generators.
+ * <p>
+ * A backfill commits its chunks, which a worker connection would defer to the
+ * end of the changeset. Changesets with a backfill are barriers and run on the
+ * connection of the Liquibase instance, which commits every chunk.
+ */
+public class ParallelChangeSetScheduler {
+
+	private static final Logger LOG = Logger.getLogger(ParallelChangeSetScheduler.class.getName());
+
+	private static final String TABLES_LABEL = "tables:";
+	private static final String AFTER_LABEL = "after:";
+	private static final String SERIAL_LABEL = "serial";
+
+	// getters of table and schema name of the changes with derivable tables
+	private static final String[][] TABLE_GETTERS = { { "getTableName", "getSchemaName" },
+			{ "getBaseTableName", "getBaseTableSchemaName" },
+			{ "getReferencedTableName", "getReferencedTableSchemaName" }, { "getOldTableName", "getSchemaName" },
+			{ "getNewTableName", "getSchemaName" } };
+
+	private static final List<Class<? extends Change>> TABLE_CHANGES = Collections.unmodifiableList(
+			Arrays.asList(CreateTableChange.class, DropTableChange.class, AddColumnChange.class,
+					DropColumnChange.class, RenameColumnChange.class, RenameTableChange.class,
+					ModifyDataTypeChange.class, AddNotNullConstraintChange.class, DropNotNullConstraintChange.class,
+					AddDefaultValueChange.class, DropDefaultValueChange.class, AddAutoIncrementChange.class,
+					CreateIndexChange.class, DropIndexChange.class, AddPrimaryKeyChange.class,
+					DropPrimaryKeyChange.class, AddUniqueConstraintChange.class, DropUniqueConstraintChange.class,
+					AddForeignKeyConstraintChange.class, InsertDataChange.class, UpdateDataChange.class,
+					DeleteDataChange.class, LoadDataChange.class, SetTableRemarksChange.class,
+					SetColumnRemarksChange.class));
+
+	private final int threads;
+	private final Function<Database, Database> connectionFactory;
+
+	/**
+	 * @param threads           - maximum number of changesets running at the
+	 *                          same time
+	 * @param connectionFactory - opens a new connection to the same database and
+	 *                          schema as the given database
+	 */
+	public ParallelChangeSetScheduler(final int threads, final Function<Database, Database> connectionFactory) {
+		this.threads = threads;
+		this.connectionFactory = connectionFactory;
+	}
+
+	/**
+	 * Same as {@link Liquibase#update(Contexts)}, with independent changesets
+	 * running concurrently.
+	 *
+	 * @param liquibase
+	 */
+	public void update(final Liquibase liquibase) throws LiquibaseException {
+		final Database database = liquibase.getDatabase();
+		final Contexts contexts = new Contexts();
+		final LabelExpression labelExpression = new LabelExpression();
+		final LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+		lockService.waitForLock();
+		try {
+			final DatabaseChangeLog changeLog = liquibase.getDatabaseChangeLog();
+			liquibase.checkLiquibaseTables(true, changeLog, contexts, labelExpression);
+			ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).generateDeploymentId();
+			changeLog.validate(database, contexts, labelExpression);
+			final List<ChangeSet> pending = liquibase.listUnrunChangeSets(contexts, labelExpression, false);
+			if (pending.isEmpty()) {
+				LOG.info("No pending changesets");
+				return;
+			}
+			final List<Node> nodes = buildGraph(pending, database);
+			prepareGenerators(nodes, database);
+			try {
+				run(changeLog, database, nodes);
+			} finally {
+				// the history rows were written on the worker connections
+				ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).reset();
+			}
+		} finally {
+			lockService.releaseLock();
+		}
+	}
+
+	private List<Node> buildGraph(final List<ChangeSet> pending, final Database database)
+			throws LiquibaseException {
+		final List<Node> nodes = new ArrayList<>();
+		final Map<String, Node> lastByTable = new HashMap<>();
+		final Map<String, Node> byId = new HashMap<>();
+		final List<Node> sinceBarrier = new ArrayList<>();
+		Node barrier = null;
+		int barriers = 0;
+		for (ChangeSet changeSet : pending) {
+			final Node node = new Node(changeSet, database.getRunStatus(changeSet), hasBackfill(changeSet));
+			final Set<String> tables = node.mainConnection ? null : getTables(changeSet, database);
+			if (tables == null) {
+				// depends on everything since the last barrier, which depends on everything before
+				barriers++;
+				node.dependOn(barrier);
+				for (Node previous : sinceBarrier) {
+					node.dependOn(previous);
+				}
+				sinceBarrier.clear();
+				lastByTable.clear();
+				barrier = node;
+			} else {
+				node.dependOn(barrier);
+				for (String table : tables) {
+					node.dependOn(lastByTable.put(table, node));
+				}
+				sinceBarrier.add(node);
+			}
+			for (String id : getLabelValues(changeSet, AFTER_LABEL)) {
+				// changesets which ran before are not pending
+				node.dependOn(byId.get(id));
+			}
+			byId.put(changeSet.getId().toLowerCase(Locale.ROOT), node);
+			nodes.add(node);
+		}
+		LOG.info(nodes.size() + " pending changesets, " + barriers + " of them barriers");
+		return nodes;
+	}
+
+	/**
+	 * Look up the generators of all statements known in advance and of the
+	 * history rows, so the workers find them in the cache.
+	 */
+	private static void prepareGenerators(final List<Node> nodes, final Database database) {
+		final SqlGeneratorFactory factory = SqlGeneratorFactory.getInstance();
+		for (Node node : nodes) {
+			factory.getGenerators(new MarkChangeSetRanStatement(node.changeSet, ChangeSet.ExecType.EXECUTED),
+					database);
+			for (Change change : node.changeSet.getChanges()) {
+				if (change.generateStatementsVolatile(database)) {
+					continue;
+				}
+				for (SqlStatement statement : change.generateStatements(database)) {
+					factory.getGenerators(statement, database);
+				}
+			}
+		}
+	}
+
+	private void run(final DatabaseChangeLog changeLog, final Database database, final List<Node> nodes)
+			throws LiquibaseException {
+		final long start = System.currentTimeMillis();
+		final List<Worker> workers = new ArrayList<>();
+		final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CompletionService<Node> completion = new ExecutorCompletionService<>(pool);
+		long changeSetMillis = 0;
+		int completed = 0;
+		try {
+			// executors are cached per database, register them before the workers start
+			for (int i = 0; i < Math.min(threads, nodes.size()); i++) {
+				workers.add(openWorker(database));
+			}
+			idle.addAll(workers);
+			int running = 0;
+			for (Node node : nodes) {
+				if (node.remainingDependencies == 0) {
+					submit(completion, node, changeLog, database, idle);
+					running++;
+				}
+			}
+			Throwable failure = null;
+			while (running > 0) {
+				final Node node;
+				try {
+					node = completion.take().get();
+				} catch (ExecutionException e) {
+					running--;
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					continue;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MigrationException("Interrupted while waiting for changesets", e);
+				}
+				running--;
+				completed++;
+				changeSetMillis += node.millis;
+				if (failure != null) {
+					continue;
+				}
+				for (Node dependent : node.dependents) {
+					if (--dependent.remainingDependencies == 0) {
+						submit(completion, dependent, changeLog, database, idle);
+						running++;
+					}
+				}
+			}
+			if (failure instanceof LiquibaseException) {
+				throw (LiquibaseException) failure;
+			}
+			if (failure != null) {
+				throw new MigrationException("Changeset failed", failure);
+			}
+		} finally {
+			pool.shutdown();
+			for (Worker worker : workers) {
+				try {
+					worker.database.close();
+				} catch (DatabaseException e) {
+					LOG.warning("Could not close worker connection: " + e.getMessage());
+				}
+			}
+			final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			LOG.info(completed + " of " + nodes.size() + " changesets in " + elapsed + " ms on " + workers.size()
+					+ " connections, effective parallelism "
+					+ String.format(Locale.ROOT, "%.1f", (double) changeSetMillis / elapsed));
+		}
+	}
+
+	/**
+	 * Open a worker connection whose commits are deferred until the history row
+	 * is written, and register its executor.
+	 */
+	private Worker openWorker(final Database database) {
+		final Database workerDatabase = connectionFactory.apply(database);
+		final DeferredCommitConnection connection = new DeferredCommitConnection(
+				((JdbcConnection) workerDatabase.getConnection()).getUnderlyingConnection());
+		workerDatabase.setConnection(connection);
+		liquibase.executor.ExecutorService.getInstance().getExecutor(workerDatabase);
+		return new Worker(workerDatabase, connection);
+	}
+
+	private void submit(final CompletionService<Node> completion, final Node node, final DatabaseChangeLog changeLog,
+			final Database database, final BlockingQueue<Worker> idle) {
+		completion.submit(() -> {
+			// a barrier, no other changeset uses the connection of the Liquibase instance meanwhile
+			final Worker worker = node.mainConnection ? new Worker(database, null) : idle.take();
+			try {
+				final long start = System.currentTimeMillis();
+				execute(node, changeLog, database, worker);
+				node.millis = System.currentTimeMillis() - start;
+				return node;
+			} finally {
+				if (worker.connection != null) {
+					idle.add(worker);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run the changeset on the worker connection and commit it together with its
+	 * history row. On the connection of the Liquibase instance the changeset
+	 * commits as it goes, the history row is committed after it.
+	 */
+	private void execute(final Node node, final DatabaseChangeLog changeLog, final Database database,
+			final Worker worker) throws LiquibaseException {
+		final Database workerDatabase = worker.database;
+		final ObjectQuotingStrategy quotingStrategy = workerDatabase.getObjectQuotingStrategy();
+		try {
+			final ChangeSet.ExecType execType = node.changeSet.execute(changeLog, null, workerDatabase);
+			node.execType = node.runStatus == ChangeSet.RunStatus.NOT_RAN ? execType : ChangeSet.ExecType.RERAN;
+		} finally {
+			workerDatabase.setObjectQuotingStrategy(quotingStrategy);
+		}
+		final Sql[] history;
+		synchronized (this) {
+			// ORDEREXECUTED and deployment id come from the history service of the Liquibase instance
+			history = SqlGeneratorFactory.getInstance()
+					.generateSql(new MarkChangeSetRanStatement(node.changeSet, node.execType), database);
+		}
+		try (Statement stmt = ((JdbcConnection) workerDatabase.getConnection()).getUnderlyingConnection()
+				.createStatement()) {
+			for (Sql sql : history) {
+				stmt.execute(sql.toSql());
+			}
+		} catch (SQLException e) {
+			workerDatabase.rollback();
+			throw new DatabaseException("History row of " + node.changeSet + " cannot be written", e);
+		}
+		if (worker.connection != null) {
+			worker.connection.commitNow();
+		} else {
+			workerDatabase.commit();
+		}
+	}
+
+	/**
+	 * Tables of the changeset as schema.table in lower case, null if the
+	 * changeset is a barrier.
+	 */
+	private static Set<String> getTables(final ChangeSet changeSet, final Database database) {
+		if (hasLabel(changeSet, SERIAL_LABEL)) {
+			return null;
+		}
+		final Set<String> tables = new LinkedHashSet<>();
+		for (String table : getLabelValues(changeSet, TABLES_LABEL)) {
+			for (String name : table.split(";")) {
+				if (!name.trim().isEmpty()) {
+					tables.add(qualify(null, name.trim(), database));
+				}
+			}
+		}
+		if (!tables.isEmpty()) {
+			return tables;
+		}
+		if (changeSet.getPreconditions() != null) {
+			// preconditions may look at any table
+			return null;
+		}
+		for (Change change : changeSet.getChanges()) {
+			if (change instanceof EmptyChange || change instanceof OutputChange) {
+				continue;
+			}
+			final Set<String> changeTables = getTables(change, database);
+			if (changeTables == null) {
+				return null;
+			}
+			tables.addAll(changeTables);
+		}
+		return tables;
+	}
+
+	private static Set<String> getTables(final Change change, final Database database) {
+		if (!isTableChange(change)) {
+			return null;
+		}
+		if (change.generateStatementsVolatile(database) && !isGeneratorFree(change, database)) {
+			// statements and their generators are only known when the change runs
+			return null;
+		}
+		if (change instanceof DropTableChange
+				&& Boolean.TRUE.equals(((DropTableChange) change).isCascadeConstraints())) {
+			// drops foreign keys of other tables
+			return null;
+		}
+		final Set<String> tables = new LinkedHashSet<>();
+		for (String[] getter : TABLE_GETTERS) {
+			final String table = invoke(change, getter[0]);
+			if (table != null) {
+				tables.add(qualify(invoke(change, getter[1]), table, database));
+			}
+		}
+		if (change instanceof CreateTableChange) {
+			for (ColumnConfig column : ((CreateTableChange) change).getColumns()) {
+				final ConstraintsConfig constraints = column.getConstraints();
+				if (constraints == null) {
+					continue;
+				}
+				if (constraints.getReferences() != null) {
+					return null;
+				}
+				if (constraints.getReferencedTableName() != null) {
+					tables.add(qualify(constraints.getReferencedTableSchemaName(),
+							constraints.getReferencedTableName(), database));
+				}
+			}
+		}
+		return tables.isEmpty() ? null : tables;
+	}
+
+	private static boolean isGeneratorFree(final Change change, final Database database) {
+		return change instanceof CopyLoadDataChange && ((CopyLoadDataChange) change).isCopySupported(database);
+	}
+
+	private static boolean hasBackfill(final ChangeSet changeSet) {
+		for (Change change : changeSet.getChanges()) {
+			if (change instanceof BackfillChange) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isTableChange(final Change change) {
+		for (Class<? extends Change> type : TABLE_CHANGES) {
+			if (type.isInstance(change)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String invoke(final Change change, final String getter) {
+		try {
+			final Method method = change.getClass().getMethod(getter);
+			final Object value = method.invoke(change);
+			return value == null ? null : value.toString();
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			throw new MigrationException("Cannot read " + getter + " of " + change.getClass().getName(), e);
+		}
+	}
+
+	private static String qualify(final String schema, final String table, final Database database) {
+		final String schemaName = schema != null ? schema : database.getDefaultSchemaName();
+		return (schemaName == null ? "" : schemaName.toLowerCase(Locale.ROOT)) + "."
+				+ table.toLowerCase(Locale.ROOT);
+	}
+
+	private static boolean hasLabel(final ChangeSet changeSet, final String name) {
+		if (changeSet.getLabels() == null) {
+			return false;
+		}
+		for (String label : changeSet.getLabels().getLabels()) {
+			if (name.equalsIgnoreCase(label.trim())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> getLabelValues(final ChangeSet changeSet, final String prefix) {
+		final List<String> values = new ArrayList<>();
+		if (changeSet.getLabels() == null) {
+			return values;
+		}
+		for (String label : changeSet.getLabels().getLabels()) {
+			final String normalized = label.trim().toLowerCase(Locale.ROOT);
+			if (normalized.startsWith(prefix) && normalized.length() > prefix.length()) {
+				values.add(normalized.substring(prefix.length()).trim());
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Worker connection with deferred commits, or the connection of the
+	 * Liquibase instance.
+	 */
+	private static final class Worker {
+
+		private final Database database;
+		// null for the connection of the Liquibase instance, which commits right away
+		private final DeferredCommitConnection connection;
+
+		private Worker(final Database database, final DeferredCommitConnection connection) {
+			this.database = database;
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Pending changeset with its dependencies. The counters are only changed by
+	 * the scheduling thread, execType and millis by the worker before the node is
+	 * handed back.
+	 */
+	private static final class Node {
+
+		private final ChangeSet changeSet;
+		private final ChangeSet.RunStatus runStatus;
+		// runs on the connection of the Liquibase instance
+		private final boolean mainConnection;
+		private final List<Node> dependents = new ArrayList<>();
+		private final Set<Node> dependencies = Collections.newSetFromMap(new IdentityHashMap<>());
+		private int remainingDependencies;
+		private volatile ChangeSet.ExecType execType;
+		private volatile long millis;
+
+		private Node(final ChangeSet changeSet, final ChangeSet.RunStatus runStatus, final boolean mainConnection) {
+			this.changeSet = changeSet;
+			this.runStatus = runStatus;
+			this.mainConnection = mainConnection;
+		}
+
+		private void dependOn(final Node node) {
+			if (node != null && node != this && dependencies.add(node)) {
+				node.dependents.add(this);
+				remainingDependencies++;
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.fb.commons.liquibase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import liquibase.database.Database;
+import liquibase.diff.DiffGeneratorFactory;
+import liquibase.diff.DiffResult;
+import liquibase.diff.ObjectDifferences;
+import liquibase.diff.compare.CompareControl;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Column;
+import liquibase.structure.core.ForeignKey;
+import liquibase.structure.core.Index;
+import liquibase.structure.core.PrimaryKey;
+import liquibase.structure.core.Table;
+import liquibase.structure.core.UniqueConstraint;
+
+/**
+ * Computes the same diff as
+ * {@link liquibase.Liquibase#diff(Database, Database, CompareControl)}, but
+ * snapshots reference and target database at the same time. The standard
+ * object types are split into partitions (tables and columns, indexes and
+ * constraints, everything else) and every partition of every side is
+ * snapshotted on its own connection. The partial diffs are merged into one
+ * result.
+ * <p>
+ * The given databases are used for the first partition, the additional
+ * connections are opened through the connection factory and closed afterwards.
+ */
+public class ParallelDiffGenerator {
+
+	private static final Logger LOG = Logger.getLogger(ParallelDiffGenerator.class.getName());
+
+	private static final String OTHER_PARTITION = "other";
+
+	private final Function<Database, Database> connectionFactory;
+
+	/**
+	 * @param connectionFactory - opens a new connection to the same database and
+	 *                          schema as the given database
+	 */
+	public ParallelDiffGenerator(final Function<Database, Database> connectionFactory) {
+		this.connectionFactory = connectionFactory;
+	}
+
+	public DiffResult diff(final Database referenceDatabase, final Database targetDatabase)
+			throws LiquibaseException {
+		final long start = System.currentTimeMillis();
+		final Map<String, Set<Class<? extends DatabaseObject>>> partitions = partition(
+				CompareControl.STANDARD.getComparedTypes());
+
+		final List<Database> openedConnections = Collections.synchronizedList(new ArrayList<Database>());
+		final ExecutorService pool = Executors.newFixedThreadPool(partitions.size() * 2);
+		try {
+			final List<Future<DatabaseSnapshot>> referenceSnapshots = new ArrayList<>();
+			final List<Future<DatabaseSnapshot>> targetSnapshots = new ArrayList<>();
+			final List<CompareControl> compareControls = new ArrayList<>();
+			boolean first = true;
+			for (Map.Entry<String, Set<Class<? extends DatabaseObject>>> partition : partitions.entrySet()) {
+				final CompareControl compareControl = new CompareControl(partition.getValue());
+				final boolean useGivenDatabase = first;
+				compareControls.add(compareControl);
+				referenceSnapshots.add(pool.submit(() -> snapshot(partition.getKey(), referenceDatabase,
+						compareControl, CompareControl.DatabaseRole.REFERENCE, partition.getValue(),
+						openedConnections, useGivenDatabase)));
+				targetSnapshots.add(pool.submit(() -> snapshot(partition.getKey(), targetDatabase,
+						compareControl, CompareControl.DatabaseRole.COMPARISON, partition.getValue(),
+						openedConnections, useGivenDatabase)));
+				first = false;
+			}
+
+			DiffResult result = null;
+			for (int i = 0; i < compareControls.size(); i++) {
+				final DiffResult partialResult = DiffGeneratorFactory.getInstance().compare(
+						referenceSnapshots.get(i).get(), targetSnapshots.get(i).get(), compareControls.get(i));
+				if (result == null) {
+					result = new DiffResult(partialResult.getReferenceSnapshot(),
+							partialResult.getComparisonSnapshot(), CompareControl.STANDARD);
+					result.setProductNameDiff(partialResult.getProductNameDiff());
+					result.setProductVersionDiff(partialResult.getProductVersionDiff());
+				}
+				merge(partialResult, result);
+			}
+			LOG.info("Diff of " + partitions.size() + " partitions finished in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			return result;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new LiquibaseException("Diff interrupted", e);
+		} catch (ExecutionException e) {
+			throw new LiquibaseException("Snapshot for diff failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+			for (Database database : openedConnections) {
+				close(database);
+			}
+		}
+	}
+
+	private DatabaseSnapshot snapshot(final String partition, final Database database,
+			final CompareControl compareControl, final CompareControl.DatabaseRole role,
+			final Set<Class<? extends DatabaseObject>> types, final List<Database> openedConnections,
+			final boolean useGivenDatabase) throws LiquibaseException {
+		Database connection = database;
+		if (!useGivenDatabase) {
+			connection = connectionFactory.apply(database);
+			openedConnections.add(connection);
+		}
+		final long start = System.currentTimeMillis();
+		@SuppressWarnings("unchecked")
+		final Class<? extends DatabaseObject>[] typeArray = (Class<? extends DatabaseObject>[]) types
+				.toArray(new Class<?>[types.size()]);
+		final DatabaseSnapshot snapshot = SnapshotGeneratorFactory.getInstance().createSnapshot(
+				compareControl.getSchemas(role), connection, new SnapshotControl(connection, typeArray));
+		LOG.fine("Snapshot " + role + " " + partition + " took " + (System.currentTimeMillis() - start) + " ms");
+		return snapshot;
+	}
+
+	/**
+	 * Split the compared types into the partitions snapshotted in parallel. Types
+	 * which are not listed explicitly end up in the last partition.
+	 */
+	private static Map<String, Set<Class<? extends DatabaseObject>>> partition(
+			final Set<Class<? extends DatabaseObject>> types) {
+		final Map<String, List<Class<? extends DatabaseObject>>> definitions = new LinkedHashMap<>();
+		definitions.put("tables", Arrays.<Class<? extends DatabaseObject>>asList(Table.class, Column.class,
+				PrimaryKey.class));
+		definitions.put("constraints", Arrays.<Class<? extends DatabaseObject>>asList(Index.class,
+				UniqueConstraint.class, ForeignKey.class));
+
+		final Map<String, Set<Class<? extends DatabaseObject>>> partitions = new LinkedHashMap<>();
+		final Set<Class<? extends DatabaseObject>> other = new LinkedHashSet<>(types);
+		for (Map.Entry<String, List<Class<? extends DatabaseObject>>> definition : definitions.entrySet()) {
+			final Set<Class<? extends DatabaseObject>> partition = new LinkedHashSet<>(definition.getValue());
+			partition.retainAll(types);
+			other.removeAll(partition);
+			if (!partition.isEmpty()) {
+				partitions.put(definition.getKey(), partition);
+			}
+		}
+		if (!other.isEmpty()) {
+			partitions.put(OTHER_PARTITION, other);
+		}
+		return partitions;
+	}
+
+	private static void merge(final DiffResult source, final DiffResult target) {
+		for (DatabaseObject object : source.getMissingObjects()) {
+			target.addMissingObject(object);
+		}
+		for (DatabaseObject object : source.getUnexpectedObjects()) {
+			target.addUnexpectedObject(object);
+		}
+		for (Map.Entry<DatabaseObject, ObjectDifferences> entry : source.getChangedObjects().entrySet()) {
+			target.addChangedObject(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private static void close(final Database database) {
+		try {
+			database.close();
+		} catch (DatabaseException e) {
+			LOG.warning("Could not close diff connection: " + e.getMessage());
+		}
+	}
+}
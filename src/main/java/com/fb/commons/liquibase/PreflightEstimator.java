@@ -0,0 +1,567 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.change.Change;
+import liquibase.change.ChangeFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.database.Database;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.sql.Sql;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+
+/**
+ * Estimates duration and lock impact of the pending changesets before an
+ * UPDATE on PostgreSQL, nothing is executed. The SQL of every change is
+ * rendered and classified by the lock it takes and by what it does to the
+ * table: catalog change only, full scan, index build or rewrite. DML is
+ * estimated with EXPLAIN, everything else with the size of the table from
+ * pg_class.
+ * <p>
+ * The durations assume a single session on idle hardware, they are meant to
+ * tell seconds from hours, not to be exact. A changeset holds its locks until
+ * it commits, so the lock of a changeset is held for its whole duration.
+ * Tables created by earlier pending changesets are empty. Changes whose
+ * statements are only known at execution time (e.g. loadData) are listed but
+ * not estimated.
+ */
+public class PreflightEstimator {
+
+	private static final Logger LOG = Logger.getLogger(PreflightEstimator.class.getName());
+
+	// throughput of a single session, rough values for current server hardware
+	private static final double SCAN_BYTES_PER_SECOND = 200d * 1024 * 1024;
+	private static final double INDEX_BYTES_PER_SECOND = 50d * 1024 * 1024;
+	private static final double REWRITE_BYTES_PER_SECOND = 50d * 1024 * 1024;
+	private static final double DML_ROWS_PER_SECOND = 20_000d;
+
+	// changesets above this duration are reported if they block writes
+	private static final double BLOCKING_THRESHOLD_SECONDS = 1d;
+
+	private static final String TABLE_SIZE_QUERY = "SELECT greatest(c.reltuples, 0)::bigint, pg_table_size(c.oid), "
+			+ "pg_indexes_size(c.oid) FROM pg_class c WHERE c.oid = to_regclass(?)";
+
+	private static final String ID = "((?:\"[^\"]+\"|[\\w$]+)(?:\\.(?:\"[^\"]+\"|[\\w$]+))?)";
+	private static final int FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+
+	private static final Pattern LEADING_COMMENTS = Pattern.compile("^(\\s*(--[^\\n]*(\\n|$)|/\\*.*?\\*/))+", FLAGS);
+	private static final Pattern CREATE_INDEX = Pattern.compile(
+			"^\\s*CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(CONCURRENTLY\\s+)?.*?\\bON\\s+(ONLY\\s+)?" + ID, FLAGS);
+	private static final Pattern ALTER_TABLE = Pattern
+			.compile("^\\s*ALTER\\s+TABLE\\s+(IF\\s+EXISTS\\s+)?(ONLY\\s+)?" + ID + "\\s+(.*)$", FLAGS);
+	private static final Pattern DROP_OR_TRUNCATE = Pattern
+			.compile("^\\s*(DROP\\s+TABLE\\s+(IF\\s+EXISTS\\s+)?|TRUNCATE\\s+(TABLE\\s+)?(ONLY\\s+)?)" + ID, FLAGS);
+	private static final Pattern DROP_INDEX = Pattern
+			.compile("^\\s*DROP\\s+INDEX\\s+(CONCURRENTLY\\s+)?(IF\\s+EXISTS\\s+)?" + ID, FLAGS);
+	private static final Pattern REWRITE_TABLE = Pattern
+			.compile("^\\s*(VACUUM\\s+(\\(\\s*)?FULL\\s*\\)?|CLUSTER)\\s+(VERBOSE\\s+)?" + ID, FLAGS);
+	private static final Pattern REINDEX = Pattern
+			.compile("^\\s*REINDEX\\s+(TABLE|INDEX)\\s+(CONCURRENTLY\\s+)?" + ID, FLAGS);
+	private static final Pattern REFRESH_VIEW = Pattern
+			.compile("^\\s*REFRESH\\s+MATERIALIZED\\s+VIEW\\s+(CONCURRENTLY\\s+)?" + ID, FLAGS);
+	private static final Pattern LOCK_TABLE = Pattern.compile("^\\s*LOCK\\s+(TABLE\\s+)?(ONLY\\s+)?" + ID, FLAGS);
+	private static final Pattern DML = Pattern
+			.compile("^\\s*(UPDATE\\s+(ONLY\\s+)?|DELETE\\s+FROM\\s+(ONLY\\s+)?|INSERT\\s+INTO\\s+)" + ID, FLAGS);
+	private static final Pattern CREATE = Pattern.compile("^\\s*CREATE\\b", FLAGS);
+
+	// actions of ALTER TABLE
+	private static final Pattern TYPE_CHANGE = Pattern
+			.compile("\\bALTER\\s+(COLUMN\\s+)?\\S+\\s+(SET\\s+DATA\\s+)?TYPE\\b", FLAGS);
+	private static final Pattern SET_NOT_NULL = Pattern
+			.compile("\\bALTER\\s+(COLUMN\\s+)?\\S+\\s+SET\\s+NOT\\s+NULL\\b", FLAGS);
+	private static final Pattern SET_TABLESPACE = Pattern.compile("\\bSET\\s+TABLESPACE\\b", FLAGS);
+	private static final Pattern ADD_INDEX_CONSTRAINT = Pattern
+			.compile("\\bADD\\s+(CONSTRAINT\\s+\\S+\\s+)?(PRIMARY\\s+KEY|UNIQUE)\\b", FLAGS);
+	private static final Pattern USING_INDEX = Pattern.compile("\\bUSING\\s+INDEX\\s+(?!TABLESPACE)", FLAGS);
+	private static final Pattern ADD_FOREIGN_KEY = Pattern
+			.compile("\\bADD\\s+(CONSTRAINT\\s+\\S+\\s+)?FOREIGN\\s+KEY\\b.*?\\bREFERENCES\\s+" + ID, FLAGS);
+	private static final Pattern ADD_CHECK = Pattern.compile("\\bADD\\s+(CONSTRAINT\\s+\\S+\\s+)?CHECK\\b", FLAGS);
+	private static final Pattern NOT_VALID = Pattern.compile("\\bNOT\\s+VALID\\b", FLAGS);
+	private static final Pattern VALIDATE_CONSTRAINT = Pattern.compile("\\bVALIDATE\\s+CONSTRAINT\\b", FLAGS);
+	private static final Pattern ADD_COLUMN = Pattern.compile("\\bADD\\s+(COLUMN\\s+)?(IF\\s+NOT\\s+EXISTS\\s+)?"
+			+ "(?!CONSTRAINT\\b|PRIMARY\\b|UNIQUE\\b|FOREIGN\\b|CHECK\\b|EXCLUDE\\b)\\S+", FLAGS);
+	private static final Pattern DEFAULT = Pattern.compile("\\bDEFAULT\\b", FLAGS);
+	// filled row by row when the column is added
+	private static final Pattern ROW_BY_ROW_DEFAULT = Pattern.compile("\\b(nextval|random|clock_timestamp|"
+			+ "timeofday|gen_random_uuid|uuid_generate_v[14])\\s*\\(|\\b(SMALL|BIG)?SERIAL\\b|\\bAS\\s+IDENTITY\\b|"
+			+ "\\bSTORED\\b", FLAGS);
+	private static final Pattern LIGHT_ALTER = Pattern.compile("\\b(SET\\s+STATISTICS|SET\\s*\\(|RESET\\s*\\(|"
+			+ "CLUSTER\\s+ON|SET\\s+WITHOUT\\s+CLUSTER)", FLAGS);
+
+	private static final Pattern PLAN_ROWS = Pattern.compile("\\brows=(\\d+)");
+	private static final Pattern MODIFY_NODE = Pattern.compile("^\\s*(Insert|Update|Delete|Merge) on\\b");
+
+	private final Map<String, TableSize> tableSizes = new HashMap<>();
+	private Connection connection;
+	private int majorVersion;
+
+	/**
+	 * Estimate the pending changesets of the default contexts and labels.
+	 *
+	 * @param liquibase
+	 * @return report, one entry per changeset
+	 */
+	public String estimate(final Liquibase liquibase) throws LiquibaseException {
+		final Database database = liquibase.getDatabase();
+		if (!(database instanceof PostgresDatabase)) {
+			throw new MigrationException("Pre-flight estimation is only supported on PostgreSQL");
+		}
+		final List<ChangeSet> pending = liquibase.listUnrunChangeSets(new Contexts(), new LabelExpression(), false);
+		connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+		majorVersion = database.getDatabaseMajorVersion();
+		final List<ChangeSetEstimate> estimates = new ArrayList<>();
+		try {
+			for (ChangeSet changeSet : pending) {
+				estimates.add(estimate(changeSet, database));
+			}
+		} finally {
+			database.rollback();
+		}
+		return report(estimates, database.getDatabaseProductVersion());
+	}
+
+	private ChangeSetEstimate estimate(final ChangeSet changeSet, final Database database) {
+		final ChangeSetEstimate estimate = new ChangeSetEstimate(changeSet);
+		for (Change change : changeSet.getChanges()) {
+			if (change instanceof BackfillChange) {
+				estimate.add(estimateBackfill((BackfillChange) change, database));
+			} else if (change.generateStatementsVolatile(database)) {
+				final StatementEstimate statement = new StatementEstimate(
+						ChangeFactory.getInstance().getChangeMetaData(change).getName(), Lock.NONE, Effect.UNKNOWN);
+				statement.note = "statements known at execution time, not estimated";
+				estimate.add(statement);
+			} else {
+				for (Sql sql : SqlGeneratorFactory.getInstance().generateSql(change, database)) {
+					estimate.add(estimateStatement(sql.toSql()));
+				}
+			}
+		}
+		return estimate;
+	}
+
+	/**
+	 * Backfills run in chunks which lock their rows only, at most at the
+	 * configured rate.
+	 */
+	private StatementEstimate estimateBackfill(final BackfillChange change, final Database database) {
+		final String table = database.escapeTableName(change.getCatalogName(), change.getSchemaName(),
+				change.getTableName());
+		final String sql = "UPDATE " + table + " SET " + change.getSet()
+				+ (change.getWhere() == null ? "" : " WHERE " + change.getWhere());
+		final StatementEstimate statement = new StatementEstimate(sql, Lock.ROW_EXCLUSIVE, Effect.DML);
+		statement.tables.add(table);
+		explain(statement);
+		if (change.getRowsPerSecond() != null) {
+			statement.seconds = Math.max(statement.seconds, statement.rows / (double) change.getRowsPerSecond());
+		}
+		statement.note = append(statement.note, "backfill in chunks, rows are locked per chunk");
+		// the lock is released with every chunk, it does not add to the changeset
+		statement.lock = Lock.NONE;
+		return statement;
+	}
+
+	private StatementEstimate estimateStatement(final String sql) {
+		final String statementSql = LEADING_COMMENTS.matcher(sql).replaceFirst("");
+		Matcher matcher;
+		if ((matcher = DML.matcher(statementSql)).find()) {
+			final StatementEstimate statement = new StatementEstimate(sql, Lock.ROW_EXCLUSIVE, Effect.DML);
+			statement.tables.add(matcher.group(4));
+			explain(statement);
+			return statement;
+		}
+		final StatementEstimate statement;
+		if ((matcher = ALTER_TABLE.matcher(statementSql)).find()) {
+			statement = classifyAlterTable(sql, matcher.group(3), matcher.group(4));
+		} else if ((matcher = CREATE_INDEX.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql, matcher.group(2) != null ? Lock.SHARE_UPDATE_EXCLUSIVE : Lock.SHARE,
+					Effect.INDEX);
+			statement.tables.add(matcher.group(4));
+		} else if ((matcher = DROP_OR_TRUNCATE.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql, Lock.ACCESS_EXCLUSIVE, Effect.METADATA);
+			statement.tables.add(matcher.group(5));
+		} else if ((matcher = DROP_INDEX.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql,
+					matcher.group(1) != null ? Lock.SHARE_UPDATE_EXCLUSIVE : Lock.ACCESS_EXCLUSIVE, Effect.METADATA);
+			statement.note = "locks the table of index " + matcher.group(3);
+		} else if ((matcher = REWRITE_TABLE.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql, Lock.ACCESS_EXCLUSIVE, Effect.REWRITE);
+			statement.tables.add(matcher.group(4));
+		} else if ((matcher = REINDEX.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql, matcher.group(2) != null ? Lock.SHARE_UPDATE_EXCLUSIVE : Lock.SHARE,
+					Effect.INDEX);
+			if ("TABLE".equalsIgnoreCase(matcher.group(1))) {
+				statement.tables.add(matcher.group(3));
+			} else {
+				statement.note = "rebuilds index " + matcher.group(3);
+			}
+		} else if ((matcher = REFRESH_VIEW.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql, matcher.group(1) != null ? Lock.EXCLUSIVE : Lock.ACCESS_EXCLUSIVE,
+					Effect.REWRITE);
+			statement.tables.add(matcher.group(2));
+		} else if ((matcher = LOCK_TABLE.matcher(statementSql)).find()) {
+			statement = new StatementEstimate(sql, Lock.ACCESS_EXCLUSIVE, Effect.METADATA);
+			statement.tables.add(matcher.group(3));
+		} else if (CREATE.matcher(statementSql).find()) {
+			statement = new StatementEstimate(sql, Lock.NONE, Effect.NEW);
+		} else {
+			statement = new StatementEstimate(sql, Lock.NONE, Effect.UNKNOWN);
+			statement.note = "not classified";
+		}
+		estimateFromSize(statement);
+		return statement;
+	}
+
+	/**
+	 * The strongest lock and the most expensive effect of all actions of the
+	 * ALTER TABLE statement.
+	 */
+	private StatementEstimate classifyAlterTable(final String sql, final String table, final String actions) {
+		final StatementEstimate statement = new StatementEstimate(sql, Lock.NONE, Effect.METADATA);
+		statement.tables.add(table);
+		boolean classified = false;
+		if (TYPE_CHANGE.matcher(actions).find() || SET_TABLESPACE.matcher(actions).find()) {
+			statement.raise(Lock.ACCESS_EXCLUSIVE, Effect.REWRITE);
+			classified = true;
+		}
+		final boolean notValid = NOT_VALID.matcher(actions).find();
+		if (ADD_INDEX_CONSTRAINT.matcher(actions).find()) {
+			statement.raise(Lock.ACCESS_EXCLUSIVE,
+					USING_INDEX.matcher(actions).find() ? Effect.METADATA : Effect.INDEX);
+			classified = true;
+		}
+		final Matcher foreignKey = ADD_FOREIGN_KEY.matcher(actions);
+		if (foreignKey.find()) {
+			statement.raise(Lock.SHARE_ROW_EXCLUSIVE, notValid ? Effect.METADATA : Effect.SCAN);
+			statement.tables.add(foreignKey.group(2));
+			classified = true;
+		}
+		if (ADD_CHECK.matcher(actions).find()) {
+			statement.raise(Lock.ACCESS_EXCLUSIVE, notValid ? Effect.METADATA : Effect.SCAN);
+			classified = true;
+		}
+		if (SET_NOT_NULL.matcher(actions).find()) {
+			statement.raise(Lock.ACCESS_EXCLUSIVE, Effect.SCAN);
+			classified = true;
+		}
+		if (VALIDATE_CONSTRAINT.matcher(actions).find()) {
+			statement.raise(Lock.SHARE_UPDATE_EXCLUSIVE, Effect.SCAN);
+			classified = true;
+		}
+		final Matcher addColumn = ADD_COLUMN.matcher(actions);
+		if (addColumn.find()) {
+			final String definition = actions.substring(addColumn.end());
+			// PostgreSQL 11 stores constant defaults in the catalog
+			final boolean rewrite = ROW_BY_ROW_DEFAULT.matcher(definition).find()
+					|| majorVersion < 11 && DEFAULT.matcher(definition).find();
+			statement.raise(Lock.ACCESS_EXCLUSIVE, rewrite ? Effect.REWRITE : Effect.METADATA);
+			classified = true;
+		}
+		if (!classified) {
+			statement.raise(LIGHT_ALTER.matcher(actions).find() ? Lock.SHARE_UPDATE_EXCLUSIVE : Lock.ACCESS_EXCLUSIVE,
+					Effect.METADATA);
+		}
+		return statement;
+	}
+
+	private void estimateFromSize(final StatementEstimate statement) {
+		if (statement.tables.isEmpty() || statement.effect.bytesPerSecond == 0) {
+			return;
+		}
+		final TableSize size = getTableSize(statement.tables.get(0));
+		if (size == null) {
+			statement.note = append(statement.note, "new table");
+			return;
+		}
+		long bytes = size.tableBytes;
+		if (statement.effect == Effect.REWRITE) {
+			// the indexes are rebuilt
+			bytes += size.indexBytes;
+		}
+		statement.rows = size.rows;
+		statement.seconds = bytes / statement.effect.bytesPerSecond;
+		statement.note = append(statement.note, formatBytes(bytes) + ", " + size.rows + " rows");
+	}
+
+	/**
+	 * Affected rows from the plan of the statement. If it cannot be planned,
+	 * e.g. because the table is created by an earlier changeset, the whole
+	 * table is assumed.
+	 */
+	private void explain(final StatementEstimate statement) {
+		long rows = -1;
+		try (Statement stmt = connection.createStatement();
+				ResultSet rs = stmt.executeQuery("EXPLAIN " + statement.sql)) {
+			boolean modifyNode = false;
+			while (rs.next() && rows < 0) {
+				final String line = rs.getString(1);
+				final Matcher matcher = PLAN_ROWS.matcher(line);
+				if (MODIFY_NODE.matcher(line).find()) {
+					// the rows of the node below are the affected ones
+					modifyNode = true;
+				} else if (matcher.find()) {
+					rows = Long.parseLong(matcher.group(1));
+				} else if (!modifyNode) {
+					break;
+				}
+			}
+		} catch (SQLException e) {
+			rollback();
+			statement.note = "EXPLAIN failed: " + e.getMessage().trim();
+		}
+		if (rows < 0) {
+			final TableSize size = getTableSize(statement.tables.get(0));
+			rows = size == null ? 0 : size.rows;
+			statement.note = append(statement.note, "whole table assumed");
+		}
+		statement.rows = rows;
+		statement.seconds = rows / DML_ROWS_PER_SECOND;
+		statement.note = append(statement.note, rows + " rows planned");
+	}
+
+	/**
+	 * @return size from pg_class, null if the table does not exist (yet)
+	 */
+	private TableSize getTableSize(final String table) {
+		final String key = table.startsWith("\"") ? table : table.toLowerCase(Locale.US);
+		if (tableSizes.containsKey(key)) {
+			return tableSizes.get(key);
+		}
+		TableSize size = null;
+		try (PreparedStatement stmt = connection.prepareStatement(TABLE_SIZE_QUERY)) {
+			stmt.setString(1, table);
+			try (ResultSet rs = stmt.executeQuery()) {
+				if (rs.next()) {
+					size = new TableSize(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+				}
+			}
+		} catch (SQLException e) {
+			rollback();
+			LOG.warning("Could not read size of " + table + ": " + e.getMessage());
+		}
+		tableSizes.put(key, size);
+		return size;
+	}
+
+	private void rollback() {
+		try {
+			// an error aborts the transaction of the following queries
+			connection.rollback();
+		} catch (SQLException e) {
+			LOG.warning("Could not roll back: " + e.getMessage());
+		}
+	}
+
+	private static String report(final List<ChangeSetEstimate> estimates, final String version) {
+		final StringBuilder out = new StringBuilder();
+		out.append("Pre-flight estimate of ").append(estimates.size()).append(" pending changesets (PostgreSQL ")
+				.append(version).append(")\n");
+		double total = 0;
+		int rewrites = 0;
+		int blocking = 0;
+		for (ChangeSetEstimate estimate : estimates) {
+			total += estimate.seconds;
+			final boolean rewrite = estimate.has(Effect.REWRITE);
+			final boolean blocks = estimate.blocksWrites();
+			rewrites += rewrite ? 1 : 0;
+			blocking += blocks ? 1 : 0;
+			final ChangeSet changeSet = estimate.changeSet;
+			out.append('\n').append(rewrite || blocks ? "! " : "  ").append(changeSet.getFilePath()).append("::")
+					.append(changeSet.getId()).append("::").append(changeSet.getAuthor()).append("  ~")
+					.append(formatSeconds(estimate.seconds));
+			if (estimate.lock != Lock.NONE) {
+				out.append(", ").append(estimate.lock.label).append(" (").append(estimate.lock.impact).append(") on ")
+						.append(String.join(", ", estimate.tables))
+						.append(changeSet.isRunInTransaction() ? " until commit" : "");
+			}
+			if (rewrite) {
+				out.append(", rewrites tables");
+			}
+			out.append('\n');
+			for (StatementEstimate statement : estimate.statements) {
+				out.append("    ").append(abbreviate(statement.sql)).append('\n');
+				out.append("      ").append(statement.effect.label).append(", ").append(statement.lock.label)
+						.append(", ~").append(formatSeconds(statement.seconds));
+				if (statement.note != null) {
+					out.append(" (").append(statement.note).append(')');
+				}
+				out.append('\n');
+			}
+			if (rewrite || blocks) {
+				LOG.warning(changeSet + " takes " + estimate.lock.label + " for ~" + formatSeconds(estimate.seconds));
+			}
+		}
+		out.append("\nTotal ~").append(formatSeconds(total)).append(", ").append(rewrites)
+				.append(" changesets rewrite tables, ").append(blocking)
+				.append(" changesets block writes for more than ").append(formatSeconds(BLOCKING_THRESHOLD_SECONDS))
+				.append('\n');
+		return out.toString();
+	}
+
+	private static String abbreviate(final String sql) {
+		final String line = sql.replaceAll("\\s+", " ").trim();
+		return line.length() > 160 ? line.substring(0, 157) + "..." : line;
+	}
+
+	private static String formatSeconds(final double seconds) {
+		if (seconds < 0.1) {
+			return "0.1 s";
+		}
+		if (seconds < 60) {
+			return String.format(Locale.US, "%.1f s", seconds);
+		}
+		if (seconds < 3600) {
+			return String.format(Locale.US, "%.1f min", seconds / 60);
+		}
+		return String.format(Locale.US, "%.1f h", seconds / 3600);
+	}
+
+	private static String formatBytes(final long bytes) {
+		if (bytes < 1024L * 1024 * 1024) {
+			return String.format(Locale.US, "%.1f MB", bytes / (1024d * 1024));
+		}
+		return String.format(Locale.US, "%.1f GB", bytes / (1024d * 1024 * 1024));
+	}
+
+	private static String append(final String note, final String text) {
+		return note == null ? text : note + ", " + text;
+	}
+
+	/**
+	 * Table locks of PostgreSQL, weakest first.
+	 */
+	private enum Lock {
+
+		NONE("no table lock", "blocks nothing"),
+		ROW_EXCLUSIVE("ROW EXCLUSIVE", "blocks DDL"),
+		SHARE_UPDATE_EXCLUSIVE("SHARE UPDATE EXCLUSIVE", "blocks DDL and vacuum"),
+		SHARE("SHARE", "blocks writes"),
+		SHARE_ROW_EXCLUSIVE("SHARE ROW EXCLUSIVE", "blocks writes"),
+		EXCLUSIVE("EXCLUSIVE", "blocks writes"),
+		ACCESS_EXCLUSIVE("ACCESS EXCLUSIVE", "blocks reads and writes");
+
+		private final String label;
+		private final String impact;
+
+		Lock(final String label, final String impact) {
+			this.label = label;
+			this.impact = impact;
+		}
+	}
+
+	/**
+	 * What a statement does to the table, cheapest first.
+	 */
+	private enum Effect {
+
+		UNKNOWN("unknown", 0),
+		NEW("new object", 0),
+		METADATA("catalog only", 0),
+		DML("row changes", 0),
+		SCAN("full scan", SCAN_BYTES_PER_SECOND),
+		INDEX("index build", INDEX_BYTES_PER_SECOND),
+		REWRITE("table rewrite", REWRITE_BYTES_PER_SECOND);
+
+		private final String label;
+		private final double bytesPerSecond;
+
+		Effect(final String label, final double bytesPerSecond) {
+			this.label = label;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+	}
+
+	private static final class TableSize {
+
+		private final long rows;
+		private final long tableBytes;
+		private final long indexBytes;
+
+		TableSize(final long rows, final long tableBytes, final long indexBytes) {
+			this.rows = rows;
+			this.tableBytes = tableBytes;
+			this.indexBytes = indexBytes;
+		}
+	}
+
+	private static final class StatementEstimate {
+
+		private final String sql;
+		private final List<String> tables = new ArrayList<>();
+		private Lock lock;
+		private Effect effect;
+		private long rows;
+		private double seconds;
+		private String note;
+
+		StatementEstimate(final String sql, final Lock lock, final Effect effect) {
+			this.sql = sql;
+			this.lock = lock;
+			this.effect = effect;
+		}
+
+		void raise(final Lock lock, final Effect effect) {
+			if (lock.compareTo(this.lock) > 0) {
+				this.lock = lock;
+			}
+			if (effect.compareTo(this.effect) > 0) {
+				this.effect = effect;
+			}
+		}
+	}
+
+	private static final class ChangeSetEstimate {
+
+		private final ChangeSet changeSet;
+		private final List<StatementEstimate> statements = new ArrayList<>();
+		private final Set<String> tables = new LinkedHashSet<>();
+		private Lock lock = Lock.NONE;
+		private double seconds;
+
+		ChangeSetEstimate(final ChangeSet changeSet) {
+			this.changeSet = changeSet;
+		}
+
+		void add(final StatementEstimate statement) {
+			statements.add(statement);
+			seconds += statement.seconds;
+			if (statement.lock.compareTo(lock) > 0) {
+				lock = statement.lock;
+			}
+			if (statement.lock != Lock.NONE) {
+				tables.addAll(statement.tables);
+			}
+		}
+
+		boolean has(final Effect effect) {
+			for (StatementEstimate statement : statements) {
+				if (statement.effect == effect) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean blocksWrites() {
+			return lock.compareTo(Lock.SHARE) >= 0 && seconds >= BLOCKING_THRESHOLD_SECONDS;
+		}
+	}
+}
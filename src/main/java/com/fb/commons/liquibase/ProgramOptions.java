@@ -14,6 +14,9 @@ public class ProgramOptions {
 
 	private Integer tag;
 
+	// Schemas for fleet mode
+	private String schemas;
+
 	public LiquibaseOperation getOperation() {
 		return operation;
 	}
@@ -54,4 +57,12 @@ public class ProgramOptions {
 		this.tag = tag;
 	}
 
+	public String getSchemas() {
+		return schemas;
+	}
+
+	public void setSchemas(String schemas) {
+		this.schemas = schemas;
+	}
+
 }
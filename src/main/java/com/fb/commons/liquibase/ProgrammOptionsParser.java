@@ -16,6 +16,7 @@ public class ProgrammOptionsParser {
 	private static final String STAGE_OPTION = "stage";
 	private static final String TAG_OPTION = "tag";
 	private static final String ENCRYPT = "encrypt";
+	private static final String SCHEMAS_OPTION = "schemas";
 
 	/**
 	 * Parse and normalize the given command line arguments
@@ -41,10 +42,13 @@ public class ProgrammOptionsParser {
 	private Options getOptions() {
 		final Options options = new Options();
 		options.addOption(PROJECT_OPTION, true, "Project name");
-		options.addOption(OPERATION_OPTION, true, "Type of operation: dropall, update, diff, validate, rollback");
+		options.addOption(OPERATION_OPTION, true,
+				"Type of operation: dropall, update, diff, validate, rollback, sql_output, dbdoc, status, preflight");
 		options.addOption(STAGE_OPTION, true, "Stage name, one of the following TEST, INT, PROD");
 		options.addOption(TAG_OPTION, true, "Only necessary for rollback");
 		options.addOption(ENCRYPT, true, "Encrypts the given password");
+		options.addOption(SCHEMAS_OPTION, true,
+				"Fleet mode: comma separated schemas or LIKE pattern (e.g. tenant_%), only for update and validate");
 		return options;
 	}
 
@@ -101,6 +105,9 @@ public class ProgrammOptionsParser {
 		if (commandLine.hasOption(TAG_OPTION)) {
 			result.setTag(Integer.valueOf(commandLine.getOptionValue(TAG_OPTION)));
 		}
+		if (commandLine.hasOption(SCHEMAS_OPTION)) {
+			result.setSchemas(commandLine.getOptionValue(SCHEMAS_OPTION));
+		}
 
 		return result;
 	}
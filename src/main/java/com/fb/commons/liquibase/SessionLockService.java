@@ -0,0 +1,394 @@
+package com.fb.commons.liquibase;
+
+import java.nio.ByteBuffer;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import liquibase.configuration.GlobalConfiguration;
+import liquibase.configuration.LiquibaseConfiguration;
+import liquibase.database.Database;
+import liquibase.database.core.OracleDatabase;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LockException;
+import liquibase.executor.Executor;
+import liquibase.executor.ExecutorService;
+import liquibase.lockservice.DatabaseChangeLogLock;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+
+/**
+ * Changelog lock held by the database session instead of a row in the
+ * changelog lock table: pg_advisory_lock on PostgreSQL, DBMS_LOCK on Oracle.
+ * Waiting deployers are blocked in the database and get the lock as soon as
+ * it is released, there is no polling. The lock is released automatically when
+ * the session ends, so a crashed deploy cannot leave a stuck lock.
+ * <p>
+ * The lock is named after the Liquibase schema and the changelog lock table,
+ * so different schemas and projects do not block each other. The lock table
+ * itself is not used. Oracle needs the EXECUTE privilege on DBMS_LOCK.
+ */
+public class SessionLockService implements LockService {
+
+	private static final Logger LOG = Logger.getLogger(SessionLockService.class.getName());
+
+	// factory the service is registered with, Liquibase may replace the factory on reset
+	private static LockServiceFactory registeredFactory;
+
+	private static final String PG_LOCK = "SELECT pg_advisory_lock(?)";
+	private static final String PG_TRY_LOCK = "SELECT pg_try_advisory_lock(?)";
+	private static final String PG_UNLOCK = "SELECT pg_advisory_unlock(?)";
+	private static final String PG_UNLOCK_ALL = "SELECT pg_advisory_unlock_all()";
+	private static final String PG_LIST_LOCKS = "SELECT a.pid, a.backend_start, a.usename, a.client_addr "
+			+ "FROM pg_locks l JOIN pg_stat_activity a ON a.pid = l.pid WHERE l.locktype = 'advisory' "
+			+ "AND l.granted AND l.classid = ? AND l.objid = ? AND l.objsubid = 1";
+
+	private static final String ORA_REQUEST = "DECLARE h VARCHAR2(128); BEGIN DBMS_LOCK.ALLOCATE_UNIQUE(?, h); "
+			+ "? := DBMS_LOCK.REQUEST(h, DBMS_LOCK.X_MODE, ?, FALSE); ? := h; END;";
+	private static final String ORA_RELEASE = "BEGIN ? := DBMS_LOCK.RELEASE(?); END;";
+	private static final String ORA_LIST_LOCKS = "SELECT s.SID, s.LOGON_TIME, s.USERNAME, s.MACHINE "
+			+ "FROM V$LOCK l JOIN DBMS_LOCK_ALLOCATED a ON a.LOCKID = l.ID1 JOIN V$SESSION s ON s.SID = l.SID "
+			+ "WHERE l.TYPE = 'UL' AND l.LMODE > 0 AND a.NAME = ?";
+	// results of DBMS_LOCK.REQUEST
+	private static final int ORA_SUCCESS = 0;
+	private static final int ORA_TIMEOUT = 1;
+	private static final int ORA_ALREADY_OWNED = 4;
+	private static final int ORA_MAX_WAIT_SECONDS = 32767;
+
+	private Database database;
+	private boolean hasChangeLogLock;
+	private Long changeLogLockWaitTime;
+	private String oracleLockHandle;
+
+	/**
+	 * Use session locks instead of the changelog lock table for all PostgreSQL
+	 * and Oracle databases. The registration is global and cannot be undone,
+	 * it is repeated if the factory was reset.
+	 */
+	public static synchronized void register() {
+		final LockServiceFactory factory = LockServiceFactory.getInstance();
+		if (registeredFactory != factory) {
+			factory.register(new SessionLockService());
+			registeredFactory = factory;
+		}
+	}
+
+	@Override
+	public int getPriority() {
+		return PRIORITY_DATABASE;
+	}
+
+	@Override
+	public boolean supports(final Database database) {
+		return (database instanceof PostgresDatabase || database instanceof OracleDatabase)
+				&& database.getConnection() instanceof JdbcConnection;
+	}
+
+	@Override
+	public void setDatabase(final Database database) {
+		this.database = database;
+	}
+
+	@Override
+	public void setChangeLogLockWaitTime(final long changeLogLockWaitTime) {
+		this.changeLogLockWaitTime = changeLogLockWaitTime;
+	}
+
+	@Override
+	public void setChangeLogLockRecheckTime(final long changeLogLocRecheckTime) {
+		// waiting happens in the database, there is nothing to recheck
+	}
+
+	@Override
+	public boolean hasChangeLogLock() {
+		return hasChangeLogLock;
+	}
+
+	@Override
+	public void waitForLock() throws LockException {
+		if (hasChangeLogLock) {
+			return;
+		}
+		final long waitMillis = TimeUnit.MINUTES.toMillis(getChangeLogLockWaitTime());
+		final long start = System.currentTimeMillis();
+		LOG.fine("Wait for changelog lock " + getLockName());
+		final boolean locked = database instanceof PostgresDatabase ? lockPostgres(waitMillis)
+				: lockOracle(TimeUnit.MILLISECONDS.toSeconds(waitMillis));
+		if (!locked) {
+			throw new LockException("Could not acquire change log lock " + getLockName() + " within "
+					+ getChangeLogLockWaitTime() + " minutes. Currently locked by " + describeLocks());
+		}
+		hasChangeLogLock = true;
+		LOG.info("Successfully acquired change log lock " + getLockName() + " after "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	@Override
+	public boolean acquireLock() throws LockException {
+		if (hasChangeLogLock) {
+			return true;
+		}
+		hasChangeLogLock = database instanceof PostgresDatabase ? tryLockPostgres() : lockOracle(0);
+		return hasChangeLogLock;
+	}
+
+	@Override
+	public void releaseLock() throws LockException {
+		if (!hasChangeLogLock) {
+			return;
+		}
+		try {
+			// changesets of an open commit group must be visible before the next deployer starts
+			final Executor executor = ExecutorService.getInstance().getExecutor(database);
+			if (executor instanceof BatchingExecutor) {
+				((BatchingExecutor) executor).commitGroup();
+			}
+		} catch (DatabaseException e) {
+			LOG.severe("Could not commit last group of changesets: " + e.getMessage());
+			// an aborted transaction would reject the unlock
+			rollback();
+			throw new LockException(e);
+		} finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Release the session lock. A pooled session is reused by the next deploy,
+	 * so all advisory locks of the session are released on PostgreSQL. If the
+	 * lock cannot be released the session is aborted, which releases it in the
+	 * database.
+	 */
+	private void unlock() throws LockException {
+		try {
+			if (database instanceof PostgresDatabase) {
+				try (PreparedStatement stmt = getConnection().prepareStatement(PG_UNLOCK)) {
+					stmt.setLong(1, getPostgresKey());
+					stmt.executeQuery().close();
+				}
+				try (Statement stmt = getConnection().createStatement()) {
+					stmt.executeQuery(PG_UNLOCK_ALL).close();
+				}
+			} else {
+				try (CallableStatement stmt = getConnection().prepareCall(ORA_RELEASE)) {
+					stmt.registerOutParameter(1, Types.INTEGER);
+					stmt.setString(2, oracleLockHandle);
+					stmt.execute();
+				}
+			}
+			hasChangeLogLock = false;
+			LOG.info("Successfully released change log lock " + getLockName());
+		} catch (SQLException e) {
+			hasChangeLogLock = false;
+			abortSession();
+			throw new LockException("Could not release change log lock " + getLockName() + ", session aborted", e);
+		}
+	}
+
+	private void rollback() {
+		try {
+			getConnection().rollback();
+		} catch (SQLException e) {
+			LOG.warning("Could not roll back: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * End the session in the database, a pool discards the broken connection.
+	 */
+	private void abortSession() {
+		try {
+			getConnection().abort(Runnable::run);
+		} catch (SQLException e) {
+			LOG.warning("Could not abort session: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public DatabaseChangeLogLock[] listLocks() throws LockException {
+		final List<DatabaseChangeLogLock> locks = new ArrayList<>();
+		try {
+			if (database instanceof PostgresDatabase) {
+				try (PreparedStatement stmt = getConnection().prepareStatement(PG_LIST_LOCKS)) {
+					final long key = getPostgresKey();
+					stmt.setLong(1, key >>> 32);
+					stmt.setLong(2, key & 0xFFFFFFFFL);
+					readLocks(stmt, locks);
+				}
+			} else {
+				try (PreparedStatement stmt = getConnection().prepareStatement(ORA_LIST_LOCKS)) {
+					stmt.setString(1, getLockName());
+					readLocks(stmt, locks);
+				}
+			}
+		} catch (SQLException e) {
+			throw new LockException(e);
+		}
+		return locks.toArray(new DatabaseChangeLogLock[locks.size()]);
+	}
+
+	/**
+	 * A session lock is only released by its session, or when the session ends.
+	 * Only a lock held by this service can be released.
+	 */
+	@Override
+	public void forceReleaseLock() throws LockException {
+		if (hasChangeLogLock) {
+			releaseLock();
+			return;
+		}
+		throw new LockException("Change log lock " + getLockName() + " is held by " + describeLocks()
+				+ ". It is released when this session ends.");
+	}
+
+	@Override
+	public void reset() {
+		hasChangeLogLock = false;
+		oracleLockHandle = null;
+	}
+
+	@Override
+	public void init() {
+		// no lock table needed
+	}
+
+	@Override
+	public void destroy() {
+		// no lock table to drop
+	}
+
+	private boolean lockPostgres(final long waitMillis) throws LockException {
+		final Connection connection = getConnection();
+		try (Statement stmt = connection.createStatement()) {
+			// pg_advisory_lock waits until lock_timeout
+			final String previousTimeout;
+			try (ResultSet rs = stmt.executeQuery("SHOW lock_timeout")) {
+				rs.next();
+				previousTimeout = rs.getString(1);
+			}
+			stmt.execute("SET lock_timeout = " + waitMillis);
+			try (PreparedStatement lock = connection.prepareStatement(PG_LOCK)) {
+				lock.setLong(1, getPostgresKey());
+				lock.executeQuery().close();
+				return true;
+			} catch (SQLException e) {
+				if (!"55P03".equals(e.getSQLState())) {
+					throw e;
+				}
+				return false;
+			} finally {
+				endTransaction(connection);
+				stmt.execute("SET lock_timeout = '" + previousTimeout + "'");
+				endTransaction(connection);
+			}
+		} catch (SQLException e) {
+			throw new LockException(e);
+		}
+	}
+
+	private boolean tryLockPostgres() throws LockException {
+		try (PreparedStatement stmt = getConnection().prepareStatement(PG_TRY_LOCK)) {
+			stmt.setLong(1, getPostgresKey());
+			try (ResultSet rs = stmt.executeQuery()) {
+				rs.next();
+				return rs.getBoolean(1);
+			}
+		} catch (SQLException e) {
+			throw new LockException(e);
+		}
+	}
+
+	/**
+	 * Request the lock in exclusive mode, it is kept across commits. Allocating
+	 * the lock handle commits the current transaction.
+	 */
+	private boolean lockOracle(final long waitSeconds) throws LockException {
+		try (CallableStatement stmt = getConnection().prepareCall(ORA_REQUEST)) {
+			stmt.setString(1, getLockName());
+			stmt.registerOutParameter(2, Types.INTEGER);
+			stmt.setLong(3, Math.min(waitSeconds, ORA_MAX_WAIT_SECONDS));
+			stmt.registerOutParameter(4, Types.VARCHAR);
+			stmt.execute();
+			final int result = stmt.getInt(2);
+			if (result == ORA_SUCCESS || result == ORA_ALREADY_OWNED) {
+				oracleLockHandle = stmt.getString(4);
+				return true;
+			}
+			if (result == ORA_TIMEOUT) {
+				return false;
+			}
+			throw new LockException("DBMS_LOCK.REQUEST for " + getLockName() + " failed with result " + result);
+		} catch (SQLException e) {
+			throw new LockException(e);
+		}
+	}
+
+	private String describeLocks() {
+		try {
+			final StringBuilder result = new StringBuilder();
+			for (DatabaseChangeLogLock lock : listLocks()) {
+				result.append(result.length() == 0 ? "" : ", ").append(lock.getLockedBy()).append(" since ")
+						.append(lock.getLockGranted());
+			}
+			return result.length() == 0 ? "nobody" : result.toString();
+		} catch (LockException e) {
+			return "unknown (" + e.getMessage() + ")";
+		}
+	}
+
+	private static void readLocks(final PreparedStatement stmt, final List<DatabaseChangeLogLock> locks)
+			throws SQLException {
+		try (ResultSet rs = stmt.executeQuery()) {
+			while (rs.next()) {
+				locks.add(new DatabaseChangeLogLock(rs.getInt(1), rs.getTimestamp(2),
+						rs.getString(3) + "@" + rs.getString(4) + " (session " + rs.getInt(1) + ")"));
+			}
+		}
+	}
+
+	private static void endTransaction(final Connection connection) throws SQLException {
+		if (!connection.getAutoCommit()) {
+			connection.rollback();
+		}
+	}
+
+	private long getChangeLogLockWaitTime() {
+		if (changeLogLockWaitTime != null) {
+			return changeLogLockWaitTime;
+		}
+		return LiquibaseConfiguration.getInstance().getConfiguration(GlobalConfiguration.class)
+				.getDatabaseChangeLogLockWaitTime();
+	}
+
+	private String getLockName() {
+		String schema = database.getLiquibaseSchemaName();
+		if (schema == null) {
+			schema = database.getDefaultSchemaName();
+		}
+		if (schema == null) {
+			schema = database.getConnection().getConnectionUserName();
+		}
+		return schema + "." + database.getDatabaseChangeLogLockTableName();
+	}
+
+	/**
+	 * 64 bit advisory lock key derived from the lock name.
+	 */
+	private long getPostgresKey() {
+		return ByteBuffer.wrap(Hashes.sha256(getLockName())).getLong();
+	}
+
+	private Connection getConnection() {
+		return ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+	}
+}
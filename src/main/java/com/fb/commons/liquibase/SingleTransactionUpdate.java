@@ -0,0 +1,185 @@
+package com.fb.commons.liquibase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.change.Change;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.ObjectQuotingStrategy;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.sql.Sql;
+import liquibase.sqlgenerator.SqlGeneratorFactory;
+
+/**
+ * Runs all pending changesets of an UPDATE and their history rows in one
+ * transaction on PostgreSQL. The commits Liquibase issues after every
+ * changeset are deferred to the end; if a changeset fails, the transaction is
+ * rolled back and the schema is exactly as before the update.
+ * <p>
+ * Changesets which cannot run in a shared transaction are rejected before
+ * anything is executed: runInTransaction="false", failOnError="false" (an
+ * error aborts the transaction), backfill changes (commit their chunks) and
+ * statements PostgreSQL does not allow in a transaction block, e.g. CREATE
+ * INDEX CONCURRENTLY or VACUUM. Changes whose statements are only known at
+ * execution time are not checked; such a statement fails and rolls back the
+ * whole update.
+ * <p>
+ * The changelog lock is taken and released in transactions of its own. All
+ * locks taken by the changesets are held until the end of the update.
+ */
+public class SingleTransactionUpdate {
+
+	private static final Logger LOG = Logger.getLogger(SingleTransactionUpdate.class.getName());
+
+	private static final Pattern NON_TRANSACTIONAL = Pattern.compile("^\\s*(CREATE\\s+(UNIQUE\\s+)?INDEX\\s+"
+			+ "CONCURRENTLY|DROP\\s+INDEX\\s+CONCURRENTLY|REINDEX\\b.*\\bCONCURRENTLY|VACUUM|"
+			+ "(CREATE|DROP)\\s+(DATABASE|TABLESPACE)|ALTER\\s+SYSTEM|ALTER\\s+TYPE\\b.*\\bADD\\s+VALUE|"
+			+ "COMMIT|ROLLBACK|BEGIN|START\\s+TRANSACTION|END|ABORT)\\b",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	/**
+	 * Same as {@link Liquibase#update(Contexts)}, with all changesets in one
+	 * transaction.
+	 *
+	 * @param liquibase
+	 */
+	public void update(final Liquibase liquibase) throws LiquibaseException {
+		final Database database = liquibase.getDatabase();
+		if (!(database instanceof PostgresDatabase)) {
+			throw new MigrationException("Single transaction update is only supported on PostgreSQL");
+		}
+		final Contexts contexts = new Contexts();
+		final LabelExpression labelExpression = new LabelExpression();
+		final LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+		lockService.waitForLock();
+		try {
+			final DatabaseChangeLog changeLog = liquibase.getDatabaseChangeLog();
+			liquibase.checkLiquibaseTables(true, changeLog, contexts, labelExpression);
+			ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).generateDeploymentId();
+			changeLog.validate(database, contexts, labelExpression);
+			final List<ChangeSet> pending = liquibase.listUnrunChangeSets(contexts, labelExpression, false);
+			if (pending.isEmpty()) {
+				LOG.info("No pending changesets");
+				return;
+			}
+			checkTransactional(pending, database);
+			run(changeLog, database, pending);
+		} finally {
+			lockService.releaseLock();
+		}
+	}
+
+	/**
+	 * Reject the update if one of the changesets cannot run in the shared
+	 * transaction.
+	 */
+	private static void checkTransactional(final List<ChangeSet> pending, final Database database) {
+		final List<String> problems = new ArrayList<>();
+		for (ChangeSet changeSet : pending) {
+			if (!changeSet.isRunInTransaction()) {
+				problems.add(changeSet + ": runInTransaction is false");
+				continue;
+			}
+			if (Boolean.FALSE.equals(changeSet.getFailOnError())) {
+				problems.add(changeSet + ": failOnError is false");
+				continue;
+			}
+			for (Change change : changeSet.getChanges()) {
+				final String problem = checkTransactional(change, database);
+				if (problem != null) {
+					problems.add(changeSet + ": " + problem);
+					break;
+				}
+			}
+		}
+		if (!problems.isEmpty()) {
+			for (String problem : problems) {
+				LOG.severe(problem);
+			}
+			throw new MigrationException(
+					problems.size() + " changesets cannot run in a single transaction, first: " + problems.get(0));
+		}
+	}
+
+	private static String checkTransactional(final Change change, final Database database) {
+		if (change instanceof BackfillChange) {
+			return "backfill commits its chunks";
+		}
+		if (change.generateStatementsVolatile(database)) {
+			return null;
+		}
+		for (Sql sql : SqlGeneratorFactory.getInstance().generateSql(change, database)) {
+			if (NON_TRANSACTIONAL.matcher(sql.toSql()).find()) {
+				return "not allowed in a transaction: " + sql.toSql();
+			}
+		}
+		return null;
+	}
+
+	private static void run(final DatabaseChangeLog changeLog, final Database database,
+			final List<ChangeSet> pending) throws LiquibaseException {
+		final long start = System.currentTimeMillis();
+		final DatabaseConnection originalConnection = database.getConnection();
+		final DeferredCommitConnection connection = new DeferredCommitConnection(
+				((JdbcConnection) originalConnection).getUnderlyingConnection());
+		database.setConnection(connection);
+		boolean committed = false;
+		try {
+			for (ChangeSet changeSet : pending) {
+				final ChangeSet.RunStatus runStatus = database.getRunStatus(changeSet);
+				final ObjectQuotingStrategy quotingStrategy = database.getObjectQuotingStrategy();
+				ChangeSet.ExecType execType;
+				try {
+					execType = changeSet.execute(changeLog, null, database);
+				} finally {
+					database.setObjectQuotingStrategy(quotingStrategy);
+				}
+				if (connection.isRolledBack()) {
+					throw new MigrationException("Transaction was rolled back by " + changeSet);
+				}
+				if (runStatus != ChangeSet.RunStatus.NOT_RAN) {
+					execType = ChangeSet.ExecType.RERAN;
+				}
+				database.markChangeSetExecStatus(changeSet, execType);
+			}
+			connection.commitNow();
+			committed = true;
+			LOG.info("Committed " + pending.size() + " changesets in one transaction in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			if (!committed) {
+				abort(database, connection, pending.size());
+			}
+			database.setConnection(originalConnection);
+		}
+	}
+
+	/**
+	 * Roll back the whole update. The cached history of Liquibase contains the
+	 * rolled back changesets and is reset.
+	 */
+	private static void abort(final Database database, final DeferredCommitConnection connection,
+			final int pending) {
+		try {
+			connection.rollback();
+			LOG.severe("Update aborted, " + pending + " changesets rolled back");
+		} catch (DatabaseException e) {
+			LOG.severe("Could not roll back update: " + e.getMessage());
+		}
+		ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database).reset();
+	}
+}
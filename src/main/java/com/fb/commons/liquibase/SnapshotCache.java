@@ -0,0 +1,237 @@
+package com.fb.commons.liquibase;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import liquibase.database.Database;
+import liquibase.database.core.OracleDatabase;
+import liquibase.database.core.PostgresDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.diff.compare.CompareControl;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.core.json.JsonSnapshotParser;
+import liquibase.resource.ResourceAccessor;
+import liquibase.serializer.SnapshotSerializerFactory;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+
+/**
+ * Keeps the snapshot of a DIFF reference database in a gzipped JSON file, so
+ * repeated diffs against the same reference only snapshot the target.
+ * <p>
+ * Next to the snapshot a fingerprint of the reference database is stored. It
+ * is made of the changelog table (row count, highest execution order and date)
+ * and the catalog (object count and last DDL time on Oracle, a hash of
+ * relations, columns, defaults, constraints, index and view definitions on
+ * PostgreSQL). The snapshot is taken again if the fingerprint differs.
+ */
+public class SnapshotCache {
+
+	private static final Logger LOG = Logger.getLogger(SnapshotCache.class.getName());
+
+	private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+
+	// PostgreSQL has no last DDL time, everything the snapshot reads is hashed
+	private static final String PG_CATALOG_QUERY = "WITH s AS (SELECT oid FROM pg_namespace "
+			+ "WHERE nspname = COALESCE(?::text, current_schema())) "
+			+ "SELECT COUNT(*), md5(string_agg(f.x, ';' ORDER BY f.x)) FROM ("
+			+ "SELECT c.relname || ':' || c.relkind || ':' || COALESCE(pg_get_indexdef(i.indexrelid), '') || ':' "
+			+ "|| CASE WHEN c.relkind IN ('v', 'm') THEN pg_get_viewdef(c.oid) ELSE '' END || ':' "
+			+ "|| COALESCE(string_agg(a.attname || ' ' || a.atttypid || ' ' || a.atttypmod || ' ' || a.attnotnull "
+			+ "|| ' ' || a.atthasdef || ' ' || COALESCE(pg_get_expr(d.adbin, d.adrelid), ''), ',' "
+			+ "ORDER BY a.attnum), '') AS x "
+			+ "FROM pg_class c JOIN s ON s.oid = c.relnamespace "
+			+ "LEFT JOIN pg_index i ON i.indexrelid = c.oid "
+			+ "LEFT JOIN pg_attribute a ON a.attrelid = c.oid AND a.attnum > 0 AND NOT a.attisdropped "
+			+ "LEFT JOIN pg_attrdef d ON d.adrelid = a.attrelid AND d.adnum = a.attnum "
+			+ "GROUP BY c.oid, c.relname, c.relkind, i.indexrelid "
+			+ "UNION ALL SELECT co.conrelid::regclass::text || ':' || co.conname || ':' "
+			+ "|| pg_get_constraintdef(co.oid) FROM pg_constraint co JOIN s ON s.oid = co.connamespace) f";
+
+	private final Path snapshotFile;
+	private final Path fingerprintFile;
+
+	public SnapshotCache(final Path snapshotFile) {
+		this.snapshotFile = snapshotFile;
+		this.fingerprintFile = Paths.get(snapshotFile + FINGERPRINT_SUFFIX);
+	}
+
+	/**
+	 * Get the snapshot of the given database, restored from the cache file if the
+	 * database did not change since it was written.
+	 *
+	 * @param database - reference database
+	 * @return snapshot of the default schema with all standard object types
+	 * @throws LiquibaseException if the snapshot cannot be taken
+	 */
+	public DatabaseSnapshot getSnapshot(final Database database) throws LiquibaseException {
+		final String fingerprint = fingerprint(database);
+		final DatabaseSnapshot cached = restore(database, fingerprint);
+		if (cached != null) {
+			LOG.info("Use cached reference snapshot " + snapshotFile);
+			return cached;
+		}
+
+		LOG.info("Take reference snapshot for " + snapshotFile);
+		final DatabaseSnapshot snapshot = SnapshotGeneratorFactory.getInstance().createSnapshot(
+				CompareControl.STANDARD.getSchemas(CompareControl.DatabaseRole.REFERENCE), database,
+				new SnapshotControl(database));
+		store(snapshot, fingerprint);
+		return snapshot;
+	}
+
+	private DatabaseSnapshot restore(final Database database, final String fingerprint) {
+		if (!Files.isRegularFile(snapshotFile) || !Files.isRegularFile(fingerprintFile)) {
+			return null;
+		}
+		try {
+			final String cachedFingerprint = new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8);
+			if (!cachedFingerprint.equals(fingerprint)) {
+				LOG.info("Reference snapshot " + snapshotFile + " is outdated");
+				return null;
+			}
+			final DatabaseSnapshot snapshot = new JsonSnapshotParser().parse(snapshotFile.toString(),
+					new GzipFileAccessor());
+			// the restored snapshot belongs to an offline database without default schema
+			snapshot.getDatabase().setDefaultCatalogName(database.getDefaultCatalogName());
+			snapshot.getDatabase().setDefaultSchemaName(database.getDefaultSchemaName());
+			return snapshot;
+		} catch (IOException | LiquibaseException e) {
+			LOG.warning("Ignore unreadable reference snapshot " + snapshotFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void store(final DatabaseSnapshot snapshot, final String fingerprint) {
+		try {
+			final Path directory = snapshotFile.toAbsolutePath().getParent();
+			Files.createDirectories(directory);
+			// write to a temporary file first, concurrent runs must never see half a file
+			final Path tempFile = Files.createTempFile(directory, "snapshot", ".tmp");
+			try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+				SnapshotSerializerFactory.getInstance().getSerializer("json").write(snapshot, out);
+			}
+			Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.write(fingerprintFile, fingerprint.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			LOG.warning("Could not write reference snapshot " + snapshotFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Fingerprint of the schema, read with two queries.
+	 */
+	private String fingerprint(final Database database) {
+		final Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+		final String schema = catalogSchemaName(database);
+		final String changeLogTable = database.escapeTableName(database.getLiquibaseCatalogName(),
+				database.getLiquibaseSchemaName(), database.getDatabaseChangeLogTableName());
+
+		// without schema name the queries use the current schema of the session
+		final StringBuilder result = new StringBuilder(String.valueOf(schema)).append('|');
+		result.append(query(connection, "SELECT COUNT(*), MAX(ORDEREXECUTED), MAX(DATEEXECUTED) FROM "
+				+ changeLogTable));
+		result.append('|');
+		if (database instanceof OracleDatabase) {
+			result.append(query(connection, "SELECT COUNT(*), MAX(LAST_DDL_TIME) FROM ALL_OBJECTS "
+					+ "WHERE OWNER = NVL(?, SYS_CONTEXT('USERENV', 'CURRENT_SCHEMA'))", schema));
+		} else if (database instanceof PostgresDatabase) {
+			result.append(query(connection, PG_CATALOG_QUERY, schema));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Default schema name as stored in the catalog. Oracle stores unquoted names
+	 * in upper case, quoted names keep their case.
+	 *
+	 * @return schema name, null if the database has no default schema
+	 */
+	private static String catalogSchemaName(final Database database) {
+		final String schema = database.getDefaultSchemaName();
+		if (schema == null || !(database instanceof OracleDatabase)) {
+			return schema;
+		}
+		if (schema.length() > 1 && schema.startsWith("\"") && schema.endsWith("\"")) {
+			return schema.substring(1, schema.length() - 1);
+		}
+		return schema.toUpperCase(Locale.ROOT);
+	}
+
+	private String query(final Connection connection, final String sql, final String... parameters) {
+		try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+			for (int i = 0; i < parameters.length; i++) {
+				stmt.setString(i + 1, parameters[i]);
+			}
+			try (ResultSet rs = stmt.executeQuery()) {
+				final StringBuilder result = new StringBuilder();
+				if (rs.next()) {
+					for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+						result.append(rs.getString(i)).append(',');
+					}
+				}
+				return result.toString();
+			}
+		} catch (SQLException e) {
+			// e.g. a reference schema without changelog table
+			LOG.fine("Fingerprint query failed: " + e.getMessage());
+			rollback(connection);
+			return "-";
+		}
+	}
+
+	private void rollback(final Connection connection) {
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+			}
+		} catch (SQLException e) {
+			LOG.warning("Rollback after fingerprint query failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Resource accessor which reads the gzipped snapshot file for the Liquibase
+	 * snapshot parser.
+	 */
+	private static class GzipFileAccessor implements ResourceAccessor {
+
+		@Override
+		public Set<InputStream> getResourcesAsStream(final String path) throws IOException {
+			final Path file = Paths.get(path);
+			if (!Files.isRegularFile(file)) {
+				return null;
+			}
+			return Collections.<InputStream>singleton(new GZIPInputStream(Files.newInputStream(file)));
+		}
+
+		@Override
+		public Set<String> list(final String relativeTo, final String path, final boolean includeFiles,
+				final boolean includeDirectories, final boolean recursive) {
+			return Collections.emptySet();
+		}
+
+		@Override
+		public ClassLoader toClassLoader() {
+			return getClass().getClassLoader();
+		}
+	}
+}
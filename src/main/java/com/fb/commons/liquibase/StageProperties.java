@@ -5,6 +5,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class StageProperties {
@@ -23,6 +24,34 @@ public class StageProperties {
 	private static final String LOCATIONS_PROPERTY = "locations";
 	private static final String VERSION_TABLE_PROPERTY = "table";
 	private static final String ROOT_CHANGE_LOG_NAME = "changelogname";
+	private static final String DIFF_PARALLEL_PROPERTY = "diff.parallel";
+	private static final String DIFF_SNAPSHOT_FILE_PROPERTY = "diff.snapshot.file";
+	private static final String CHANGE_LOG_CACHE_DIR_PROPERTY = "changelog.cache.dir";
+	private static final String VALIDATE_PARALLEL_PROPERTY = "validate.parallel";
+	private static final String SQL_OUTPUT_FILE_PROPERTY = "sql.output.file";
+	private static final String SQL_OUTPUT_GZIP_PROPERTY = "sql.output.gzip";
+	private static final String DBDOC_DIR_PROPERTY = "dbdoc.dir";
+	private static final String DBDOC_INCREMENTAL_PROPERTY = "dbdoc.incremental";
+	private static final String DBDOC_THREADS_PROPERTY = "dbdoc.threads";
+	private static final String POOL_ENABLED_PROPERTY = "pool.enabled";
+	private static final String POOL_SIZE_PROPERTY = "pool.size";
+	private static final String POOL_VALIDATION_INTERVAL_PROPERTY = "pool.validation.interval";
+	private static final String BATCH_SIZE_PROPERTY = "batch.size";
+	private static final String COMMIT_GROUP_SIZE_PROPERTY = "commit.group.size";
+	private static final String ONLINE_DDL_PROPERTY = "online.ddl";
+	private static final String ONLINE_LOCK_TIMEOUT_PROPERTY = "online.lock.timeout";
+	private static final String ONLINE_RETRIES_PROPERTY = "online.retries";
+	private static final String DROPALL_FAST_PROPERTY = "dropall.fast";
+	private static final String LOAD_DATA_COPY_PROPERTY = "loaddata.copy";
+	private static final String UPDATE_THREADS_PROPERTY = "update.threads";
+	private static final String UPDATE_FINGERPRINT_PROPERTY = "update.fingerprint";
+	private static final String UPDATE_ATOMIC_PROPERTY = "update.atomic";
+	private static final String SESSION_LOCK_PROPERTY = "lock.session";
+	private static final String SNAPSHOT_CATALOG_PROPERTY = "snapshot.catalog";
+	private static final String METRICS_DIR_PROPERTY = "metrics.dir";
+	private static final String FLEET_SCHEMAS_PROPERTY = "fleet.schemas";
+	private static final String FLEET_THREADS_PROPERTY = "fleet.threads";
+	private static final String STATUS_THREADS_PROPERTY = "status.threads";
 
 	private final Properties properties;
 	private final String projectName;
@@ -69,6 +98,14 @@ public class StageProperties {
 		return getOptionalProperty(DIFF_NAME_PROPERTY);
 	}
 
+	public boolean isParallelDiff() {
+		return getBooleanProperty(DIFF_PARALLEL_PROPERTY);
+	}
+
+	public String getDiffSnapshotFile() {
+		return getOptionalProperty(DIFF_SNAPSHOT_FILE_PROPERTY);
+	}
+
 	public String getLocations() {
 		return getOptionalProperty(LOCATIONS_PROPERTY);
 	}
@@ -81,6 +118,181 @@ public class StageProperties {
 		return getOptionalProperty(ROOT_CHANGE_LOG_NAME);
 	}
 
+	public String getChangeLogCacheDir() {
+		return getOptionalProperty(CHANGE_LOG_CACHE_DIR_PROPERTY);
+	}
+
+	public boolean isParallelValidation() {
+		return getBooleanProperty(VALIDATE_PARALLEL_PROPERTY);
+	}
+
+	public String getSqlOutputFile() {
+		return getOptionalProperty(SQL_OUTPUT_FILE_PROPERTY);
+	}
+
+	public boolean isSqlOutputCompressed() {
+		return getBooleanProperty(SQL_OUTPUT_GZIP_PROPERTY);
+	}
+
+	public String getDbDocDir() {
+		return getOptionalProperty(DBDOC_DIR_PROPERTY);
+	}
+
+	public boolean isDbDocIncremental() {
+		return getBooleanProperty(DBDOC_INCREMENTAL_PROPERTY);
+	}
+
+	/**
+	 * Number of workers rendering documentation pages, defaults to the number of
+	 * available processors.
+	 * 
+	 * @return worker count
+	 */
+	public int getDbDocThreads() {
+		return getIntProperty(DBDOC_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+	}
+
+	public boolean isConnectionPool() {
+		return getBooleanProperty(POOL_ENABLED_PROPERTY);
+	}
+
+	/**
+	 * Maximum number of pooled connections per database, defaults to one
+	 * connection for the main database plus one per fleet or update worker.
+	 * 
+	 * @return pool size
+	 */
+	public int getPoolSize() {
+		return getIntProperty(POOL_SIZE_PROPERTY, 1 + Math.max(getFleetThreads(), getUpdateThreads()));
+	}
+
+	/**
+	 * Fail if the pool cannot serve the main database and all workers at the
+	 * same time. A worker waiting for a connection would run into the pool
+	 * timeout.
+	 * 
+	 * @param workers - number of workers holding a connection each
+	 */
+	public void checkPoolSize(final int workers) {
+		if (getPoolSize() < workers + 1) {
+			throw new MigrationException("Property " + projectName + "." + POOL_SIZE_PROPERTY + "=" + getPoolSize()
+					+ " is too small for " + workers + " workers, at least " + (workers + 1)
+					+ " connections are needed");
+		}
+	}
+
+	/**
+	 * Interval in seconds in which idle pooled connections are validated, at least
+	 * 30 seconds.
+	 * 
+	 * @return interval in seconds
+	 */
+	public int getPoolValidationInterval() {
+		return Math.max(30, getIntProperty(POOL_VALIDATION_INTERVAL_PROPERTY, 120));
+	}
+
+	/**
+	 * Number of statements sent in one JDBC batch by UPDATE, defaults to 1 (no
+	 * batching).
+	 * 
+	 * @return batch size
+	 */
+	public int getBatchSize() {
+		return getIntProperty(BATCH_SIZE_PROPERTY, 1);
+	}
+
+	public int getCommitGroupSize() {
+		return getIntProperty(COMMIT_GROUP_SIZE_PROPERTY, 1);
+	}
+
+	public boolean isOnlineDdl() {
+		return getBooleanProperty(ONLINE_DDL_PROPERTY);
+	}
+
+	/**
+	 * lock_timeout in milliseconds of the statements in online DDL mode, defaults
+	 * to 2000.
+	 * 
+	 * @return lock timeout in milliseconds
+	 */
+	public int getOnlineLockTimeout() {
+		return getIntProperty(ONLINE_LOCK_TIMEOUT_PROPERTY, 2000);
+	}
+
+	/**
+	 * Retries of a statement which ran into the lock timeout in online DDL mode,
+	 * defaults to 10.
+	 * 
+	 * @return retries
+	 */
+	public int getOnlineRetries() {
+		return getIntProperty(ONLINE_RETRIES_PROPERTY, 10);
+	}
+
+	public boolean isFastDropAll() {
+		return getBooleanProperty(DROPALL_FAST_PROPERTY);
+	}
+
+	public boolean isLoadDataCopy() {
+		return getBooleanProperty(LOAD_DATA_COPY_PROPERTY);
+	}
+
+	/**
+	 * Number of changesets UPDATE runs concurrently, see
+	 * {@link ParallelChangeSetScheduler}. More than one thread cannot be combined
+	 * with metrics.dir, batch.size, commit.group.size or online.ddl, UPDATE fails
+	 * then.
+	 * 
+	 * @return number of update threads
+	 */
+	public int getUpdateThreads() {
+		return getIntProperty(UPDATE_THREADS_PROPERTY, 1);
+	}
+
+	public boolean isUpdateFingerprint() {
+		return getBooleanProperty(UPDATE_FINGERPRINT_PROPERTY);
+	}
+
+	public boolean isAtomicUpdate() {
+		return getBooleanProperty(UPDATE_ATOMIC_PROPERTY);
+	}
+
+	public boolean isSessionLock() {
+		return getBooleanProperty(SESSION_LOCK_PROPERTY);
+	}
+
+	public boolean isCatalogSnapshot() {
+		return getBooleanProperty(SNAPSHOT_CATALOG_PROPERTY);
+	}
+
+	public String getMetricsDir() {
+		return getOptionalProperty(METRICS_DIR_PROPERTY);
+	}
+
+	public String getFleetSchemas() {
+		return getOptionalProperty(FLEET_SCHEMAS_PROPERTY);
+	}
+
+	/**
+	 * Number of workers (and connections) used in fleet mode, defaults to the
+	 * number of available processors.
+	 * 
+	 * @return worker count
+	 */
+	public int getFleetThreads() {
+		return getIntProperty(FLEET_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Number of targets queried at the same time by STATUS, defaults to the
+	 * number of available processors.
+	 * 
+	 * @return worker count
+	 */
+	public int getStatusThreads() {
+		return getIntProperty(STATUS_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+	}
+
 	public String getConnectUserName() {
 		return getProperty(CONNECT_USERNAME_PROPERTY);
 	}
@@ -123,14 +335,57 @@ public class StageProperties {
 		}
 	}
 
+	/**
+	 * like {@link #getOptionalProperty(String)}, but converts the value to a
+	 * positive int and returns the default value if the property is not defined.
+	 * 
+	 * @param propertyName
+	 * @param defaultValue
+	 * @return property value or default value
+	 */
+	public int getIntProperty(final String propertyName, final int defaultValue) {
+		final String value = getOptionalProperty(propertyName);
+		if (isEmpty(value)) {
+			return defaultValue;
+		}
+		try {
+			final int result = Integer.parseInt(value.trim());
+			if (result < 1) {
+				throw new MigrationException("Property must be positive: " + projectName + "." + propertyName);
+			}
+			return result;
+		} catch (NumberFormatException e) {
+			throw new MigrationException("Property is not a number: " + projectName + "." + propertyName, e);
+		}
+	}
+
+	/**
+	 * like {@link #getOptionalProperty(String)}, but converts the value to a
+	 * boolean. An undefined property is false.
+	 * 
+	 * @param propertyName
+	 * @return property value
+	 */
+	public boolean getBooleanProperty(final String propertyName) {
+		return Boolean.parseBoolean(getOptionalProperty(propertyName).trim());
+	}
+
 	public void verify() {
 		if (isEmpty(getUrl())) {
 			emptyError(URL_PROPERTY);
 		}
 	}
 
+	/**
+	 * Log all properties sorted by name on FINE. Nothing is formatted if FINE is
+	 * not enabled, so the values, passwords included, stay out of the default
+	 * log.
+	 */
 	public void logAllProperties() {
-		LOG.info("All defined properties:");
+		if (!LOG.isLoggable(Level.FINE)) {
+			return;
+		}
+		LOG.fine("All defined properties:");
 		final List<String> entries = new ArrayList<String>();
 		for (Entry<Object, Object> entry : properties.entrySet()) {
 			final String value = entry.getKey() + "=" + entry.getValue();
@@ -142,7 +397,7 @@ public class StageProperties {
 
 		// Print values
 		for (String value : entries) {
-			LOG.info(value);
+			LOG.fine(value);
 		}
 	}
 
@@ -0,0 +1,302 @@
+package com.fb.commons.liquibase;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.database.Database;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Read-only STATUS of every project and stage found on the classpath. A target
+ * is a config/&lt;STAGE&gt;/&lt;project&gt;-env.properties file (COMMON
+ * excluded), its properties are read like for any other operation.
+ * <p>
+ * The targets are queried concurrently on a bounded pool, one short-lived
+ * connection each: the changelog of the project is parsed and compared with
+ * the rows of its change-log table. The result is one JSON document with the
+ * applied and pending changesets per target. A target which cannot be reached
+ * is reported with its error, it does not fail the others.
+ * <p>
+ * Contexts and labels are not evaluated, changesets of other DBMS are not
+ * counted as pending. Changesets with changed checksums (runOnChange) are not
+ * reported.
+ */
+public class StageStatusReporter {
+
+	private static final Logger LOG = Logger.getLogger(StageStatusReporter.class.getName());
+
+	private static final String CONFIG_DIRECTORY = "config/";
+	private static final String COMMON_STAGE = "COMMON";
+	private static final String PROPERTIES_SUFFIX = "-env.properties";
+
+	private final int threads;
+	private final byte[] privateKey;
+	private final ResourceAccessor resourceAccessor = new ClassLoaderResourceAccessor();
+
+	/**
+	 * @param threads    - maximum number of targets queried at the same time
+	 * @param privateKey - key to decrypt the passwords of the targets
+	 */
+	public StageStatusReporter(final int threads, final byte[] privateKey) {
+		this.threads = threads;
+		this.privateKey = privateKey;
+	}
+
+	/**
+	 * Query all targets and wait for completion.
+	 *
+	 * @return JSON document
+	 */
+	public String report() {
+		final long start = System.currentTimeMillis();
+		final List<String[]> targets = discoverTargets();
+		final List<TargetStatus> results = new ArrayList<>();
+		if (targets.isEmpty()) {
+			LOG.warning("No stage properties found in " + CONFIG_DIRECTORY);
+		} else {
+			final int workers = Math.min(threads, targets.size());
+			LOG.info("Query status of " + targets.size() + " targets with " + workers + " workers");
+			final ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				final List<Future<TargetStatus>> futures = new ArrayList<>();
+				for (final String[] target : targets) {
+					futures.add(pool.submit(() -> queryTarget(target[0], target[1])));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					results.add(await(targets.get(i), futures.get(i)));
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		final long duration = System.currentTimeMillis() - start;
+		LOG.info("Status of " + results.size() + " targets queried in " + duration + " ms");
+		return json(results, duration);
+	}
+
+	/**
+	 * Find the stage properties files on the classpath.
+	 *
+	 * @return stage and project of every target, sorted
+	 */
+	private List<String[]> discoverTargets() {
+		final Set<String> paths;
+		try {
+			paths = resourceAccessor.list(null, CONFIG_DIRECTORY, true, false, true);
+		} catch (IOException e) {
+			throw new MigrationException("Cannot list " + CONFIG_DIRECTORY, e);
+		}
+		final Set<String> names = new TreeSet<>();
+		if (paths != null) {
+			for (String path : paths) {
+				final String normalized = path.replace('\\', '/');
+				final int index = normalized.lastIndexOf(CONFIG_DIRECTORY);
+				if (index < 0) {
+					continue;
+				}
+				final String[] parts = normalized.substring(index + CONFIG_DIRECTORY.length()).split("/");
+				if (parts.length != 2 || COMMON_STAGE.equals(parts[0])
+						|| !parts[1].endsWith(PROPERTIES_SUFFIX)) {
+					continue;
+				}
+				names.add(parts[0] + "/" + parts[1].substring(0, parts[1].length() - PROPERTIES_SUFFIX.length()));
+			}
+		}
+		final List<String[]> targets = new ArrayList<>();
+		for (String name : names) {
+			targets.add(name.split("/"));
+		}
+		return targets;
+	}
+
+	private TargetStatus queryTarget(final String stage, final String project) {
+		final long start = System.currentTimeMillis();
+		final TargetStatus status = new TargetStatus(stage, project);
+		Database database = null;
+		try {
+			final ProgramOptions options = new ProgramOptions();
+			options.setStage(stage);
+			options.setProject(project);
+			final StageProperties properties = StagePropertiesReader.build().readEnviromentProperties(options);
+			properties.verify();
+			database = DatabaseBuilder.buildDatabase(properties, DatabaseType.fromUrl(properties.getUrl()), privateKey);
+
+			final Set<String> applied = queryAppliedChangeSets(database, properties.getVersionTable());
+			status.applied = applied.size();
+			final String rootChangeLog = properties.getLocations() + properties.getRootChangeLogName();
+			LiquibaseBuilder.registerChanges(properties.isLoadDataCopy());
+			final DatabaseChangeLog changeLog = ChangeLogParserFactory.getInstance()
+					.getParser(rootChangeLog, resourceAccessor)
+					.parse(rootChangeLog, new ChangeLogParameters(database), resourceAccessor);
+			final DbmsChangeSetFilter dbmsFilter = new DbmsChangeSetFilter(database);
+			for (ChangeSet changeSet : changeLog.getChangeSets()) {
+				if (dbmsFilter.accepts(changeSet).isAccepted()
+						&& !applied.contains(key(changeSet.getFilePath(), changeSet.getId(), changeSet.getAuthor()))) {
+					status.pending.add(changeSet);
+				}
+			}
+			status.success = true;
+		} catch (RuntimeException | LiquibaseException | SQLException e) {
+			LOG.severe("Status of " + stage + "/" + project + " failed: " + e.getMessage());
+			status.message = rootMessage(e);
+		} finally {
+			close(database);
+		}
+		status.durationMillis = System.currentTimeMillis() - start;
+		return status;
+	}
+
+	private static Set<String> queryAppliedChangeSets(final Database database, final String versionTable)
+			throws SQLException, DatabaseException {
+		final String table = database.escapeTableName(database.getLiquibaseCatalogName(),
+				database.getLiquibaseSchemaName(), versionTable);
+		final Connection connection = ((JdbcConnection) database.getConnection()).getUnderlyingConnection();
+		final Set<String> applied = new HashSet<>();
+		try (Statement stmt = connection.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT FILENAME, ID, AUTHOR FROM " + table)) {
+			while (rs.next()) {
+				applied.add(key(rs.getString(1), rs.getString(2), rs.getString(3)));
+			}
+		} finally {
+			database.rollback();
+		}
+		return applied;
+	}
+
+	/**
+	 * Identity of a changeset, the file path normalized like Liquibase compares
+	 * it.
+	 */
+	private static String key(final String filePath, final String id, final String author) {
+		String path = String.valueOf(filePath).replace('\\', '/');
+		if (path.startsWith("classpath:")) {
+			path = path.substring("classpath:".length());
+		}
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return path + "::" + id + "::" + author;
+	}
+
+	private TargetStatus await(final String[] target, final Future<TargetStatus> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MigrationException("Status operation interrupted", e);
+		} catch (ExecutionException e) {
+			final TargetStatus status = new TargetStatus(target[0], target[1]);
+			status.message = rootMessage(e.getCause());
+			return status;
+		}
+	}
+
+	private static void close(final Database database) {
+		if (database == null) {
+			return;
+		}
+		try {
+			database.close();
+		} catch (DatabaseException e) {
+			LOG.warning("Could not close status connection: " + e.getMessage());
+		}
+	}
+
+	private static String json(final List<TargetStatus> results, final long durationMillis) {
+		final StringBuilder out = new StringBuilder();
+		out.append("{\n");
+		out.append("  \"generated\": ").append(quote(Instant.now().toString())).append(",\n");
+		out.append("  \"durationMillis\": ").append(durationMillis).append(",\n");
+		out.append("  \"targets\": [");
+		for (int i = 0; i < results.size(); i++) {
+			final TargetStatus status = results.get(i);
+			out.append(i == 0 ? "\n" : ",\n");
+			out.append("    {\"stage\": ").append(quote(status.stage));
+			out.append(", \"project\": ").append(quote(status.project));
+			out.append(", \"success\": ").append(status.success);
+			out.append(", \"durationMillis\": ").append(status.durationMillis);
+			if (status.success) {
+				out.append(", \"applied\": ").append(status.applied);
+				out.append(", \"pending\": ").append(status.pending.size());
+				out.append(", \"pendingChangeSets\": [");
+				for (int j = 0; j < status.pending.size(); j++) {
+					final ChangeSet changeSet = status.pending.get(j);
+					out.append(j == 0 ? "" : ", ");
+					out.append("{\"id\": ").append(quote(changeSet.getId()));
+					out.append(", \"author\": ").append(quote(changeSet.getAuthor()));
+					out.append(", \"changeLog\": ").append(quote(changeSet.getFilePath())).append('}');
+				}
+				out.append(']');
+			} else {
+				out.append(", \"message\": ").append(quote(status.message));
+			}
+			out.append('}');
+		}
+		out.append(results.isEmpty() ? "]\n" : "\n  ]\n");
+		out.append("}\n");
+		return out.toString();
+	}
+
+	private static String quote(final String value) {
+		final StringBuilder out = new StringBuilder("\"");
+		for (char c : String.valueOf(value).toCharArray()) {
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c == '\n') {
+				out.append("\\n");
+			} else if (c < ' ') {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+
+	private static String rootMessage(final Throwable throwable) {
+		Throwable cause = throwable;
+		while (cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName();
+	}
+
+	private static class TargetStatus {
+
+		private final String stage;
+		private final String project;
+		private final List<ChangeSet> pending = new ArrayList<>();
+		private boolean success;
+		private int applied;
+		private long durationMillis;
+		private String message;
+
+		TargetStatus(final String stage, final String project) {
+			this.stage = stage;
+			this.project = project;
+		}
+	}
+}
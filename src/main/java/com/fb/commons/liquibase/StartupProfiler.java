@@ -0,0 +1,92 @@
+package com.fb.commons.liquibase;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the startup phases of the migration service (wall time and loaded
+ * classes per phase). The report is written once, when the first Liquibase
+ * instance is built. It is logged on INFO if the system property
+ * migration.startup.profile is true, on FINE otherwise.
+ */
+public final class StartupProfiler {
+
+	private static final Logger LOG = Logger.getLogger(StartupProfiler.class.getName());
+
+	private static final String PROFILE_PROPERTY = "migration.startup.profile";
+
+	private static final List<Phase> PHASES = new ArrayList<>();
+	private static final AtomicBoolean REPORTED = new AtomicBoolean();
+
+	private StartupProfiler() {
+		// private constructor
+	}
+
+	/**
+	 * Start a phase, it ends when the returned phase is closed.
+	 *
+	 * @param name - phase name
+	 * @return running phase
+	 */
+	public static Phase start(final String name) {
+		return new Phase(name);
+	}
+
+	/**
+	 * Log the phases measured so far together with the JVM uptime. Only the first
+	 * call writes a report.
+	 */
+	public static void report() {
+		if (!REPORTED.compareAndSet(false, true)) {
+			return;
+		}
+		final Level level = Boolean.getBoolean(PROFILE_PROPERTY) ? Level.INFO : Level.FINE;
+		if (!LOG.isLoggable(level)) {
+			return;
+		}
+		final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+		LOG.log(level, "Startup report:");
+		synchronized (PHASES) {
+			for (Phase phase : PHASES) {
+				LOG.log(level, String.format("  %-20s %6d ms %6d classes", phase.name,
+						TimeUnit.NANOSECONDS.toMillis(phase.durationNanos), phase.loadedClasses));
+			}
+		}
+		LOG.log(level, String.format("  %-20s %6d ms %6d classes", "jvm uptime",
+				ManagementFactory.getRuntimeMXBean().getUptime(), classLoading.getTotalLoadedClassCount()));
+	}
+
+	private static long loadedClassCount() {
+		return ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount();
+	}
+
+	public static final class Phase implements AutoCloseable {
+
+		private final String name;
+		private final long startNanos;
+		private final long startClasses;
+		private long durationNanos;
+		private long loadedClasses;
+
+		private Phase(final String name) {
+			this.name = name;
+			this.startClasses = loadedClassCount();
+			this.startNanos = System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			durationNanos = System.nanoTime() - startNanos;
+			loadedClasses = loadedClassCount() - startClasses;
+			synchronized (PHASES) {
+				PHASES.add(this);
+			}
+		}
+	}
+}
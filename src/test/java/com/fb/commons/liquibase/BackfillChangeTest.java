@@ -0,0 +1,120 @@
+package com.fb.commons.liquibase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import liquibase.Liquibase;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.exception.DatabaseException;
+import liquibase.resource.ClassLoaderResourceAccessor;
+
+/**
+ * Backfill in an UPDATE with online DDL, against the database of
+ * {@link PostgresTestDatabase}.
+ */
+public class BackfillChangeTest {
+
+	private static final int ROWS = 1000;
+
+	private PostgresTestDatabase testDatabase;
+	private Database database;
+
+	@Before
+	public void setUp() throws SQLException, DatabaseException {
+		testDatabase = new PostgresTestDatabase();
+		testDatabase.execute("CREATE TABLE orders (id BIGINT PRIMARY KEY, status VARCHAR(20), status_code VARCHAR(20))",
+				"INSERT INTO orders (id, status) SELECT i, 'open' || i FROM generate_series(1, " + ROWS + ") i");
+		database = testDatabase.openDatabase();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (database != null) {
+			database.close();
+		}
+		if (testDatabase != null) {
+			testDatabase.close();
+		}
+	}
+
+	@Test
+	public void backfillWithOnlineDdl() throws SQLException {
+		update();
+
+		assertBackfilled();
+	}
+
+	@Test
+	public void backfillRetriesChunkOnLockTimeout() throws Exception {
+		final Connection locker = testDatabase.connect();
+		locker.setAutoCommit(false);
+		try (Statement stmt = locker.createStatement()) {
+			stmt.executeQuery("SELECT id FROM orders WHERE id = 450 FOR UPDATE").close();
+		}
+		final Thread release = new Thread(() -> {
+			try {
+				Thread.sleep(1000);
+				locker.rollback();
+				locker.close();
+			} catch (InterruptedException | SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		release.start();
+		try {
+			update();
+		} finally {
+			release.join();
+		}
+
+		assertBackfilled();
+	}
+
+	private void update() {
+		final BackfillChange change = new BackfillChange();
+		change.setTableName("orders");
+		change.setKeyColumn("id");
+		change.setSet("status_code = upper(status)");
+		change.setWhere("status_code IS NULL");
+		change.setChunkSize(100);
+		final DatabaseChangeLog changeLog = new DatabaseChangeLog("backfill-test.xml");
+		final ChangeSet changeSet = new ChangeSet("backfill-orders", "test", false, false, "backfill-test.xml", null,
+				null, changeLog);
+		changeSet.addChange(change);
+		changeLog.addChangeSet(changeSet);
+
+		final LiquibaseOperationExecutor executor = new LiquibaseOperationExecutor();
+		executor.setOnlineLockTimeout(200);
+		executor.setOnlineRetries(10);
+		executor.processOperation(LiquibaseOperation.UPDATE,
+				new Liquibase(changeLog, new ClassLoaderResourceAccessor(), database));
+	}
+
+	private void assertBackfilled() throws SQLException {
+		try (Connection connection = testDatabase.connect()) {
+			assertEquals(0, count(connection,
+					"SELECT COUNT(*) FROM orders WHERE status_code IS DISTINCT FROM upper(status)"));
+			// the checkpoint is deleted when the backfill is complete
+			assertEquals(0, count(connection,
+					"SELECT COUNT(*) FROM databasechangelog" + BackfillChange.CHECKPOINT_TABLE_SUFFIX));
+			assertEquals(1, count(connection, "SELECT COUNT(*) FROM databasechangelog WHERE id = 'backfill-orders'"));
+		}
+	}
+
+	private static long count(final Connection connection, final String sql) throws SQLException {
+		try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+			rs.next();
+			return rs.getLong(1);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.fb.commons.liquibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import liquibase.CatalogAndSchema;
+import liquibase.database.Database;
+import liquibase.diff.DiffGeneratorFactory;
+import liquibase.diff.DiffResult;
+import liquibase.diff.compare.CompareControl;
+import liquibase.diff.output.report.DiffToReport;
+import liquibase.exception.DatabaseException;
+import liquibase.snapshot.DatabaseSnapshot;
+import liquibase.snapshot.InvalidExampleException;
+import liquibase.snapshot.SnapshotControl;
+import liquibase.snapshot.SnapshotGeneratorFactory;
+import liquibase.structure.DatabaseObject;
+import liquibase.structure.core.Column;
+import liquibase.structure.core.Index;
+import liquibase.structure.core.Table;
+
+/**
+ * Snapshots from the catalog compared with the ones of the standard JDBC
+ * generators, against the database of {@link PostgresTestDatabase}.
+ */
+public class CatalogSnapshotGeneratorTest {
+
+	private PostgresTestDatabase testDatabase;
+	private Database database;
+
+	@Before
+	public void setUp() throws SQLException, DatabaseException {
+		testDatabase = new PostgresTestDatabase();
+		testDatabase.execute("CREATE TABLE customers (id BIGSERIAL PRIMARY KEY, email VARCHAR(200) NOT NULL, "
+				+ "name TEXT DEFAULT 'unknown', created TIMESTAMP WITH TIME ZONE DEFAULT now(), "
+				+ "score NUMERIC(10, 2), CONSTRAINT customers_email_uk UNIQUE (email))",
+				"COMMENT ON TABLE customers IS 'Customers'", "COMMENT ON COLUMN customers.email IS 'Login'",
+				"CREATE TABLE orders (id BIGINT PRIMARY KEY, customer_id BIGINT NOT NULL "
+						+ "REFERENCES customers (id) ON DELETE CASCADE, total NUMERIC(12, 2), status CHAR(1), "
+						+ "placed DATE)",
+				"CREATE INDEX orders_customer_idx ON orders (customer_id)",
+				"CREATE INDEX orders_placed_idx ON orders (placed DESC, status)",
+				"CREATE INDEX customers_email_lower_idx ON customers (lower(email))",
+				"CREATE VIEW open_orders AS SELECT id, customer_id, total FROM orders WHERE status = 'O'");
+		database = testDatabase.openDatabase();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (database != null) {
+			database.close();
+		}
+		if (testDatabase != null) {
+			testDatabase.close();
+		}
+	}
+
+	@Test
+	public void sameSnapshotAsJdbc() throws Exception {
+		final DatabaseSnapshot jdbcSnapshot = snapshot();
+		final DatabaseSnapshot catalogSnapshot = catalogSnapshot();
+
+		assertFalse(catalogSnapshot.get(Table.class).isEmpty());
+		final DiffResult diff = DiffGeneratorFactory.getInstance().compare(jdbcSnapshot, catalogSnapshot,
+				CompareControl.STANDARD);
+		assertTrue(report(diff), diff.areEqual());
+	}
+
+	@Test
+	public void includeColumnsOfPartitionedIndexAreNoKeyColumns() throws Exception {
+		Assume.assumeTrue("INCLUDE needs PostgreSQL 11", database.getDatabaseMajorVersion() >= 11);
+		testDatabase.execute("CREATE TABLE events (id BIGINT, tenant INT, payload TEXT) PARTITION BY LIST (tenant)",
+				"CREATE TABLE events_1 PARTITION OF events FOR VALUES IN (1)",
+				"CREATE INDEX events_tenant_idx ON events (tenant, id) INCLUDE (payload)");
+
+		final List<Index> indexes = new ArrayList<>();
+		for (Index index : catalogSnapshot().get(Index.class)) {
+			if (index.getRelation().getName().startsWith("events")) {
+				indexes.add(index);
+			}
+		}
+
+		assertFalse(indexes.isEmpty());
+		for (Index index : indexes) {
+			final List<String> columns = new ArrayList<>();
+			for (Column column : index.getColumns()) {
+				columns.add(column.getName());
+			}
+			assertEquals(index.getName(), Arrays.asList("tenant", "id"), columns);
+		}
+	}
+
+	private DatabaseSnapshot catalogSnapshot() throws DatabaseException, InvalidExampleException {
+		// registered for this snapshot only, the registration of LiquibaseBuilder cannot be undone
+		final CatalogSnapshotGenerator generator = new CatalogSnapshotGenerator();
+		SnapshotGeneratorFactory.getInstance().register(generator);
+		try {
+			return snapshot();
+		} finally {
+			SnapshotGeneratorFactory.getInstance().unregister(generator);
+		}
+	}
+
+	private DatabaseSnapshot snapshot() throws DatabaseException, InvalidExampleException {
+		final Set<Class<? extends DatabaseObject>> types = CompareControl.STANDARD.getComparedTypes();
+		@SuppressWarnings("unchecked")
+		final Class<? extends DatabaseObject>[] typeArray = (Class<? extends DatabaseObject>[]) types
+				.toArray(new Class<?>[types.size()]);
+		return SnapshotGeneratorFactory.getInstance().createSnapshot(
+				new CatalogAndSchema(null, testDatabase.getSchema()), database,
+				new SnapshotControl(database, typeArray));
+	}
+
+	private static String report(final DiffResult diff) throws DatabaseException, IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (PrintStream print = new PrintStream(out, true, StandardCharsets.UTF_8.name())) {
+			new DiffToReport(diff, print).print();
+		}
+		return out.toString(StandardCharsets.UTF_8.name());
+	}
+}
@@ -0,0 +1,109 @@
+package com.fb.commons.liquibase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import liquibase.Liquibase;
+import liquibase.change.ColumnConfig;
+import liquibase.change.core.CreateTableChange;
+import liquibase.change.core.InsertDataChange;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.database.Database;
+import liquibase.exception.DatabaseException;
+import liquibase.resource.ClassLoaderResourceAccessor;
+
+/**
+ * UPDATE with online DDL and the standard changelog lock table, against the
+ * database of {@link PostgresTestDatabase}.
+ */
+public class OnlineDdlExecutorTest {
+
+	private static final int CHANGESETS = 5;
+
+	private PostgresTestDatabase testDatabase;
+	private Database database;
+
+	@Before
+	public void setUp() throws SQLException, DatabaseException {
+		testDatabase = new PostgresTestDatabase();
+		database = testDatabase.openDatabase();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (database != null) {
+			database.close();
+		}
+		if (testDatabase != null) {
+			testDatabase.close();
+		}
+	}
+
+	@Test
+	public void updateWithOnlineDdl() throws SQLException {
+		update(1);
+
+		assertUpdated();
+	}
+
+	@Test
+	public void updateWithOnlineDdlAndCommitGroups() throws SQLException {
+		update(3);
+
+		assertUpdated();
+	}
+
+	private void update(final int commitGroupSize) {
+		final DatabaseChangeLog changeLog = new DatabaseChangeLog("online-test.xml");
+		for (int i = 0; i < CHANGESETS; i++) {
+			final ChangeSet changeSet = new ChangeSet("online-" + i, "test", false, false, "online-test.xml", null,
+					null, changeLog);
+			final CreateTableChange createTable = new CreateTableChange();
+			createTable.setTableName("items_" + i);
+			createTable.addColumn(new ColumnConfig().setName("id").setType("BIGINT"));
+			changeSet.addChange(createTable);
+			final InsertDataChange insert = new InsertDataChange();
+			insert.setTableName("items_" + i);
+			insert.addColumn(new ColumnConfig().setName("id").setValueNumeric(i));
+			changeSet.addChange(insert);
+			changeLog.addChangeSet(changeSet);
+		}
+
+		final LiquibaseOperationExecutor executor = new LiquibaseOperationExecutor();
+		executor.setOnlineLockTimeout(200);
+		executor.setOnlineRetries(3);
+		executor.setCommitGroupSize(commitGroupSize);
+		executor.processOperation(LiquibaseOperation.UPDATE,
+				new Liquibase(changeLog, new ClassLoaderResourceAccessor(), database));
+	}
+
+	private void assertUpdated() throws SQLException {
+		try (Connection connection = testDatabase.connect(); Statement stmt = connection.createStatement()) {
+			for (int i = 0; i < CHANGESETS; i++) {
+				try (ResultSet rs = stmt.executeQuery("SELECT id FROM items_" + i)) {
+					rs.next();
+					assertEquals(i, rs.getLong(1));
+				}
+			}
+			try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM databasechangelog")) {
+				rs.next();
+				assertEquals(CHANGESETS, rs.getLong(1));
+			}
+			// the lock was released and committed
+			try (ResultSet rs = stmt.executeQuery("SELECT locked FROM databasechangeloglock")) {
+				rs.next();
+				assertFalse(rs.getBoolean(1));
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.fb.commons.liquibase;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.junit.Assume;
+
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+
+/**
+ * Schema of its own in the PostgreSQL database given by the system properties
+ * test.postgresql.url, test.postgresql.user and test.postgresql.password.
+ * Tests using it are skipped if no URL is given, e.g.
+ *
+ * <pre>
+ * mvn test -Dtest.postgresql.url=jdbc:postgresql://localhost/migration -Dtest.postgresql.user=migration
+ * </pre>
+ */
+final class PostgresTestDatabase implements AutoCloseable {
+
+	static final String URL_PROPERTY = "test.postgresql.url";
+
+	private final String schema;
+	private final Connection admin;
+
+	PostgresTestDatabase() throws SQLException {
+		final String url = System.getProperty(URL_PROPERTY);
+		Assume.assumeTrue("No PostgreSQL database, set " + URL_PROPERTY, url != null && !url.isEmpty());
+		schema = "test_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12).toLowerCase(Locale.ROOT);
+		admin = connect();
+		admin.setAutoCommit(true);
+		execute(admin, "CREATE SCHEMA " + schema);
+	}
+
+	/**
+	 * @return name of the schema
+	 */
+	String getSchema() {
+		return schema;
+	}
+
+	/**
+	 * @return new connection with the schema as search path
+	 */
+	Connection connect() throws SQLException {
+		final Connection connection = DriverManager.getConnection(System.getProperty(URL_PROPERTY),
+				System.getProperty("test.postgresql.user"), System.getProperty("test.postgresql.password"));
+		if (schema != null) {
+			execute(connection, "SET search_path TO " + schema);
+		}
+		return connection;
+	}
+
+	/**
+	 * @return Liquibase database on a new connection, with the schema as default
+	 *         schema
+	 */
+	Database openDatabase() throws SQLException, DatabaseException {
+		final Database database = DatabaseFactory.getInstance()
+				.findCorrectDatabaseImplementation(new JdbcConnection(connect()));
+		database.setDefaultSchemaName(schema);
+		return database;
+	}
+
+	/**
+	 * Execute the statements in auto-commit mode on the admin connection.
+	 */
+	void execute(final String... statements) throws SQLException {
+		for (String statement : statements) {
+			execute(admin, statement);
+		}
+	}
+
+	private static void execute(final Connection connection, final String sql) throws SQLException {
+		try (Statement stmt = connection.createStatement()) {
+			stmt.execute(sql);
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try {
+			execute(admin, "DROP SCHEMA " + schema + " CASCADE");
+		} finally {
+			admin.close();
+		}
+	}
+}